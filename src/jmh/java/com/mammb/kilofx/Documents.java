@@ -0,0 +1,88 @@
+package com.mammb.kilofx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Generated documents for the benchmarks.
+ */
+class Documents {
+
+    private static final String[] LINES = {
+        "    public static int count(String text, int from, int to) {",
+        "        // count the line feeds in the range",
+        "        int n = 0;",
+        "        for (int i = from; i < to; i++) if (text.charAt(i) == '\\n') n++;",
+        "        return n;",
+        "    }",
+        "",
+        "    /*",
+        "     * A block comment that spans",
+        "     * several lines of the document.",
+        "     */",
+        "\tprivate final boolean enabled = true;\t// trailing comment",
+        "    class Entry { long key; double value; Entry next; }",
+    };
+
+    /**
+     * Generate a java like text of the size.
+     * @param size the number of chars
+     * @param seed the seed of the line order
+     * @return the text
+     */
+    static String generate(int size, long seed) {
+        StringBuilder sb = new StringBuilder(size);
+        SplittableRandom random = new SplittableRandom(seed);
+        while (sb.length() < size) {
+            sb.append(LINES[random.nextInt(LINES.length)]).append('\n');
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /**
+     * Create a session of the document size.
+     * Documents larger than {@link App.Settings#largeFileSize} are written to a temporary
+     * file and mapped, as the editor does when opening them.
+     * @param size the number of chars
+     * @return the session
+     */
+    static App.SessionBuffer session(long size) throws IOException {
+        if (size <= App.Settings.largeFileSize) {
+            return new App.SessionBuffer(generate((int) size, size), App.Settings.tabSize);
+        }
+        Path path = Files.createTempFile("kilofx-bench", ".java");
+        path.toFile().deleteOnExit();
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            int chunk = 16 * 1024 * 1024;
+            for (long n = 0; n < size; n += chunk) {
+                writer.write(generate((int) Math.min(chunk, size - n), n));
+            }
+        }
+        File file = path.toFile();
+        App.SessionBuffer session = new App.SessionBuffer("", App.Settings.tabSize);
+        session.load(file, App.MappedText.open(path, StandardCharsets.UTF_8));
+        return session;
+    }
+
+    /**
+     * Parse the size parameter such as {@code 1K}, {@code 1M} and {@code 1G}.
+     * @param size the size parameter
+     * @return the number of chars
+     */
+    static long parseSize(String size) {
+        char unit = size.charAt(size.length() - 1);
+        long n = Long.parseLong(size.substring(0, size.length() - 1));
+        return switch (unit) {
+            case 'K' -> n * 1024;
+            case 'M' -> n * 1024 * 1024;
+            case 'G' -> n * 1024 * 1024 * 1024;
+            default -> Long.parseLong(size);
+        };
+    }
+}
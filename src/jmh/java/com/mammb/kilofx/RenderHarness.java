@@ -0,0 +1,94 @@
+package com.mammb.kilofx;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.event.Event;
+import javafx.scene.Scene;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.stage.Stage;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Headless harness that replays scripted sessions against the text area and reports the frame timings.
+ * Run with {@code ./gradlew renderHarness}, which starts the toolkit on the Monocle headless platform.
+ */
+public class RenderHarness {
+
+    /** Pulses replayed for each session. */
+    private static final int PULSES = 600;
+
+    public static void main(String[] args) throws Exception {
+        int size = (int) Documents.parseSize(args.length > 0 ? args[0] : "1M");
+        ObjectName pattern = new ObjectName("com.mammb.kilofx:type=FrameStats,*");
+
+        Platform.startup(() -> {
+            Stage stage = new Stage();
+            App app = new App();
+            App.DocumentRegistry documents = app.new DocumentRegistry(stage);
+            App.TextArea textArea = documents.create(Documents.generate(size, size));
+            // the only document registered, under the id given by the registry
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var stats = JMX.newMXBeanProxy(server, server.queryNames(pattern, null).iterator().next(),
+                App.FrameStatsMXBean.class);
+            stage.setScene(new Scene(documents, App.Settings.windowWidth, App.Settings.windowHeight));
+            stage.show();
+            textArea.requestFocus();
+
+            List<Map.Entry<String, IntConsumer>> sessions = List.of(
+                Map.entry("wheel scroll", i -> {
+                    for (int n = 0; n < 3; n++) Event.fireEvent(textArea, wheel(-40));
+                }),
+                Map.entry("page down", i -> Event.fireEvent(textArea, key(KeyEvent.KEY_PRESSED, "", KeyCode.PAGE_DOWN))),
+                Map.entry("typing", i -> Event.fireEvent(textArea,
+                    key(KeyEvent.KEY_TYPED, (i % 60 == 59) ? "\r" : "a", KeyCode.UNDEFINED))),
+                Map.entry("held down arrow", i -> {
+                    for (int n = 0; n < 4; n++) Event.fireEvent(textArea, key(KeyEvent.KEY_PRESSED, "", KeyCode.DOWN));
+                }));
+
+            new AnimationTimer() {
+                private int session = -1;
+                private int pulse = PULSES;
+                @Override public void handle(long now) {
+                    if (pulse == PULSES) {
+                        if (session >= 0) report(sessions.get(session).getKey(), stats);
+                        if (++session == sessions.size()) {
+                            stop();
+                            Platform.exit();
+                            return;
+                        }
+                        stats.reset();
+                        pulse = 0;
+                    }
+                    sessions.get(session).getValue().accept(pulse++);
+                }
+            }.start();
+        });
+    }
+
+    private static void report(String name, App.FrameStatsMXBean stats) {
+        System.out.printf("%-16s frames %5d%n", name, stats.getFrames());
+        Map<String, Double> p50 = stats.getP50();
+        Map<String, Double> p99 = stats.getP99();
+        for (String phase : p50.keySet()) {
+            System.out.printf("  %-10s p50 %9.1f us  p99 %9.1f us%n", phase, p50.get(phase), p99.get(phase));
+        }
+    }
+
+    private static KeyEvent key(javafx.event.EventType<KeyEvent> type, String character, KeyCode code) {
+        return new KeyEvent(type, character, "", code, false, false, false, false);
+    }
+
+    private static ScrollEvent wheel(double deltaY) {
+        return new ScrollEvent(ScrollEvent.SCROLL, 0, 0, 0, 0, false, false, false, false, false, false,
+            0, deltaY, 0, deltaY, ScrollEvent.HorizontalTextScrollUnits.NONE, 0,
+            ScrollEvent.VerticalTextScrollUnits.NONE, 0, 0, null);
+    }
+}
@@ -0,0 +1,131 @@
+package com.mammb.kilofx;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the edit and query operations of {@link App.SessionBuffer}.
+ * Run with {@code ./gradlew jmh}, allocation rates are reported by the gc profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SessionBufferBenchmark {
+
+    private static final int POSITIONS = 4096;
+
+    @Param({ "1K", "1M", "64M", "1G" })
+    public String size;
+
+    private App.SessionBuffer session;
+    /** Random positions, replayed in order so that every run edits the same places. */
+    private final int[] positions = new int[POSITIONS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        session = Documents.session(Documents.parseSize(size));
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < POSITIONS; i++) {
+            positions[i] = random.nextInt(session.maxPos());
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void caret() {
+        session.setPosition(session.maxPos() / 2);
+        session.add("x");
+    }
+
+    private int nextPos() {
+        int pos = positions[next++ & (POSITIONS - 1)];
+        return Math.min(pos, session.maxPos());
+    }
+
+    /** Insert and remove a word at a random position. */
+    @Benchmark
+    public int randomEdit() {
+        int pos = nextPos();
+        session.setPosition(pos);
+        session.add("edit");
+        session.remove(pos, pos + 4);
+        return session.getPosition();
+    }
+
+    /** Type a char at the caret, with a line feed every 80 chars. */
+    @Benchmark
+    public int sequentialTyping() {
+        session.add((next++ % 80 == 79) ? "\n" : "a");
+        return session.getPosition();
+    }
+
+    /** Undo and redo the last edit. */
+    @Benchmark
+    public int undoRedo() {
+        session.undo();
+        session.redo();
+        return session.getPosition();
+    }
+
+    /** Fetch a screen of lines at a random line. */
+    @Benchmark
+    public String getLines() {
+        int line = session.lineAt(nextPos());
+        return session.getLines(session.lineStartPos(line), 50);
+    }
+
+    /** Find the head and the tail of the line at a random position. */
+    @Benchmark
+    public int headAndTailOfLine() {
+        int pos = nextPos();
+        return session.getHeadOfLinePos(pos) + session.getTailOfLinePos(pos);
+    }
+
+    /** Count the matches of a literal on one thread. */
+    @Benchmark
+    public int countMatches() {
+        int[] count = { 0 };
+        session.findAll(App.Finder.literal("return"), 0, session.maxPos(), (s, e) -> count[0]++);
+        return count[0];
+    }
+
+    /** Count the matches of a literal in parallel segments. */
+    @Benchmark
+    public int countMatchesParallel() {
+        return App.SessionBuffer.findAll(session.snapshot(), App.Finder.literal("return"), (s, e) -> { }, () -> false);
+    }
+
+    /** Replace all the matches of a literal as one edit, and undo it. */
+    @Benchmark
+    public int replaceAll() {
+        int n = session.replaceAll(App.Finder.literal("return"), "yield");
+        session.undo();
+        return n;
+    }
+
+    /** Count the lines between two random positions. */
+    @Benchmark
+    public int countLines() {
+        return session.countLines(nextPos(), nextPos());
+    }
+
+    /** Select the word at a random position, as a double click does. */
+    @Benchmark
+    public int selectWord() {
+        int pos = nextPos();
+        return session.consecutiveLeft(pos) + session.consecutiveRight(pos);
+    }
+
+    /** Get the visual column at a random position. */
+    @Benchmark
+    public int visualColSize() {
+        session.setPosition(nextPos());
+        return session.getVisualColSize();
+    }
+}
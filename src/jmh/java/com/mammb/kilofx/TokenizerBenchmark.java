@@ -0,0 +1,68 @@
+package com.mammb.kilofx;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the highlighting, the {@link App.Tokenizer} scan and the
+ * {@link App.TokenCache} used by the highlight layer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TokenizerBenchmark {
+
+    private static final int LINES = 1024;
+
+    @Param({ "1K", "1M", "64M", "1G" })
+    public String size;
+
+    private final App.Tokenizer tokenizer = new App.Tokenizer(App.Settings.keywords);
+    private App.SessionBuffer session;
+    private App.TokenCache cache;
+    private String screen;
+    private final int[] lines = new int[LINES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        session = Documents.session(Documents.parseSize(size));
+        cache = new App.TokenCache(tokenizer, session);
+        screen = session.getLines(0, 50);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = random.nextInt(session.lineCount());
+        }
+    }
+
+    /** Scan a screen of text. */
+    @Benchmark
+    public int scanScreen(Blackhole bh) {
+        return tokenizer.scan(screen, 0, screen.length(), App.Tokenizer.NORMAL,
+            (type, s, e) -> bh.consume(s));
+    }
+
+    /** Get the spans of a screen at a random line, as a scroll would. */
+    @Benchmark
+    public void scrollSpans(Blackhole bh) {
+        int line = lines[next++ & (LINES - 1)];
+        for (int i = line; i < line + 50; i++) bh.consume(cache.spans(i));
+    }
+
+    /** Type into a line and get the spans of the screen again. */
+    @Benchmark
+    public void typeSpans(Blackhole bh) {
+        int line = lines[next++ & (LINES - 1)];
+        session.setPosition(session.lineStartPos(line));
+        session.add("/");
+        for (int i = line; i < line + 50; i++) bh.consume(cache.spans(i));
+        session.undo();
+    }
+}
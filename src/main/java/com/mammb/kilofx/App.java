@@ -2,10 +2,18 @@ package com.mammb.kilofx;
 
 import javafx.animation.*;
 import javafx.application.*;
+import javafx.concurrent.*;
 import javafx.scene.*;
+import javafx.scene.canvas.*;
 import javafx.scene.effect.*;
 import javafx.stage.*;
 import javafx.util.*;
+import javafx.beans.binding.Bindings;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.Tab;
+import javafx.scene.control.TabPane;
 import javafx.beans.property.*;
 import javafx.geometry.*;
 import javafx.scene.input.*;
@@ -13,11 +21,44 @@ import javafx.scene.layout.*;
 import javafx.scene.paint.*;
 import javafx.scene.shape.*;
 import javafx.scene.text.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.*;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 /**
  * Minimal editor app.
@@ -33,6 +74,21 @@ public class App extends Application {
         static final Color background = Color.web("#2e3032");
         static final Font font = Font.font("Consolas", FontWeight.NORMAL, FontPosture.REGULAR, 16);
         static final int tabSize = 4;
+        /** Files larger than this size in bytes are mapped and decoded lazily. */
+        static final long largeFileSize = 64L * 1024 * 1024;
+        /** Draw the text on a canvas instead of a text node, enabled with {@code -Dkilofx.canvas=true}. */
+        static final boolean canvasRendering = Boolean.getBoolean("kilofx.canvas");
+        /** Show the frame timings on the screen, enabled with {@code -Dkilofx.stats=true}. */
+        static final boolean statsOverlay = Boolean.getBoolean("kilofx.stats");
+        /** Wrap the lines at the width of the viewport, enabled with {@code -Dkilofx.wrap=true} or toggled with Alt + Z. */
+        static final boolean softWrap = Boolean.getBoolean("kilofx.wrap");
+        /** Interval in seconds of the recovery snapshots of an unsaved text. */
+        static final double autosaveInterval = 5;
+        /**
+         * Heap in bytes for the text of all the documents, set in MiB with {@code -Dkilofx.heapBudget}.
+         * The inactive documents over it are spilled to the swap, the least recently used first.
+         */
+        static final long heapBudget = Long.getLong("kilofx.heapBudget", Runtime.getRuntime().maxMemory() >> 22) << 20;
         static final String[] keywords = new String[] {
             "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const", "continue",
             "default", "do", "double", "else", "extends", "false", "final", "finally", "float", "for", "goto", "if",
@@ -51,10 +107,218 @@ public class App extends Application {
 
     @Override
     public void start(Stage stage) {
-        TextArea textArea = new TextArea(getParameters(), new StringBuffer(), stage);
-        Scene scene = new Scene(new StackPane(textArea), Settings.windowWidth, Settings.windowHeight);
+        DocumentRegistry documents = new DocumentRegistry(stage);
+        Scene scene = new Scene(documents, Settings.windowWidth, Settings.windowHeight);
         stage.setScene(scene);
+        stage.setOnCloseRequest(e -> {
+            if (!documents.closeAll()) e.consume();
+        });
         stage.show();
+        documents.open(getParameters().getUnnamed());
+    }
+
+    /**
+     * Registry of the open documents, each shown in a tab.
+     * The text of the documents on the heap is kept within {@link Settings#heapBudget}. The inactive
+     * documents drop their caches first, and then their buffers are spilled to the swap, the least
+     * recently active first. A spilled document is read back from the swap as it is shown.
+     */
+    public class DocumentRegistry extends TabPane {
+
+        private final Stage stage;
+        /** The documents in the order of their activation, the active one at the end. */
+        private final List<TextArea> recent = new ArrayList<>();
+        /** The documents being spilled. */
+        private final Set<TextArea> spilling = new HashSet<>();
+        private final Executor swapper = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "kilofx-swapper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Timeline budget = new Timeline();
+        private int untitled = 0;
+        /** The start of this run, which keeps the ids of the untitled documents apart from the other runs. */
+        private final String run = Long.toHexString(System.currentTimeMillis());
+        /** Size in bytes of the text on the heap, below which a document is not spilled. */
+        private static final long SPILL_SIZE = 1L << 20;
+
+        public DocumentRegistry(Stage stage) {
+            this.stage = stage;
+            setTabClosingPolicy(TabClosingPolicy.ALL_TABS);
+            getSelectionModel().selectedItemProperty().addListener((b, o, n) -> {
+                if (n == null) return;
+                TextArea textArea = (TextArea) n.getContent();
+                recent.remove(textArea);
+                recent.add(textArea);
+                textArea.activated();
+                keepBudget();
+            });
+            budget.getKeyFrames().add(new KeyFrame(Duration.seconds(Settings.autosaveInterval), e -> keepBudget()));
+            budget.setCycleCount(-1);
+            budget.play();
+        }
+
+        /**
+         * Open the files given at the start, or offer the recovery if none.
+         * @param files the paths of the files
+         */
+        public void open(List<String> files) {
+            files.forEach(name -> open(new File(name)));
+            if (getTabs().isEmpty()) {
+                TextArea textArea = create();
+                Platform.runLater(textArea::offerRecovery);
+            }
+        }
+
+        /**
+         * Open the file in a new tab, or in the active tab if it is blank.
+         * The tab of the file is selected if the file is already open.
+         * @param file the file
+         */
+        public void open(File file) {
+            if (file == null || !file.exists() || !file.isFile() || !file.canRead()) return;
+            for (Tab tab : getTabs()) {
+                File opened = ((TextArea) tab.getContent()).session.getFile();
+                if (opened != null && opened.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+                    getSelectionModel().select(tab);
+                    return;
+                }
+            }
+            TextArea active = active();
+            TextArea textArea = (active != null && active.blank()) ? active : create();
+            textArea.open(file);
+        }
+
+        /**
+         * Create an untitled document in a new tab.
+         * @return the text area of the document
+         */
+        public TextArea create() {
+            return create("");
+        }
+
+        /**
+         * Create an untitled document of the text in a new tab.
+         * @param text the initial text, which is not counted as a change
+         * @return the text area of the document
+         */
+        public TextArea create(CharSequence text) {
+            untitled++;
+            TextArea textArea = new TextArea(this, Journal.id(null) + "-" + run + "-" + Integer.toHexString(untitled));
+            if (text.length() > 0) textArea.session.load(null, text);
+            Tab tab = new Tab("untitled", textArea);
+            tab.setOnCloseRequest(e -> {
+                e.consume();
+                close(textArea);
+            });
+            getTabs().add(tab);
+            getSelectionModel().select(tab);
+            return textArea;
+        }
+
+        /**
+         * Close the document, with the confirmation if it is not saved.
+         * @param textArea the text area of the document
+         */
+        public void close(TextArea textArea) {
+            if (remove(textArea) && getTabs().isEmpty()) create();
+        }
+
+        /**
+         * Close all the documents on exit, with the confirmation for each one not saved.
+         * The journals and the recovery snapshots of the documents are released before the exit,
+         * so only an editor which did not exit cleanly leaves them to be restored.
+         * @return {@code true} if all the documents are closed, {@code false} if the exit is cancelled
+         */
+        public boolean closeAll() {
+            List<TextArea> closed = new ArrayList<>();
+            for (Tab tab : List.copyOf(getTabs())) {
+                TextArea textArea = (TextArea) tab.getContent();
+                if (!remove(textArea)) return false;
+                closed.add(textArea);
+            }
+            try {
+                for (TextArea textArea : closed) textArea.saver.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        private boolean remove(TextArea textArea) {
+            Tab tab = tabOf(textArea);
+            if (tab == null) return false;
+            if (textArea.session.modified()) {
+                getSelectionModel().select(tab);
+                Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                    "Discard the changes of " + tab.getText().replaceFirst(" \\*$", "") + "?",
+                    ButtonType.YES, ButtonType.NO);
+                alert.initOwner(stage);
+                if (alert.showAndWait().filter(ButtonType.YES::equals).isEmpty()) return false;
+            }
+            recent.remove(textArea);
+            spilling.remove(textArea);
+            getTabs().remove(tab);
+            textArea.dispose();
+            return true;
+        }
+
+        public TextArea active() {
+            Tab tab = getSelectionModel().getSelectedItem();
+            return (tab == null) ? null : (TextArea) tab.getContent();
+        }
+
+        private Tab tabOf(TextArea textArea) {
+            for (Tab tab : getTabs()) {
+                if (tab.getContent() == textArea) return tab;
+            }
+            return null;
+        }
+
+        /**
+         * Keep the text of the documents on the heap within the budget.
+         */
+        private void keepBudget() {
+            long total = 0;
+            for (TextArea textArea : recent) total += textArea.session.heapSize();
+            // the active one at the end is left as it is
+            for (int i = 0; i < recent.size() - 1 && total > Settings.heapBudget; i++) {
+                TextArea textArea = recent.get(i);
+                if (textArea.loading() || spilling.contains(textArea)) continue;
+                long size = textArea.session.heapSize();
+                textArea.session.trim();
+                long trimmed = textArea.session.heapSize();
+                total -= size - trimmed;
+                if (total > Settings.heapBudget && trimmed > SPILL_SIZE) {
+                    spill(textArea);
+                    // counted as released, the next round sees what is left
+                    total -= trimmed;
+                }
+            }
+        }
+
+        /**
+         * Spill the buffers of the document to the swap in the background.
+         * @param textArea the text area of the document
+         */
+        private void spill(TextArea textArea) {
+            SessionBuffer session = textArea.session;
+            PieceTable snapshot = session.snapshot();
+            spilling.add(textArea);
+            swapper.execute(() -> {
+                PieceTable.Buffer[] swaps = null;
+                try {
+                    swaps = snapshot.spill();
+                } catch (IOException | RuntimeException ignore) {
+                    // left on the heap
+                }
+                PieceTable.Buffer[] spilled = swaps;
+                Platform.runLater(() -> {
+                    if (!spilling.remove(textArea) || spilled == null) return;
+                    session.spilled(snapshot, spilled);
+                });
+            });
+        }
     }
 
     /**
@@ -62,6 +326,7 @@ public class App extends Application {
      */
     public class TextArea extends Region {
 
+        private final DocumentRegistry documents;
         private final Stage stage;
         private final SessionBuffer session;
         private final Text text;
@@ -69,35 +334,179 @@ public class App extends Application {
         private final Caret caret;
         private final ImePalette imePalette;
         private final SelectionLayer selection;
+        private final MatchLayer matches;
+        private final CaretsLayer carets;
+        /** The anchor of the column selection dragged with alt key, -1 if not dragging. */
+        private int blockAnchor = -1;
+        private final FindBar findBar;
+        /** Background count of the matches, and the matches found so far in order. */
+        private Task<Integer> scan;
+        private boolean scanStale = false;
+        /** The failure of the last scan, which left the matches counted so far, or null. */
+        private Throwable scanFailure;
+        private int scanCount = 0;
+        private final IntArray scanStarts = new IntArray();
+        private final IntArray scanEnds = new IntArray();
+        private final TokenCache tokens;
         private final HighlightLayer highlightLayer;
+        private final TextCanvas canvas;
+        private final FrameStats stats = new FrameStats();
+        private final Text statsOverlay;
+        private long statsOverlayAt;
 
         private final IntegerProperty viewOriginPos = new SimpleIntegerProperty(0);
         private final IntegerProperty viewOriginLine = new SimpleIntegerProperty(0);
         private final IntegerProperty caretLine = new SimpleIntegerProperty(0);
         private final BooleanProperty imeOn = new SimpleBooleanProperty(false);
         private final double lineHeight;
+        /** Width of the narrowest char, to size the window of the visual columns. */
+        private final double charWidth;
+        /** The rows of the viewport, each shows the window of a line from the first visual column. */
+        private final RowMap rows = new RowMap();
+        private int viewOriginCol = 0;
+        /** The index of the visual rows of the wrapped lines, or null if the lines are not wrapped. */
+        private WrapIndex wrap;
+        /** The rows of the first line scrolled out above the viewport, if wrapped. */
+        private int viewOriginSub = 0;
+        private double textWidth = 0;
+        /** Wraps the lines not yet wrapped at the current width, a slice per frame. */
+        private final AnimationTimer rewrapper = new AnimationTimer() {
+            @Override public void handle(long now) {
+                if (wrap == null || wrap.sweep(System.nanoTime() + 2_000_000L)) stop();
+                if (wrap != null) positionContent();
+            }
+        };
+        /** Lexes the lines up to the lines tokenized from a guessed state, a slice per frame. */
+        private final AnimationTimer relexer = new AnimationTimer() {
+            @Override public void handle(long now) {
+                if (tokens.sweep(System.nanoTime() + 2_000_000L)) stop();
+                if (tokens.stale()) showText();
+            }
+        };
+        private final ScrollBar vbar = new ScrollBar();
+        /** The text and the layers on it, which are moved up by the scroll offset. */
+        private final Pane content;
+        /** Pixels of the first line scrolled out above the viewport. [0..lineHeight) */
+        private double scrollOffset = 0;
+        /** Target of the smooth scroll in pixels from the top of the text, or -1 if not scrolling. */
+        private double scrollTarget = -1;
+        private boolean syncingBar = false;
+        private final AnimationTimer scroller = new AnimationTimer() {
+            @Override public void handle(long now) {
+                double y = scrollY();
+                double d = scrollTarget - y;
+                scrollToPixel(Math.abs(d) < 0.5 ? scrollTarget : y + d * 0.35);
+                if (Math.abs(d) < 0.5 || scrollY() == y) {
+                    scrollTarget = -1;
+                    stop();
+                }
+            }
+        };
         private int prefCol = 0;
-
-        public TextArea(Parameters params, StringBuffer sb, Stage stage) {
-            this.stage = stage;
-            this.stage.setTitle("untitled");
-            this.session = new SessionBuffer(sb, Settings.tabSize);
+        /** Number of matches kept for the navigation, the rest are only counted. */
+        private static final int MAX_SCAN_MATCHES = 1 << 22;
+        private boolean dirty = false;
+        private final AnimationTimer renderer = new AnimationTimer() {
+            @Override public void handle(long now) {
+                stop();
+                render();
+            }
+        };
+        private FileLoader loader;
+        private final ExecutorService saver = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "kilofx-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /** Recovery snapshots of the unsaved text, written by the saver. */
+        private final Recovery recovery;
+        private final Timeline autosave = new Timeline();
+        private boolean autosaving = false;
+        /** The mark of the text of the last recovery snapshot. */
+        private long autosaved = -1;
+
+        public TextArea(DocumentRegistry documents, String untitled) {
+            this.documents = documents;
+            this.stage = documents.stage;
+            this.recovery = new Recovery(untitled);
+            this.session = new SessionBuffer("", Settings.tabSize);
             this.text = createText("", Color.WHITESMOKE);
             this.text.setCursor(Cursor.TEXT);
-            this.side = new Side(viewOriginLine);
+            this.side = new Side(session::lineCount);
             this.caret = new Caret(text);
             this.caret.setLayoutY(text.getBaselineOffset());
             this.imePalette = new ImePalette(this);
             this.selection = new SelectionLayer(this);
+            this.matches = new MatchLayer(this);
+            this.carets = new CaretsLayer(this);
+            this.findBar = new FindBar();
+            this.session.addListener((line, removed, added) -> {
+                if (findBar.on()) invalidateScan();
+            });
             this.selection.setLayoutY(text.getBaselineOffset());
-            this.highlightLayer = new HighlightLayer(text);
+            this.carets.setLayoutY(text.getBaselineOffset());
+            this.tokens = new TokenCache(new Tokenizer(Settings.keywords), session);
+            this.highlightLayer = new HighlightLayer(this, text);
             this.lineHeight = getTextHeight();
+            this.charWidth = Stream.of("0", "i", "l", ".")
+                .mapToDouble(str -> createText(str, Color.WHITESMOKE).getLayoutBounds().getWidth())
+                .filter(w -> w > 0).min().orElse(1);
+            this.canvas = Settings.canvasRendering ? new TextCanvas(tokens, lineHeight) : null;
+            this.wrap = Settings.softWrap ? new WrapIndex(session, 1) : null;
+            this.content = new Pane(text, highlightLayer, matches, selection, carets, caret, imePalette);
+            this.statsOverlay = Settings.statsOverlay ? createText("", Color.ORANGE) : null;
+            this.stats.register(untitled);
             initComponent();
             initHandler();
-            params.getUnnamed().stream().findFirst().ifPresent(s -> open(new File(s)));
+            autosave.getKeyFrames().add(new KeyFrame(Duration.seconds(Settings.autosaveInterval), e -> autosave()));
+            autosave.setCycleCount(-1);
+            autosave.play();
+        }
+
+        /**
+         * Called when the tab of this document is selected.
+         */
+        private void activated() {
+            writeTitle();
+            showText();
+            Platform.runLater(this::requestFocus);
+        }
+
+        /**
+         * Get whether this document is untitled and empty, to be replaced by a file opened.
+         * @return {@code true} if this document is blank
+         */
+        private boolean blank() {
+            return !loading() && session.getFile() == null && !session.modified() && session.maxPos() == 0;
+        }
+
+        /**
+         * Release this document closed. The recovery snapshot is deleted after the pending writes.
+         */
+        private void dispose() {
+            if (loading()) loader.cancel();
+            loader = null;
+            if (scan != null) scan.cancel();
+            autosave.stop();
+            renderer.stop();
+            rewrapper.stop();
+            relexer.stop();
+            scroller.stop();
+            stats.unregister();
+            session.release();
+            saver.execute(() -> {
+                try {
+                    recovery.delete();
+                } catch (IOException ignore) {
+                    // left to be offered at the next start
+                }
+            });
+            saver.shutdown();
         }
 
         private void clear() {
+            viewOriginCol = 0;
+            viewOriginSub = 0;
             viewOriginPos.set(0);
             viewOriginLine.set(0);
             caretLine.set(0);
@@ -112,12 +521,46 @@ public class App extends Application {
             setAccessibleRole(AccessibleRole.TEXT_AREA);
 
             BorderPane pane = new BorderPane();
-            Pane main = new Pane(text, highlightLayer, selection, caret, imePalette);
+            Pane main = new Pane(content, findBar);
+            main.setClip(clip(main));
+            main.widthProperty().addListener((b, o, n) -> {
+                textWidth = n.doubleValue();
+                // the counts are kept as estimates, and the lines are wrapped again in the background
+                if (wrap != null && wrap.cols(wrapCols())) showText();
+            });
+            findBar.layoutXProperty().bind(Bindings.createDoubleBinding(
+                () -> main.getWidth() - findBar.getWidth() - 8, main.widthProperty(), findBar.widthProperty()));
+            if (canvas != null) {
+                // the text node is left empty, the canvas draws the rows and gives their geometry
+                text.setVisible(false);
+                highlightLayer.setVisible(false);
+                content.getChildren().add(0, canvas);
+                canvas.widthProperty().bind(main.widthProperty());
+                // a line more than the viewport, for the line partly scrolled in at the bottom
+                canvas.heightProperty().bind(main.heightProperty().add(lineHeight));
+            }
+            if (statsOverlay != null) {
+                statsOverlay.setTextOrigin(VPos.TOP);
+                statsOverlay.layoutXProperty().bind(Bindings.createDoubleBinding(
+                    () -> main.getWidth() - statsOverlay.getLayoutBounds().getWidth() - 8,
+                    main.widthProperty(), statsOverlay.layoutBoundsProperty()));
+                main.getChildren().add(statsOverlay);
+            }
             Pane left = new StackPane(side);
             pane.setLeft(left);
             BorderPane.setMargin(left, new Insets(2, 4, 0, 0));
             pane.setCenter(main);
             BorderPane.setMargin(main, new Insets(2, 0, 0, 0));
+            vbar.setOrientation(Orientation.VERTICAL);
+            vbar.setFocusTraversable(false);
+            vbar.setUnitIncrement(1);
+            vbar.valueProperty().addListener((b, o, n) -> {
+                if (syncingBar) return;
+                scroller.stop();
+                scrollTarget = -1;
+                scrollToPixel(n.doubleValue() * lineHeight);
+            });
+            pane.setRight(vbar);
             getChildren().add(pane);
 
             showText();
@@ -131,10 +574,11 @@ public class App extends Application {
             setOnMouseClicked(this::handleMouseClicked);
             setOnMouseDragged(this::handleMouseDragged);
             text.caretPositionProperty().addListener((b, o, n) -> writeTitle());
-            stage.heightProperty().addListener((b, o, n) -> showText());
+            heightProperty().addListener((b, o, n) -> showText());
         }
 
         private void handleInputMethod(InputMethodEvent e) {
+            if (loading()) return;
             imeOn.set(true);
             if (e.getCommitted().length() > 0) {
                 imeOn.set(false);
@@ -156,15 +600,69 @@ public class App extends Application {
                 return;
             }
 
-            if (SC_O.match(e)) {
-                open();
+            if (findBar.on()) {
+                if (e.getCode() == KeyCode.ESCAPE) {
+                    findBar.close();
+                    invalidateScan();
+                    showText();
+                    return;
+                } else if (SC_ENTER.match(e)) {
+                    replaceAll();
+                    return;
+                } else if (e.getCode() == KeyCode.ENTER) {
+                    findNext();
+                    return;
+                } else if (e.getCode() == KeyCode.TAB) {
+                    findBar.toggleField();
+                    return;
+                } else if (e.getCode() == KeyCode.BACK_SPACE) {
+                    findBar.backSpace();
+                    if (!findBar.replacing()) invalidateScan();
+                    showText();
+                    return;
+                } else if (SC_R.match(e)) {
+                    findBar.toggleRegex();
+                    invalidateScan();
+                    showText();
+                    return;
+                }
+            }
+
+            if (SC_F.match(e)) {
+                findBar.open();
+                invalidateScan();
+                showText();
+                return;
+            } else if (SC_O.match(e)) {
+                documents.open(fileChooseOpen(stage));
+                return;
+            } else if (SC_T.match(e)) {
+                documents.create();
+                return;
+            } else if (SC_W.match(e)) {
+                documents.close(this);
+                return;
+            } else if (AL_Z.match(e)) {
+                toggleWrap();
+                return;
+            } else if (loading()) {
+                // the buffer is read only while loading
+                if (e.getCode() == KeyCode.ESCAPE) loader.cancel();
+                else if (SC_C.match(e)) selection.copyToClipboard();
+                else {
+                    scrollToCaretOr();
+                    navigate(e);
+                }
                 return;
             } else if (SC_S.match(e)) {
-                if (!session.save()) saveAs();
+                save();
                 return;
             } else if (SC_SA.match(e)) {
                 saveAs();
                 return;
+            } else if (SC_C.match(e) && session.multiCaret()) {
+                carets.copyToClipboard();
+                return;
             } else if (SC_C.match(e)) {
                 selection.copyToClipboard();
                 return;
@@ -183,9 +681,24 @@ public class App extends Application {
                 redo();
                 showText();
                 return;
+            } else if (AL_SUP.match(e) || AL_SDOWN.match(e)) {
+                addColumnCaret(AL_SUP.match(e) ? -1 : 1);
+                return;
+            } else if (e.getCode() == KeyCode.ESCAPE && session.multiCaret()) {
+                session.clearCarets();
+                showText();
+                return;
             }
 
             scrollToCaretOr();
+            switch (e.getCode()) {
+                case DELETE:     delete(); return;
+                case BACK_SPACE: backSpace(); return;
+                default:         navigate(e);
+            }
+        }
+
+        private void navigate(KeyEvent e) {
             switch (e.getCode()) {
                 case UP:         selectionFilter(e, ke -> arrowUp()); return;
                 case DOWN:       selectionFilter(e, ke -> arrowDown()); return;
@@ -195,21 +708,38 @@ public class App extends Application {
                 case LEFT:       selectionFilter(e, ke -> arrowLeft()); return;
                 case HOME:       selectionFilter(e, ke -> home()); return;
                 case END:        selectionFilter(e, ke -> end()); return;
-                case DELETE:     delete(); return;
-                case BACK_SPACE: backSpace(); return;
             }
         }
 
         private void selectionFilter(KeyEvent e, Consumer<KeyEvent> consumer) {
+            if (session.multiCaret()) {
+                // the carets collapse to the caret at the position
+                session.clearCarets();
+                showText();
+            }
                  if (e.isShiftDown() && !selection.on()) selection.start();
             else if (!e.isShiftDown() && selection.on()) selection.clear();
             consumer.accept(e);
         }
 
         private void handleInput(KeyEvent e) {
+            if (findBar.on()) {
+                if (isChar.test(e) && !e.getCharacter().isEmpty() && !Character.isISOControl(e.getCharacter().charAt(0))) {
+                    findBar.append(e.getCharacter());
+                    if (!findBar.replacing()) invalidateScan();
+                    showText();
+                }
+                return;
+            }
+            if (loading()) return;
             if (isChar.test(e) && e.getCharacter().length() > 0) {
                 selection.clear();
-                if (e.getCharacter().contains("\n") || e.getCharacter().contains("\r")) {
+                if (session.multiCaret()) {
+                    String str = (e.getCharacter().contains("\n") || e.getCharacter().contains("\r"))
+                        ? System.lineSeparator() : e.getCharacter();
+                    session.addAll(i -> str);
+                    caretLine.set(session.lineAt(session.getPosition()));
+                } else if (e.getCharacter().contains("\n") || e.getCharacter().contains("\r")) {
                     String str = session.getLines(session.getPosition(), 1);
                     String leading = str.substring(0, str.length() - str.stripLeading().length());
                     // auto indent - add leading whitespace(single whitespace is ignored)
@@ -223,11 +753,12 @@ public class App extends Application {
         }
 
         private void handleScroll(ScrollEvent e) {
-            if (e.getEventType() == ScrollEvent.SCROLL) {
-                     if (e.getDeltaY() > 2)  scrollDown(2);
-                else if (e.getDeltaY() > 0)  scrollDown(1);
-                else if (e.getDeltaY() < -2) scrollUp(2);
-                else if (e.getDeltaY() < 0)  scrollUp(1);
+            if (e.getEventType() != ScrollEvent.SCROLL) return;
+            if (e.getDeltaY() != 0) smoothScroll(-e.getDeltaY());
+            if (e.getDeltaX() != 0 && wrap == null) {
+                // the window moves by tab size, so the tabs are aligned in any window
+                int step = Math.max((int) Math.round(Math.abs(e.getDeltaX()) / charWidth / Settings.tabSize), 1);
+                scrollToCol(viewOriginCol + (e.getDeltaX() < 0 ? step : -step) * Settings.tabSize);
             }
         }
 
@@ -236,17 +767,36 @@ public class App extends Application {
             if (imeOn.get())  return;
             if (!e.getButton().equals(MouseButton.PRIMARY)) return;
 
+            if (blockAnchor >= 0) {
+                // the end of the column selection dragged
+                blockAnchor = -1;
+                return;
+            }
+            if (e.isAltDown() && e.getClickCount() == 1) {
+                if (selection.on() && !session.multiCaret()) session.addCaret(selection.startPos, session.getPosition());
+                selection.clear();
+                int pos = rows.posOf(hitTest(e, true));
+                session.addCaret(pos, pos);
+                caretLine.set(session.lineAt(pos));
+                prefCol = caretCol();
+                showText();
+                return;
+            }
+            if (session.multiCaret()) {
+                session.clearCarets();
+                showText();
+            }
+
             if (selection.on()) {
                 if (selection.isDragging()) selection.releaseDragging();
                 else selection.clear();
             }
 
-            HitInfo hit = text.hitTest(text.sceneToLocal(new Point2D(e.getSceneX(), e.getSceneY())));
             if (e.getClickCount() == 1) {
-                moveCaret(viewOriginPos.get() + hit.getInsertionIndex(), true);
+                moveCaret(rows.posOf(hitTest(e, true)), true);
             } else if (e.getClickCount() == 2) {
-                int start = session.consecutiveLeft(viewOriginPos.get() + hit.getCharIndex());
-                int end  = session.consecutiveRight(viewOriginPos.get() + hit.getCharIndex());
+                int start = session.consecutiveLeft(rows.posOf(hitTest(e, false)));
+                int end  = session.consecutiveRight(rows.posOf(hitTest(e, false)));
                 moveCaret(start, false);
                 selection.start();
                 moveCaret(end, true);
@@ -257,21 +807,45 @@ public class App extends Application {
             if (imeOn.get())  return;
             if (!e.getButton().equals(MouseButton.PRIMARY)) return;
 
-            HitInfo hit = text.hitTest(text.sceneToLocal(new Point2D(e.getSceneX(), e.getSceneY())));
-            moveCaret(viewOriginPos.get() + hit.getInsertionIndex(), true);
+            if (e.isAltDown() || blockAnchor >= 0) {
+                if (blockAnchor < 0) {
+                    selection.clear();
+                    blockAnchor = session.getPosition();
+                }
+                int pos = rows.posOf(hitTest(e, true));
+                session.selectColumns(blockAnchor, pos);
+                caretLine.set(session.lineAt(pos));
+                prefCol = caretCol();
+                showText();
+                return;
+            }
+            moveCaret(rows.posOf(hitTest(e, true)), true);
             if (!selection.isDragging()) selection.startDrag();
         }
 
+        /**
+         * Add a caret in the next line above or below the caret, at the column of the caret.
+         * @param direction -1 for the line above, 1 for the line below
+         */
+        private void addColumnCaret(int direction) {
+            int line = caretLine.get() + direction;
+            if (line < 0 || line >= session.lineCount()) return;
+            selection.clear();
+            int pos = session.colPos(line, session.getVisualColSize());
+            session.addCaret(pos, pos);
+            caretLine.set(line);
+            scrollToCaretOr();
+            showText();
+        }
+
         private void arrowRight() {
             int pos = session.getPosition();
             session.forward(1);
-            prefCol = session.getVisualColSize();
-            if (session.countLines(pos, session.getPosition()) > 0) {
-                caretLine.set(caretLine.get() + 1);
-                if (caretLine.get() - viewOriginLine.get() + 1 >= viewportLineSize()) {
-                    scrollUp(1);
-                    return;
-                }
+            prefCol = caretCol();
+            if (session.countLines(pos, session.getPosition()) > 0) caretLine.set(caretLine.get() + 1);
+            if (caretRow() - viewRow() + 1 >= viewportLineSize()) {
+                scrollUp(1);
+                return;
             }
             syncCaret();
         }
@@ -279,22 +853,24 @@ public class App extends Application {
         private void arrowLeft() {
             int pos = session.getPosition();
             session.back(1);
-            prefCol = session.getVisualColSize();
-            if (session.countLines(session.getPosition(), pos) > 0) {
-                caretLine.set(caretLine.get() - 1);
-                if (caretLine.get() < viewOriginLine.get()) {
-                    scrollDown(1);
-                    return;
-                }
+            prefCol = caretCol();
+            if (session.countLines(session.getPosition(), pos) > 0) caretLine.set(caretLine.get() - 1);
+            if (caretRow() < viewRow()) {
+                scrollDown(1);
+                return;
             }
             syncCaret();
         }
 
         private void arrowUp() {
-            session.up(1);
-            session.visualColInLine(prefCol);
-            caretLine.set(Math.max(caretLine.get() - 1, 0));
-            if (caretLine.get() - 1 < viewOriginLine.get()) {
+            if (wrap == null) {
+                session.up(1);
+                session.visualColInLine(prefCol);
+                caretLine.set(Math.max(caretLine.get() - 1, 0));
+            } else {
+                moveRows(-1);
+            }
+            if (caretRow() - 1 < viewRow()) {
                 scrollDown(1);
             } else {
                 syncCaret();
@@ -302,11 +878,15 @@ public class App extends Application {
         }
 
         private void arrowDown() {
-            int pos = session.getPosition();
-            session.down(1);
-            session.visualColInLine(prefCol);
-            caretLine.set(caretLine.get() + session.countLines(pos, session.getPosition()));
-            if (caretLine.get() - viewOriginLine.get() > viewportLineSize() - 2) {
+            if (wrap == null) {
+                int pos = session.getPosition();
+                session.down(1);
+                session.visualColInLine(prefCol);
+                caretLine.set(caretLine.get() + session.countLines(pos, session.getPosition()));
+            } else {
+                moveRows(1);
+            }
+            if (caretRow() - viewRow() > viewportLineSize() - 2) {
                 scrollUp(1);
             } else {
                 syncCaret();
@@ -315,87 +895,401 @@ public class App extends Application {
 
         private void pageUp() {
             final int line = viewportLineSize() - 1;
-            session.up(line);
-            caretLine.set(Math.max(caretLine.get() - line, 0));
+            if (wrap == null) {
+                session.up(line);
+                caretLine.set(Math.max(caretLine.get() - line, 0));
+            } else {
+                moveRows(-line);
+            }
             scrollDown(line);
         }
 
         private void pageDown() {
             final int line = viewportLineSize() - 1;
-            int pos = session.getPosition();
-            session.down(line);
-            int n = session.countLines(pos, session.getPosition());
-            caretLine.set(caretLine.get() + n);
+            if (wrap == null) {
+                int pos = session.getPosition();
+                session.down(line);
+                int n = session.countLines(pos, session.getPosition());
+                caretLine.set(caretLine.get() + n);
+            } else {
+                moveRows(line);
+            }
             scrollUp(line);
         }
 
+        /**
+         * Move the caret by the visual rows of the wrapped lines, to the preferred column in the row.
+         * @param n the number of the rows, negative to move toward the top
+         */
+        private void moveRows(int n) {
+            int row = Math.max(Math.min(caretRow() + n, wrap.total() - 1), 0);
+            int line = wrap.lineAt(row);
+            int sub = Math.min(row - wrap.rowOf(line), wrap.exact(line) - 1);
+            session.setPosition(session.wrapPos(line, sub, prefCol, wrap.cols()));
+            caretLine.set(line);
+        }
+
         private void moveCaret(int toPos, boolean followPrefCol) {
             int direction = (toPos >= session.getPosition()) ? 1 : -1;
             int n = session.countLines(session.getPosition(), toPos) * direction;
             session.setPosition(toPos);
             caretLine.set(caretLine.get() + n);
-            prefCol = followPrefCol ? session.getVisualColSize() : prefCol;
+            prefCol = followPrefCol ? caretCol() : prefCol;
             syncCaret();
         }
 
         private void home() {
             session.moveToHeadOfLine();
-            prefCol = session.getVisualColSize();
+            prefCol = caretCol();
             syncCaret();
         }
 
         private void end() {
             session.moveToTailOfLine();
-            prefCol = session.getVisualColSize();
+            prefCol = caretCol();
             syncCaret();
         }
 
         private void scrollToCaretOr() {
-            if (caretLine.get() < viewOriginLine.get()) {
-                scrollDown(viewOriginLine.get() - caretLine.get());
-            } else if (caretLine.get() > viewOriginLine.get() + viewportLineSize() - 2) {
-                scrollUp(caretLine.get() - (viewOriginLine.get() + viewportLineSize() - 2));
+            if (wrap == null) {
+                int col = session.getVisualColSize();
+                int cols = viewportColSize() - 2;
+                if (col < viewOriginCol) {
+                    scrollToCol(col - cols / 4);
+                } else if (col > viewOriginCol + cols) {
+                    scrollToCol(col - cols * 3 / 4);
+                }
+            }
+            int caretRow = caretRow();
+            int viewRow = viewRow();
+            if (caretRow == viewRow && scrollOffset > 0) {
+                // the caret row is partly scrolled out
+                scrollTo(caretRow);
+            } else if (caretRow < viewRow) {
+                scrollDown(viewRow - caretRow);
+            } else if (caretRow > viewRow + viewportLineSize() - 2) {
+                scrollUp(caretRow - (viewRow + viewportLineSize() - 2));
             }
         }
 
         private void scrollUp(int n) {
-            for (int i = 0; i < n; i++) {
-                int current = viewOriginPos.get();
-                if (session.isLastLine(session.getNextLinePos(current, viewportLineSize() - 2))) break;
-                int nextPos = session.getNextLinePos(current);
-                if (nextPos <= current) break;
-                viewOriginPos.set(nextPos);
-                viewOriginLine.set(viewOriginLine.get() + 1);
-            }
-            showText();
+            // keep the last row within the viewport
+            int maxRow = rowCount() - 1 - Math.max(viewportLineSize() - 2, 0);
+            int row = Math.max(viewRow(), Math.min(viewRow() + n, maxRow));
+            scrollTo(row);
         }
 
         private void scrollDown(int n) {
-            for (int i = 0; i < n; i++) {
-                if (viewOriginPos.get() == 0) break;
-                int nextPos = session.getPrevLinePos(viewOriginPos.get());
-                viewOriginPos.set(nextPos);
-                viewOriginLine.set(viewOriginLine.get() - 1);
+            scrollTo(Math.max(viewRow() - n, 0));
+        }
+
+        private void scrollToCol(int col) {
+            col = Math.max(col - Math.floorMod(col, Settings.tabSize), 0);
+            if (col == viewOriginCol) return;
+            viewOriginCol = col;
+            showText();
+        }
+
+        private void scrollTo(int row) {
+            scroller.stop();
+            scrollTarget = -1;
+            scrollOffset = 0;
+            if (row != viewRow()) setViewRow(row);
+            showText();
+        }
+
+        /**
+         * Scroll to the pixel position from the top of the text.
+         * The row at the position is found through the line index, or the wrap index if wrapped,
+         * and the text is fetched again only if the first row changes, otherwise the content is just moved.
+         * @param y the pixel position
+         */
+        private void scrollToPixel(double y) {
+            y = Math.max(0, Math.min(y, maxScrollY()));
+            int row = (int) (y / lineHeight);
+            scrollOffset = y - row * lineHeight;
+            if (row != viewRow()) {
+                setViewRow(row);
+                showText();
+            } else {
+                positionContent();
+            }
+        }
+
+        /**
+         * Scroll by the pixels, animated toward the target over the next frames.
+         * @param dy the pixels to scroll, negative to scroll toward the top
+         */
+        private void smoothScroll(double dy) {
+            if (scrollTarget < 0) scrollTarget = scrollY();
+            scrollTarget = Math.max(0, Math.min(scrollTarget + dy, maxScrollY()));
+            scroller.start();
+        }
+
+        private double scrollY() {
+            return viewRow() * lineHeight + scrollOffset;
+        }
+
+        private double maxScrollY() {
+            // keep the last row within the viewport
+            return Math.max(rowCount() - 1 - Math.max(viewportLineSize() - 2, 0), 0) * lineHeight;
+        }
+
+        private void positionContent() {
+            content.setTranslateY(-scrollOffset);
+            side.scroll(scrollOffset);
+            syncingBar = true;
+            vbar.setMax(maxScrollY() / lineHeight);
+            vbar.setVisibleAmount(viewportLineSize());
+            vbar.setBlockIncrement(Math.max(viewportLineSize() - 1, 1));
+            vbar.setValue(scrollY() / lineHeight);
+            syncingBar = false;
+        }
+
+        /**
+         * Get the number of the rows of the text, the visual rows if the lines are wrapped.
+         * @return the number of the rows
+         */
+        private int rowCount() {
+            return (wrap == null) ? session.lineCount() : wrap.total();
+        }
+
+        private int viewRow() {
+            return (wrap == null) ? viewOriginLine.get() : wrap.rowOf(viewOriginLine.get()) + viewOriginSub;
+        }
+
+        private void setViewRow(int row) {
+            int line = (wrap == null) ? row : wrap.lineAt(row);
+            viewOriginSub = (wrap == null) ? 0 : Math.max(Math.min(row - wrap.rowOf(line), wrap.exact(line) - 1), 0);
+            if (line != viewOriginLine.get()) {
+                viewOriginPos.set(session.lineStartPos(line));
+                viewOriginLine.set(line);
+            }
+        }
+
+        private int caretRow() {
+            if (wrap == null) return caretLine.get();
+            wrap.exact(caretLine.get());
+            return wrap.rowOf(caretLine.get()) + session.wrapRow(session.getPosition(), wrap.cols());
+        }
+
+        /**
+         * Get the visual column of the caret, in its row if the lines are wrapped.
+         * @return the visual column
+         */
+        private int caretCol() {
+            return (wrap == null) ? session.getVisualColSize() : session.wrapCol(session.getPosition(), wrap.cols());
+        }
+
+        private int wrapCols() {
+            // a column is left for the caret at the end of a row
+            return (int) (textWidth / charWidth) - 1;
+        }
+
+        private void toggleWrap() {
+            if (wrap == null) {
+                wrap = new WrapIndex(session, wrapCols());
+                viewOriginCol = 0;
+            } else {
+                wrap.close();
+                wrap = null;
             }
+            viewOriginSub = 0;
+            prefCol = caretCol();
+            scrollToCaretOr();
             showText();
         }
 
+        /**
+         * Marks the view dirty. Any number of calls within a frame are coalesced
+         * into a single render on the next pulse.
+         */
         private void showText() {
-            Platform.runLater(() -> {
-                text.setText(session.getLines(viewOriginPos.get(), viewportLineSize()));
-                syncCaret();
-                highlightLayer.show();
+            if (dirty) return;
+            dirty = true;
+            renderer.start();
+        }
+
+        private void render() {
+            if (!dirty) return;
+            dirty = false;
+            long start = System.nanoTime();
+            // a row more than the viewport, for the row partly scrolled in at the bottom
+            String lines;
+            if (wrap == null) {
+                lines = session.getLines(viewOriginPos.get(), viewportLineSize() + 1,
+                    viewOriginCol, viewportColSize(), rows);
+            } else {
+                viewOriginSub = Math.min(viewOriginSub, wrap.exact(viewOriginLine.get()) - 1);
+                lines = session.getWrappedLines(viewOriginPos.get(), viewOriginSub, viewportLineSize() + 1,
+                    wrap.cols(), rows);
+                // the visible lines are wrapped at once, the rest in the background
+                for (int i = 0; i < rows.size(); i++) {
+                    if (i == 0 || rows.lines.get(i) != rows.lines.get(i - 1)) wrap.exact(rows.lines.get(i));
+                }
+                if (!wrap.swept()) rewrapper.start();
+            }
+            long t = stats.lap(FrameStats.FETCH, start);
+            for (int i = 0; i < rows.size(); i++) {
+                if (i == 0 || rows.lines.get(i) != rows.lines.get(i - 1)) tokens.spans(rows.lines.get(i));
+            }
+            if (!tokens.swept()) relexer.start();
+            t = stats.lap(FrameStats.TOKENIZE, t);
+            if (canvas != null) {
+                canvas.setRows(lines, rows);
+            } else {
+                text.setText(lines);
+                text.getLayoutBounds();
+            }
+            side.draw(viewRow(), rows);
+            positionContent();
+            t = stats.lap(FrameStats.LAYOUT, t);
+            syncCaret();
+            if (selection.on()) selection.handleCaret();
+            carets.show();
+            t = stats.lap(FrameStats.CARET, t);
+            if (canvas != null) canvas.paint();
+            else highlightLayer.show(rows);
+            matches.show(findBar.on() ? findBar.finder() : null);
+            if (scanStale) scanMatches();
+            t = stats.lap(FrameStats.PAINT, t);
+            stats.record(FrameStats.FRAME, t - start);
+            if (statsOverlay != null && t - statsOverlayAt > 500_000_000L) {
+                statsOverlayAt = t;
+                statsOverlay.setText(stats.summary());
+            }
+        }
+
+        private void findNext() {
+            Finder finder = findBar.finder();
+            if (finder == null) return;
+            int pos = session.getPosition();
+            int i = scanStarts.lowerBound(pos);
+            // step over the empty match at the caret
+            if (i < scanStarts.size() && scanStarts.get(i) == pos && scanEnds.get(i) == pos) i++;
+            if (i == scanStarts.size() && scan == null && scanFailure == null && scanCount == scanStarts.size()) {
+                // all the matches are known, wrap around
+                i = 0;
+            }
+            int start, end;
+            if (i < scanStarts.size()) {
+                start = scanStarts.get(i);
+                end = scanEnds.get(i);
+                if (scanFailure != null) findBar.failed(i + 1, scanCount, scanFailure);
+                else findBar.status(i + 1, scanCount, scan == null);
+            } else if (session.findNext(finder)) {
+                start = finder.start();
+                end = finder.end();
+            } else {
+                findBar.notFound();
+                return;
+            }
+            selection.clear();
+            session.setPosition(start);
+            selection.start();
+            session.setPosition(end);
+            caretLine.set(session.lineAt(end));
+            prefCol = caretCol();
+            scrollToCaretOr();
+            showText();
+        }
+
+        private void replaceAll() {
+            Finder finder = findBar.finder();
+            if (finder == null || loading()) return;
+            selection.clear();
+            session.replaceAll(finder, findBar.replacement());
+            caretLine.set(session.lineAt(session.getPosition()));
+            scrollToCaretOr();
+            showText();
+        }
+
+        private void invalidateScan() {
+            if (scan != null) scan.cancel();
+            scan = null;
+            scanStale = true;
+            scanFailure = null;
+            scanCount = 0;
+            scanStarts.clear();
+            scanEnds.clear();
+        }
+
+        /**
+         * Count the matches of the query in the background, the matches found are added as they are merged.
+         */
+        private void scanMatches() {
+            scanStale = false;
+            scanFailure = null;
+            Finder finder = findBar.on() ? findBar.finder() : null;
+            findBar.status(0, finder == null ? -1 : 0, false);
+            if (finder == null) return;
+            PieceTable snapshot = session.snapshot();
+            Finder copy = finder.copy();
+            Task<Integer> task = new Task<>() {
+                private final IntArray starts = new IntArray();
+                private final IntArray ends = new IntArray();
+                private long flushed = System.nanoTime();
+                @Override protected Integer call() {
+                    int count = SessionBuffer.findAll(snapshot, copy, (s, e) -> {
+                        starts.add(s);
+                        ends.add(e);
+                        if (starts.size() >= 65536 || System.nanoTime() - flushed > 100_000_000L) flush();
+                    }, this::isCancelled);
+                    flush();
+                    return count;
+                }
+                private void flush() {
+                    int[] s = starts.toArray();
+                    int[] e = ends.toArray();
+                    starts.clear();
+                    ends.clear();
+                    flushed = System.nanoTime();
+                    Platform.runLater(() -> {
+                        if (scan != this) return;
+                        scanCount += s.length;
+                        for (int i = 0; i < s.length && scanStarts.size() < MAX_SCAN_MATCHES; i++) {
+                            scanStarts.add(s[i]);
+                            scanEnds.add(e[i]);
+                        }
+                        findBar.status(0, scanCount, false);
+                    });
+                }
+            };
+            task.setOnSucceeded(e -> {
+                if (scan != task) return;
+                scan = null;
+                findBar.status(0, scanCount, true);
+            });
+            task.setOnFailed(e -> {
+                if (scan != task) return;
+                scan = null;
+                scanFailure = task.getException();
+                findBar.failed(0, scanCount, scanFailure);
             });
+            task.setOnCancelled(e -> {
+                // cancelled by the document closed, an edit has already replaced the scan
+                if (scan == task) scan = null;
+            });
+            scan = task;
+            Thread thread = new Thread(task, "kilofx-finder");
+            thread.setDaemon(true);
+            thread.start();
         }
 
         private void delete() {
-            if (selection.on()) selection.delete();
+            if (session.multiCaret()) {
+                session.deleteAll();
+                caretLine.set(session.lineAt(session.getPosition()));
+            } else if (selection.on()) selection.delete();
             else session.delete();
             showText();
         }
 
         private void backSpace() {
-            if (selection.on()) {
+            if (session.multiCaret()) {
+                session.backSpaceAll();
+                caretLine.set(session.lineAt(session.getPosition()));
+            } else if (selection.on()) {
                 selection.delete();
             } else {
                 if (session.isHeadOfLine() && caretLine.get() > 0) {
@@ -408,6 +1302,18 @@ public class App extends Application {
 
         private void pasteFromClipboard() {
             String str = Clipboard.getSystemClipboard().getString();
+            if (str == null) return;
+            if (session.multiCaret()) {
+                // a line for each caret if the lines match the carets, otherwise the whole at every caret
+                String[] lines = str.split("\r?\n", -1);
+                if (lines.length > 1 && lines[lines.length - 1].isEmpty()) lines = Arrays.copyOf(lines, lines.length - 1);
+                String[] texts = lines;
+                boolean each = texts.length == session.caretCount();
+                session.addAll(i -> each ? texts[i] : str);
+                caretLine.set(session.lineAt(session.getPosition()));
+                showText();
+                return;
+            }
             int lineCount = (int) str.chars().filter(c -> c == '\n').count();
             session.add(str);
             caretLine.set(caretLine.get() + lineCount);
@@ -436,34 +1342,244 @@ public class App extends Application {
 
         private void writeTitle() {
             String fileName = session.getFileName().length() == 0 ? "untitled" : session.getFileName();
+            Tab tab = documents.tabOf(this);
+            if (tab != null) tab.setText(fileName + (session.modified() ? " *" : ""));
+            if (documents.active() != this) return;
+            if (loading()) {
+                stage.setTitle(fileName + " - [Loading:" + (int) (Math.max(loader.getProgress(), 0) * 100) +
+                        "%, Esc to cancel]");
+                return;
+            }
             stage.setTitle(fileName + " - [Line:" + (caretLine.get() + 1) +
                     ", Pos:" + session.getPosition() + "/" + session.maxPos() + "]");
         }
 
+        private boolean loading() {
+            return loader != null;
+        }
+
         private int viewportLineSize() {
             return (int) Math.ceil(getHeight() / lineHeight);
         }
 
+        private int viewportColSize() {
+            return (int) Math.ceil(getWidth() / charWidth) + 1;
+        }
+
+        /**
+         * Get the index in the text node of the position, clamped to the window of its row.
+         * @param pos the position
+         * @return the index in the text node
+         */
+        private int textIndexOf(int pos) {
+            return rows.indexOf(session.lineAt(pos), pos);
+        }
+
         private void syncCaret() {
-            text.setCaretPosition(session.getPosition() - viewOriginPos.get());
+            int index = textIndexOf(session.getPosition());
+            if (canvas == null) {
+                text.setCaretPosition(index);
+                return;
+            }
+            caret.handleShape(canvas.caretShape(index));
+            selection.handleCaret();
+            writeTitle();
+        }
+
+        /**
+         * Get the shape of the caret at the index in the text node.
+         * @param index the index in the text node
+         * @return the shape of the caret
+         */
+        private PathElement[] caretShape(int index) {
+            return (canvas != null) ? canvas.caretShape(index) : text.caretShape(index, true);
+        }
+
+        /**
+         * Get the shape of the range in the text node.
+         * @param from the start index in the text node(inclusive)
+         * @param to the end index in the text node(exclusive)
+         * @return the shape of the range
+         */
+        private PathElement[] rangeShape(int from, int to) {
+            return (canvas != null) ? canvas.rangeShape(from, to) : text.rangeShape(from, to);
         }
 
-        private void open() {
-            open(fileChooseOpen(stage));
+        /**
+         * Get the index in the text node at the point of the mouse event.
+         * @param e the mouse event
+         * @param insertion {@code true} for the index of the insertion, {@code false} for the index of the char
+         * @return the index in the text node
+         */
+        private int hitTest(MouseEvent e, boolean insertion) {
+            Point2D point = text.sceneToLocal(new Point2D(e.getSceneX(), e.getSceneY()));
+            if (canvas != null) return canvas.hitTest(point.getX(), point.getY(), insertion);
+            HitInfo hit = text.hitTest(point);
+            return insertion ? hit.getInsertionIndex() : hit.getCharIndex();
         }
 
         private void open(File file) {
             if (file == null || !file.exists() || !file.isFile() || !file.canRead()) return;
-            session.open(file);
+            if (loading()) loader.cancel();
+            selection.clear();
             clear();
-            showText();
+            session.load(file, "");
+            FileLoader task = new FileLoader(file, session, this::showText);
+            task.progressProperty().addListener((b, o, n) -> writeTitle());
+            task.stateProperty().addListener((b, o, n) -> {
+                if (task != loader || !task.isDone()) return;
+                // a cancelled or failed load leaves the partial text, which must not overwrite the file
+                if (n != Worker.State.SUCCEEDED) session.detach();
+                else attachJournal();
+                loader = null;
+                showText();
+                writeTitle();
+            });
+            loader = task;
+            Thread thread = new Thread(task, "kilofx-loader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Open the journal of the loaded file in the background, which restores the undo history
+         * and the edits not saved when the editor did not exit cleanly.
+         */
+        private void attachJournal() {
+            File file = session.getFile();
+            PieceTable snapshot = session.snapshot();
+            long mark = session.mark();
+            saver.execute(() -> {
+                try {
+                    Journal journal = Journal.openFor(file, Journal.hash(snapshot), snapshot.length());
+                    Platform.runLater(() -> {
+                        if (session.attach(journal, mark)) {
+                            showText();
+                            writeTitle();
+                        }
+                    });
+                } catch (IOException | RuntimeException ignore) {
+                    // the edits are not journaled
+                }
+            });
+        }
+
+        /**
+         * Write the recovery snapshot of the unsaved text in the background.
+         * Taking the snapshot costs O(1) on the application thread, and the snapshot
+         * is written only when the text is changed since the last one.
+         */
+        private void autosave() {
+            long mark = session.mark();
+            if (loading() || autosaving || mark == autosaved || saver.isShutdown()) return;
+            PieceTable snapshot = session.snapshot();
+            File file = session.getFile();
+            int position = session.getPosition();
+            boolean modified = session.modified();
+            autosaving = true;
+            saver.execute(() -> {
+                boolean done = false;
+                try {
+                    if (modified) recovery.write(snapshot, file, position);
+                    else recovery.delete();
+                    done = true;
+                } catch (IOException | RuntimeException ignore) {
+                    // retried at the next interval
+                }
+                boolean written = done;
+                Platform.runLater(() -> {
+                    autosaving = false;
+                    if (written) autosaved = mark;
+                });
+            });
+        }
+
+        /**
+         * Offer to restore the texts from the recovery snapshots left by the last sessions.
+         * The first text restored goes to this document, and each of the others to a new tab.
+         */
+        private void offerRecovery() {
+            TextArea target = this;
+            for (String id : Recovery.leftovers()) {
+                String name = id.startsWith(Journal.id(null) + "-")
+                    ? Journal.id(null) : id.replaceFirst("-[0-9a-f]+$", "");
+                Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                    "Restore the unsaved text of " + name + "?", ButtonType.YES, ButtonType.NO);
+                alert.initOwner(stage);
+                if (alert.showAndWait().filter(ButtonType.YES::equals).isEmpty()) {
+                    saver.execute(() -> {
+                        try {
+                            Recovery.discard(id);
+                        } catch (IOException ignore) {
+                            // offered again at the next start
+                        }
+                    });
+                    continue;
+                }
+                if (target == null) target = documents.create();
+                target.restore(id);
+                target = null;
+            }
+        }
+
+        /**
+         * Restore the text from the recovery snapshot in the background.
+         * @param id the id of the snapshot
+         */
+        private void restore(String id) {
+            saver.execute(() -> {
+                try {
+                    Runnable restorer = recovery.read(id, session);
+                    Platform.runLater(() -> {
+                        selection.clear();
+                        clear();
+                        restorer.run();
+                        showText();
+                        writeTitle();
+                    });
+                } catch (IOException | RuntimeException e) {
+                    Platform.runLater(() -> stage.setTitle("untitled - [Restore failed:" + e + "]"));
+                }
+            });
+        }
+
+        private void save() {
+            if (session.getFile() == null) saveAs();
+            else save(session.getFile());
         }
 
         private void saveAs() {
             File file = fileChooseSave(stage);
             if (file == null) return;
-            session.saveAs(file);
-            stage.setTitle(session.getFileName());
+            save(file);
+        }
+
+        private void save(File file) {
+            // write the snapshot in the background, so typing can go on while saving
+            PieceTable snapshot = session.snapshot();
+            Task<Long> task = new Task<>() {
+                @Override protected Long call() throws Exception {
+                    SessionBuffer.write(snapshot, file.toPath());
+                    return Journal.hash(snapshot);
+                }
+            };
+            long mark = session.mark();
+            task.setOnSucceeded(e -> {
+                Callable<Runnable> rewrite = session.saved(file, snapshot.length(), task.getValue(), mark);
+                if (rewrite != null && !saver.isShutdown()) saver.execute(() -> {
+                    try {
+                        Platform.runLater(rewrite.call());
+                    } catch (Exception ignore) {
+                        // the journal is left as it is
+                    }
+                });
+                writeTitle();
+                // the recovery snapshot is no longer needed
+                autosaved = -1;
+                autosave();
+            });
+            task.setOnFailed(e -> stage.setTitle(file.getName() + " - [Save failed:" + task.getException() + "]"));
+            saver.execute(task);
         }
 
         private InputMethodRequests createInputMethodRequests() {
@@ -489,32 +1605,173 @@ public class App extends Application {
     }
 
     /**
-     * Side region.
+     * Side region, the gutter of the line numbers.
+     * A row is kept per row of the viewport, and the rows are rotated when scrolled,
+     * so only the rows whose line number has changed are formatted.
      */
     static class Side extends Region {
 
-        private final Text text;
+        /** Minimum number of the digits of the line numbers. */
+        private static final int MIN_DIGITS = 6;
+        private final IntSupplier lineCount;
         private final double lineHeight;
-
-        public Side(IntegerProperty viewOriginLine) {
+        private final double charWidth;
+        /** Buffer to format a line number, right aligned to the digits. */
+        private final char[] buf = new char[10];
+        /** Rows as a ring, the first row of the viewport is at the head. */
+        private Text[] rows = new Text[0];
+        /** The line number shown in each row of the ring, -1 if blank. */
+        private int[] labels = new int[0];
+        private int head = 0;
+        private int first = -1;
+        private RowMap map;
+        private int digits = MIN_DIGITS;
+        private final Pane body = new Pane();
+
+        public Side(IntSupplier lineCount) {
+            this.lineCount = lineCount;
             setBackground(new Background(new BackgroundFill(Settings.background, null, null)));
             setStyle("-fx-border-width: 0 1 0 0; -fx-border-color: #6d6d6d;");
 
             Text sample = createText("0000000", Color.GRAY);
-            setPrefWidth(sample.getLayoutBounds().getWidth());
+            charWidth = sample.getLayoutBounds().getWidth() / 7;
             lineHeight = getTextHeight(sample);
+            setPrefWidth(charWidth * (digits + 1));
+            setClip(clip(this));
+            getChildren().add(body);
+            heightProperty().addListener((b, o, n) -> resize());
+        }
+
+        /**
+         * Move the rows up by the pixels of the first line scrolled out.
+         * @param offset the scroll offset
+         */
+        void scroll(double offset) {
+            body.setTranslateY(-offset);
+        }
+
+        /**
+         * Draw the line numbers of the rows of the viewport.
+         * The continued rows of a wrapped line are left blank.
+         * @param firstRow the row at the top of the viewport
+         * @param map the map of the rows of the viewport
+         */
+        void draw(int firstRow, RowMap map) {
+            this.map = map;
+            int n = rows.length;
+            int d = MIN_DIGITS;
+            for (int v = lineCount.getAsInt() / 1_000_000; v > 0; v /= 10) d++;
+            int shift = firstRow - first;
+            boolean moved = shift != 0;
+            if (d != digits || first < 0 || Math.abs(shift) >= n) {
+                digits = d;
+                setPrefWidth(charWidth * (digits + 1));
+                head = 0;
+                Arrays.fill(labels, -2);
+                moved = true;
+            } else if (moved) {
+                head = Math.floorMod(head + shift, n);
+            }
+            first = firstRow;
+            for (int i = 0; i < n; i++) {
+                int slot = (head + i) % n;
+                int label = (i < map.size() && !map.continued(i)) ? map.lines.get(i) : -1;
+                if (labels[slot] != label) {
+                    labels[slot] = label;
+                    format(rows[slot], label);
+                }
+            }
+            if (!moved) return;
+            for (int i = 0; i < n; i++) {
+                Text row = rows[(head + i) % n];
+                row.setLayoutY(row.getBaselineOffset() + i * lineHeight);
+            }
+        }
+
+        private void format(Text row, int line) {
+            if (line < 0) {
+                if (!row.getText().isEmpty()) row.setText("");
+                return;
+            }
+            int pos = digits;
+            for (int v = line + 1; v > 0; v /= 10) buf[--pos] = (char) ('0' + v % 10);
+            while (pos > 0) buf[--pos] = ' ';
+            row.setText(new String(buf, 0, digits));
+        }
+
+        private void resize() {
+            int n = (int) Math.ceil(getHeight() / lineHeight) + 1;
+            if (n == rows.length) return;
+            rows = new Text[n];
+            labels = new int[n];
+            for (int i = 0; i < n; i++) rows[i] = createText("", Color.GRAY);
+            body.getChildren().setAll(rows);
+            int firstRow = first;
+            first = -1;
+            if (firstRow >= 0) draw(firstRow, map);
+        }
+    }
+
+    /**
+     * Task to load a file in the background.
+     * The text is read in chunks and each chunk is appended to the session buffer
+     * on the application thread as soon as it is read. Large files are mapped instead.
+     */
+    static class FileLoader extends Task<Void> {
+
+        private static final int CHUNK_SIZE = 1024 * 1024;
+        /** Number of the pages of a mapped file indexed before its head is shown, about 1MB. */
+        private static final int FIRST_PAGES = 16;
+        /** Number of the pages of a mapped file indexed for each append, about 16MB. */
+        private static final int CHUNK_PAGES = 256;
+        private final File file;
+        private final SessionBuffer session;
+        private final Runnable onChunk;
+
+        public FileLoader(File file, SessionBuffer session, Runnable onChunk) {
+            this.file = file;
+            this.session = session;
+            this.onChunk = onChunk;
+        }
 
-            text = createText("", Color.GRAY);
-            text.setLayoutY(text.getBaselineOffset());
-            getChildren().add(text);
-            viewOriginLine.addListener((b, o, n) -> draw(n.intValue()));
-            draw(0);
+        @Override protected Void call() throws Exception {
+            long size = Math.max(file.length(), 1);
+            if (file.length() > Settings.largeFileSize) {
+                MappedText text = MappedText.map(file.toPath(), StandardCharsets.UTF_8);
+                // the head is shown as soon as indexed, and the rest follows as the indexing goes on
+                boolean done = text.index(FIRST_PAGES);
+                int head = text.length();
+                runLater(() -> session.load(file, text, head));
+                for (int from = head; !done; ) {
+                    if (isCancelled()) break;
+                    done = text.index(CHUNK_PAGES);
+                    int start = from, end = text.length();
+                    runLater(() -> session.appendLoaded(start, end));
+                    from = end;
+                    updateProgress(text.indexedBytes(), size);
+                }
+                return null;
+            }
+            try (Reader reader = Files.newBufferedReader(file.toPath())) {
+                char[] buf = new char[CHUNK_SIZE];
+                long read = 0;
+                for (int n; (n = reader.read(buf)) != -1; ) {
+                    if (isCancelled()) break;
+                    String chunk = new String(buf, 0, n);
+                    runLater(() -> session.append(chunk));
+                    read += n;
+                    updateProgress(Math.min(read, size), size);
+                }
+            }
+            return null;
         }
 
-        private void draw(int lineNo) {
-            int lines = (int) (Screen.getPrimary().getVisualBounds().getHeight() / lineHeight);
-            text.setText(IntStream.range(lineNo, lineNo + lines)
-                .mapToObj(i -> String.format("%6d\n", i + 1)).collect(Collectors.joining()));
+        private void runLater(Runnable runnable) {
+            Platform.runLater(() -> {
+                if (isCancelled()) return;
+                runnable.run();
+                onChunk.run();
+            });
         }
     }
 
@@ -551,6 +1808,68 @@ public class App extends Application {
         }
     }
 
+    /**
+     * Carets layer.
+     * The carets and the ranges of the multi-caret editing in the rows shown.
+     */
+    static class CaretsLayer extends Group {
+
+        private final TextArea textArea;
+        private final Path ranges = new Path();
+        private final Path carets = new Path();
+
+        public CaretsLayer(TextArea textArea) {
+            this.textArea = textArea;
+            ranges.setFill(Color.AQUA);
+            ranges.setStrokeWidth(0);
+            ranges.setOpacity(0.3);
+            ranges.setBlendMode(BlendMode.LIGHTEN);
+            carets.setStroke(Color.WHITESMOKE);
+            carets.setStrokeWidth(1);
+            setManaged(false);
+            getChildren().addAll(ranges, carets);
+        }
+
+        public void show() {
+            SessionBuffer session = textArea.session;
+            RowMap map = textArea.rows;
+            if (!session.multiCaret() || map.size() == 0) {
+                if (!ranges.getElements().isEmpty()) ranges.getElements().clear();
+                if (!carets.getElements().isEmpty()) carets.getElements().clear();
+                return;
+            }
+            int first = map.starts.get(0);
+            int last = map.ends.get(map.size() - 1);
+            List<PathElement> rangeElements = new ArrayList<>();
+            List<PathElement> caretElements = new ArrayList<>();
+            for (int i = 0; i < session.caretCount(); i++) {
+                int anchor = session.anchorAt(i);
+                int caret = session.caretAt(i);
+                if (Math.min(anchor, caret) > last) break;
+                if (Math.max(anchor, caret) < first) continue;
+                int from = textArea.textIndexOf(Math.max(Math.min(anchor, caret), first));
+                int to = textArea.textIndexOf(Math.min(Math.max(anchor, caret), last));
+                if (from < to) rangeElements.addAll(Arrays.asList(textArea.rangeShape(from, to)));
+                if (caret >= first && caret <= last) {
+                    caretElements.addAll(Arrays.asList(textArea.caretShape(textArea.textIndexOf(caret))));
+                }
+            }
+            ranges.getElements().setAll(rangeElements);
+            carets.getElements().setAll(caretElements);
+        }
+
+        public void copyToClipboard() {
+            SessionBuffer session = textArea.session;
+            StringJoiner joiner = new StringJoiner(System.lineSeparator());
+            for (int i = 0; i < session.caretCount(); i++) {
+                joiner.add(session.text(session.anchorAt(i), session.caretAt(i)));
+            }
+            Map<DataFormat, Object> content = new HashMap<>();
+            content.put(DataFormat.PLAIN_TEXT, joiner.toString());
+            Clipboard.getSystemClipboard().setContent(content);
+        }
+    }
+
     /**
      * Selection layer.
      */
@@ -569,8 +1888,7 @@ public class App extends Application {
             setOpacity(0.3);
             setBlendMode(BlendMode.LIGHTEN);
             this.textArea = textArea;
-            textArea.text.caretPositionProperty().addListener((o, oldVal, newVal) ->
-                    handleCaret(oldVal.intValue(), newVal.intValue()));
+            textArea.text.caretPositionProperty().addListener((o, oldVal, newVal) -> handleCaret());
         }
 
         public void start() {
@@ -593,14 +1911,13 @@ public class App extends Application {
             return dragging;
         }
 
-        public void handleCaret(int oldValue, int newValue) {
+        public void handleCaret() {
             if (on) {
                 endPos = textArea.session.getPosition();
                 int start = Math.min(startPos, endPos);
                 int end   = Math.max(startPos, endPos);
-                getElements().setAll(textArea.text.rangeShape(
-                        Math.max(start - textArea.viewOriginPos.get(), 0),
-                        Math.min(end - textArea.viewOriginPos.get(), textArea.text.getText().length())));
+                getElements().setAll(textArea.rangeShape(
+                        textArea.textIndexOf(start), textArea.textIndexOf(end)));
             }
         }
 
@@ -639,480 +1956,5215 @@ public class App extends Application {
         }
     }
 
+    /**
+     * Layer of the matches of the search in the viewport.
+     */
+    static class MatchLayer extends Path {
+
+        private final TextArea textArea;
+        private final List<PathElement> elements = new ArrayList<>();
+
+        public MatchLayer(TextArea textArea) {
+            setFill(Color.GOLD);
+            setStrokeWidth(0);
+            setOpacity(0.3);
+            setBlendMode(BlendMode.LIGHTEN);
+            this.textArea = textArea;
+        }
+
+        public void show(Finder finder) {
+            elements.clear();
+            if (finder != null) {
+                // search the window of each row, not the whole of long lines
+                RowMap map = textArea.rows;
+                for (int i = 0; i < map.size(); i++) {
+                    int offset = map.offsets.get(i) - map.starts.get(i);
+                    textArea.session.findAll(finder, map.starts.get(i), map.ends.get(i), (s, e) ->
+                        elements.addAll(Arrays.asList(textArea.rangeShape(s + offset, e + offset))));
+                }
+            }
+            if (!elements.isEmpty() || !getElements().isEmpty()) getElements().setAll(elements);
+        }
+    }
+
     /**
      * Highlight layer.
+     * Each visible row is rendered by a row of reusable nodes. Rows still
+     * visible after scrolling are moved instead of rebuilt, and a row is updated only
+     * when the tokens of its line have changed.
      */
     static class HighlightLayer extends Region {
 
+        private final TokenCache tokens;
+        private final TextArea textArea;
         private Text pear;
+        private Row[] rows = new Row[0];
+        private Row[] nextRows = new Row[0];
+        private final Deque<Row> pool = new ArrayDeque<>();
 
-        public HighlightLayer(Text pear) {
+        public HighlightLayer(TextArea textArea, Text pear) {
+            this.textArea = textArea;
+            this.tokens = textArea.tokens;
             this.pear = pear;
         }
 
-        public void show() {
-            getChildren().clear();
-            // TODO optimize render
-            parseKeyword(pear.getText()).forEach(pt -> getChildren().add(pt));
-            parseLineComment(pear.getText()).forEach(pt -> getChildren().add(pt));
-            parseBlockComment(pear.getText()).forEach(pt -> getChildren().add(pt));
-        }
-
-        private List<PosText> parseKeyword(String str) {
-            List<PosText> list = new ArrayList<>();
-            for (String keyword : Settings.keywords) {
-                for (int pos : parseKeyword(str, keyword)) {
-                    list.add(createPosText(pos, keyword, Color.ORANGE));
+        public void show(RowMap map) {
+            String str = pear.getText();
+            int count = map.size();
+            if (nextRows.length < count) nextRows = new Row[count];
+
+            // reuse the rows which are still visible
+            for (Row row : rows) {
+                if (row == null) continue;
+                int index = map.find(row.line, row.skip);
+                if (index >= 0 && nextRows[index] == null) nextRows[index] = row;
+                else recycle(row);
+            }
+            Arrays.fill(rows, null);
+
+            double top = (str.isEmpty() ? 0 : getPathMinY(pear.caretShape(0, true))) + pear.getBaselineOffset();
+            for (int index = 0; index < count; index++) {
+                int head = map.offsets.get(index);
+                int tail = head + map.ends.get(index) - map.starts.get(index);
+                Row row = nextRows[index];
+                if (row == null) row = nextRows[index] = obtain();
+                int line = map.lines.get(index);
+                int[] spans = tokens.spans(line);
+                int skip = map.skips.get(index);
+                // each row starts at the left of the text node, so the tokens stay in place wherever the row is
+                if (row.line != line || row.spans != spans || row.skip != skip || row.length != tail - head) {
+                    row.update(line, spans, str, head, tail, skip);
                 }
+                row.setLayoutY(top + index * textArea.lineHeight);
             }
-            return list;
+            Row[] swap = rows;
+            rows = nextRows;
+            nextRows = swap;
         }
 
-        private List<Integer> parseKeyword(String str, String keyword) {
-            List<Integer> list = new ArrayList<>();
-            for (int i = 0; i < str.length(); ) {
-                int n = str.indexOf(keyword, i);
-                if (n == -1) break;
-                int prev = (n == 0) ? -1 : str.codePointAt(n - 1);
-                int next = (n + keyword.length() + 1 >= str.length()) ? -1
-                        : str.codePointAt(n + keyword.length());
-                if ((prev == -1 || (!Character.isAlphabetic(prev) && !Character.isDigit(prev))) &&
-                    (next == -1 || (!Character.isAlphabetic(next) && !Character.isDigit(next)))) {
-                    list.add(n);
-                }
-                i = n + 1;
+        private Row obtain() {
+            Row row = pool.poll();
+            if (row == null) {
+                row = new Row(pear);
+                getChildren().add(row);
             }
-            return list;
+            row.setVisible(true);
+            return row;
         }
 
-        private List<PosText> parseLineComment(String str) {
-            List<PosText> list = new ArrayList<>();
-            for (int p = 0; p < str.length();) {
-                int s = str.indexOf("//", p);
-                if (s == -1) break;
-                int e = str.indexOf("\n", s + 2);
-                if (e == -1) e = str.length();
-                list.add(createPosText(s, str.substring(s, e), Color.GRAY));
-                p = e + 1;
-            }
-            return list;
+        private void recycle(Row row) {
+            row.setVisible(false);
+            row.spans = null;
+            row.line = -1;
+            row.length = -1;
+            pool.push(row);
         }
 
-        private List<PosText> parseBlockComment(String str) {
-            List<PosText> list = new ArrayList<>();
-            for (int p = 0; p < str.length();) {
-                int s = str.indexOf("/*", p);
-                if (s == -1) break;
-                int e = str.indexOf("*/", s + 2);
-                if (e == -1) e = str.length() - 2;
-                for (String line : split(str.substring(s, e + 2), '\n')) {
-                    list.add(createPosText(s, removeLf(line), Color.LIGHTGREEN));
-                    s += line.length();
-                }
-                p = e + 1;
+        /**
+         * Row of the highlighted tokens in a line.
+         */
+        static class Row extends Region {
+            private final Text pear;
+            private int line = -1;
+            private int[] spans;
+            /** Chars of the line left of the window, and the chars shown in the window. */
+            private int skip;
+            private int length = -1;
+            private final List<PosText> nodes = new ArrayList<>();
+
+            Row(Text pear) {
+                this.pear = pear;
+                setManaged(false);
             }
 
-            int s = str.indexOf("*/");
-            if (s != -1 && !str.substring(0, s).contains("/*")) {
-                int p = 0;
-                for (String line : split(str.substring(0, s + 2), '\n')) {
-                    list.add(createPosText(p, removeLf(line), Color.LIGHTGREEN));
-                    p += line.length();
+            void update(int line, int[] spans, String str, int head, int tail, int skip) {
+                this.line = line;
+                this.spans = spans;
+                this.skip = skip;
+                this.length = tail - head;
+                int n = 0;
+                for (int i = 0; i < spans.length; i += 3) {
+                    int s = Math.max(head + spans[i + 1] - skip, head);
+                    int e = Math.min(head + spans[i + 2] - skip, tail);
+                    if (s >= e) continue;
+                    Color color = colorOf(spans[i]);
+                    if (n == nodes.size()) {
+                        nodes.add(new PosText(createText("", color)));
+                        getChildren().add(nodes.get(n));
+                    }
+                    PosText node = nodes.get(n++);
+                    node.set(str.substring(s, e), color);
+                    node.setLayoutX(getPathMinX(pear.caretShape(s, true)));
+                    node.setVisible(true);
                 }
+                for (int i = n; i < nodes.size(); i++) nodes.get(i).setVisible(false);
             }
-
-            return list;
         }
 
-        private PosText createPosText(int viewPos, String str, Color color) {
-            PathElement[] shape = pear.caretShape(viewPos, true);
-            PosText posText = new PosText(viewPos, createText(str, color));
-            posText.setLayoutX(getPathMinX(shape));
-            posText.setLayoutY(getPathMinY(shape) + pear.getBaselineOffset());
-            return posText;
+        static Color colorOf(int type) {
+            return (type == Tokenizer.KEYWORD) ? Color.ORANGE
+                : (type == Tokenizer.LINE_COMMENT) ? Color.GRAY : Color.LIGHTGREEN;
         }
 
         static class PosText extends Region {
-            final int pos;
             final Text text;
-            public PosText(int pos, Text text) {
-                this.pos = pos;
+            public PosText(Text text) {
                 this.text = text;
                 getChildren().add(text);
                 setBackground(new Background(new BackgroundFill(Settings.background, null, null)));
             }
+            void set(String str, Paint color) {
+                text.setText(str);
+                text.setFill(color);
+            }
         }
     }
 
     /**
-     * Input method editing palette.
+     * Canvas drawing the visible lines with their highlights.
+     * Glyphs are placed by a cache of advances of the monospace font, and only the rows
+     * whose text or tokens have changed since the last paint are drawn again. A row is known to be
+     * unchanged by the spans of its line, which are tokenized again whenever the line is edited,
+     * and by the window of the line it shows, so the rows are not compared by their chars.
+     * The text node is not laid out while the canvas is used, so the canvas also gives
+     * the geometry of the caret, the ranges and the hits, in the coordinates of the text node.
      */
-    static class ImePalette extends Region {
+    static class TextCanvas extends Canvas {
 
-        private TextArea textArea;
-        private Text palette;
-        private Text original;
+        private final TokenCache tokens;
+        private final double lineHeight;
+        /** The top of the first row, from the baseline of the first row. */
+        private final double rowTop;
+        private final double baseline;
+        private final GlyphAdvances advances = new GlyphAdvances(Settings.font);
+        /** The text of the rows joined by line feeds, and the map of the rows. */
+        private String str = "";
+        private RowMap map = new RowMap();
+        /** The spans, the chars of the line left of the row, and the length of each row painted last. */
+        private int[][] rowSpans = new int[0][];
+        private int[] rowSkips = new int[0];
+        private int[] rowLengths = new int[0];
+
+        public TextCanvas(TokenCache tokens, double lineHeight) {
+            this.tokens = tokens;
+            this.lineHeight = lineHeight;
+            Text probe = createText("X", Color.WHITESMOKE);
+            this.rowTop = getPathMinY(probe.caretShape(0, true));
+            this.baseline = probe.getBaselineOffset();
+            // resizing clears the canvas
+            widthProperty().addListener((b, o, n) -> invalidate());
+            heightProperty().addListener((b, o, n) -> invalidate());
+        }
 
-        public ImePalette(TextArea textArea) {
-            this.textArea = textArea;
-            this.palette  = createText("", Color.WHITESMOKE);
-            this.original = createText("", Color.WHITESMOKE);
-            palette.setUnderline(true);
-            setVisible(false);
-            setBackground(new Background(new BackgroundFill(Settings.background, null, null)));
-            getChildren().setAll(palette, original);
-            textArea.imeOn.addListener((observable, oldValue, newValue) -> handle(newValue));
+        /**
+         * Set the rows to be painted, in place of the text node.
+         * @param str the text of the rows joined by line feeds
+         * @param map the map of the rows
+         */
+        public void setRows(String str, RowMap map) {
+            this.str = str;
+            this.map = map;
         }
 
-        private void handle(boolean imeOn) {
-            setVisible(imeOn);
-            if (imeOn) {
-                original.setText(textArea.session.getLineRight());
-                PathElement[] shape = textArea.text.caretShape(textArea.text.getCaretPosition(), true);
-                setLayoutX(getPathMinX(shape));
-                setLayoutY(getPathMinY(shape) + palette.getBaselineOffset());
-            } else {
-                original.setText("");
-                palette.setText("");
+        /**
+         * Paint the rows set.
+         */
+        public void paint() {
+            GraphicsContext gc = getGraphicsContext2D();
+            gc.setFont(Settings.font);
+            gc.setTextBaseline(VPos.BASELINE);
+            double top = rowTop + baseline;
+
+            int count = (int) Math.ceil(getHeight() / lineHeight);
+            if (rowSpans.length != count) {
+                rowSpans = new int[count][];
+                rowSkips = new int[count];
+                rowLengths = new int[count];
+                Arrays.fill(rowLengths, -1);
+                gc.setFill(Settings.background);
+                gc.fillRect(0, 0, getWidth(), getHeight());
+            }
+            for (int index = 0; index < count; index++) {
+                int[] spans = null;
+                int skip = 0;
+                int length = 0;
+                if (index < map.size()) {
+                    spans = tokens.spans(map.lines.get(index));
+                    skip = map.skips.get(index);
+                    length = map.ends.get(index) - map.starts.get(index);
+                }
+                if (spans == rowSpans[index] && skip == rowSkips[index] && length == rowLengths[index]) continue;
+                rowSpans[index] = spans;
+                rowSkips[index] = skip;
+                rowLengths[index] = length;
+                double y = top + index * lineHeight;
+                gc.setFill(Settings.background);
+                gc.fillRect(0, y, getWidth(), lineHeight);
+                if (length > 0) {
+                    int head = map.offsets.get(index);
+                    // the spans are from the head of the line, which is left of the window
+                    drawRow(gc, head, head + length, spans, skip - head, y + baseline);
+                }
             }
         }
 
-        public void setText(String text) {
-            palette.setText(text);
-            original.setLayoutX(palette.getLayoutBounds().getWidth());
+        private void drawRow(GraphicsContext gc, int head, int tail, int[] spans, int shift, double baseline) {
+            double x = 0;
+            int spanIndex = 0;
+            for (int i = head; i < tail; ) {
+                while (spanIndex < spans.length && spans[spanIndex + 2] - shift <= i) spanIndex += 3;
+                boolean inSpan = spanIndex < spans.length && spans[spanIndex + 1] - shift <= i;
+                int end = inSpan ? Math.min(spans[spanIndex + 2] - shift, tail)
+                    : (spanIndex < spans.length) ? Math.min(spans[spanIndex + 1] - shift, tail)
+                    : tail;
+                gc.setFill(inSpan ? HighlightLayer.colorOf(spans[spanIndex]) : Color.WHITESMOKE);
+                // draw the run split by tabs
+                int runStart = i;
+                double runX = x;
+                for (; i < end; i++) {
+                    x = advance(x, str.charAt(i));
+                    if (str.charAt(i) == '\t') {
+                        if (runStart < i) gc.fillText(str.substring(runStart, i), runX, baseline);
+                        runStart = i + 1;
+                        runX = x;
+                    }
+                }
+                if (runStart < end) gc.fillText(str.substring(runStart, end), runX, baseline);
+            }
         }
-    }
-
-    /**
-     * Backend buffer of text to be manipulated.
-     */
-    public static class SessionBuffer {
 
-        /** Text buffer. */
-        private final StringBuffer sb;
-        /** Tab size. */
-        private final int tabSize;
-        /** Position of caret. [0..sb.length()] */
-        private int position = 0;
-        /** Target file. */
-        private File file;
-
-        private final Deque<History> undo = new ArrayDeque<>();
-        private final Deque<History> redo = new ArrayDeque<>();
-
-        public SessionBuffer(StringBuffer sb, int tabSize) {
-            this.sb = sb;
-            this.tabSize = tabSize;
+        /**
+         * Get the shape of the caret at the index in the text node.
+         * @param index the index in the text node
+         * @return the shape of the caret
+         */
+        public PathElement[] caretShape(int index) {
+            int row = rowOf(index);
+            double x = xOf(row, index);
+            double y = rowTop + row * lineHeight;
+            return new PathElement[] { new MoveTo(x, y), new LineTo(x, y + lineHeight) };
         }
 
-        public void clear() {
-            file = null;
-            sb.setLength(0);
-            position = 0;
-            undo.clear();
-            redo.clear();
+        /**
+         * Get the shape of the range in the text node.
+         * @param from the start index in the text node(inclusive)
+         * @param to the end index in the text node(exclusive)
+         * @return the shape of the range, a rectangle for each row
+         */
+        public PathElement[] rangeShape(int from, int to) {
+            List<PathElement> elements = new ArrayList<>();
+            for (int row = rowOf(from); row < map.size(); row++) {
+                int head = map.offsets.get(row);
+                int tail = head + map.ends.get(row) - map.starts.get(row);
+                if (head > to) break;
+                double x1 = xOf(row, Math.max(from, head));
+                double x2 = xOf(row, Math.min(to, tail));
+                // the line feed of the row in the range
+                if (to > tail) x2 += advances.advance(' ');
+                if (x2 <= x1) continue;
+                double y = rowTop + row * lineHeight;
+                elements.add(new MoveTo(x1, y));
+                elements.add(new LineTo(x2, y));
+                elements.add(new LineTo(x2, y + lineHeight));
+                elements.add(new LineTo(x1, y + lineHeight));
+                elements.add(new LineTo(x1, y));
+            }
+            return elements.toArray(new PathElement[0]);
         }
 
-        public void add(String text) {
-            pushToUndo(History.insertOf(position, text), false);
-            add(position, text);
+        /**
+         * Get the index in the text node at the point.
+         * @param x the x in the text node
+         * @param y the y in the text node
+         * @param insertion {@code true} for the index of the insertion, {@code false} for the index of the char
+         * @return the index in the text node
+         */
+        public int hitTest(double x, double y, boolean insertion) {
+            if (map.size() == 0) return 0;
+            int row = Math.max(Math.min((int) Math.floor((y - rowTop) / lineHeight), map.size() - 1), 0);
+            int head = map.offsets.get(row);
+            int tail = head + map.ends.get(row) - map.starts.get(row);
+            double left = 0;
+            for (int i = head; i < tail; i++) {
+                double right = advance(left, str.charAt(i));
+                if (x < right) return (insertion && x >= (left + right) / 2) ? i + 1 : i;
+                left = right;
+            }
+            return tail;
         }
 
-        private void add(int pos, String text) {
-            sb.insert(pos, text);
-            position = pos + text.length();
+        private int rowOf(int index) {
+            return Math.max(Math.min(map.offsets.lowerBound(index + 1) - 1, map.size() - 1), 0);
         }
 
-        public void remove(int fromPos, int toPos) {
-            int min = Math.min(fromPos, toPos);
-            int max = Math.max(fromPos, toPos);
-            pushToUndo(History.deleteOf(min, text(min, max)), false);
-            delete(min, max - min);
+        private double xOf(int row, int index) {
+            if (row >= map.size()) return 0;
+            int head = map.offsets.get(row);
+            int end = Math.min(index, head + map.ends.get(row) - map.starts.get(row));
+            double x = 0;
+            for (int i = head; i < end; i++) x = advance(x, str.charAt(i));
+            return x;
         }
 
-        private void delete(int pos, int length) {
-            setPosition(pos);
-            sb.delete(pos, pos + length);
+        private double advance(double x, char ch) {
+            if (ch != '\t') return x + advances.advance(ch);
+            double tabWidth = advances.advance(' ') * Settings.tabSize;
+            return (Math.floor(x / tabWidth) + 1) * tabWidth;
         }
 
-        public void undo() {
-            if (!undo.isEmpty()) redo.push(playback(undo.pop()));
+        private void invalidate() {
+            rowSpans = new int[0][];
+            rowSkips = new int[0];
+            rowLengths = new int[0];
         }
+    }
 
-        public void redo() {
-            if (!redo.isEmpty()) pushToUndo(playback(redo.pop()), true);
-        }
+    /**
+     * Cache of the advance widths of glyphs.
+     */
+    static class GlyphAdvances {
 
-        private void pushToUndo(History history, boolean readyForRedo) {
-            undo.push(history);
-            if (undo.size() > 1000) undo.removeLast();
-            if (!readyForRedo) redo.clear();
-        }
+        private final Font font;
+        private final double[][] blocks = new double[256][];
 
-        public int getUndoPos() {
-            return undo.isEmpty() ? -1 : undo.peek().getToPos();
-        }
-        public int getRedoPos() {
-            return redo.isEmpty() ? -1 : redo.peek().pos;
+        GlyphAdvances(Font font) {
+            this.font = font;
         }
 
-        private History playback(History history) {
-            if (history.del) add(history.pos, history.str);
-            else delete(history.pos, history.str.length());
-            return history.inverse();
+        /**
+         * Get the advance width of the char.
+         * @param ch the char
+         * @return the advance width
+         */
+        public double advance(char ch) {
+            if (Character.isLowSurrogate(ch)) return 0;
+            double[] block = blocks[ch >>> 8];
+            if (block == null) {
+                block = blocks[ch >>> 8] = new double[256];
+                Arrays.fill(block, Double.NaN);
+            }
+            if (Double.isNaN(block[ch & 0xff])) {
+                // a high surrogate is measured as a pair, taking the widths of supplementary chars alike
+                Text text = new Text(Character.isHighSurrogate(ch)
+                    ? new String(Character.toChars(Character.toCodePoint(ch, '\uDC00'))) : String.valueOf(ch));
+                text.setFont(font);
+                block[ch & 0xff] = text.getLayoutBounds().getWidth();
+            }
+            return block[ch & 0xff];
         }
+    }
 
-        public void delete() {
-            if (position >= sb.length()) return;
-            int n = (sb.charAt(position) == '\r' &&
-                    position + 1 < sb.length() && sb.charAt(position + 1) == '\n') ? 2 : 1;
-            remove(position, position + n);
+    /**
+     * Single pass tokenizer of keywords and comments.
+     * Identifiers are looked up in a perfect hash table of the keywords, so the cost
+     * of a scan does not depend on the number of keywords.
+     */
+    static class Tokenizer {
+
+        static final int KEYWORD = 1;
+        static final int LINE_COMMENT = 2;
+        static final int BLOCK_COMMENT = 3;
+
+        /** Scanning state outside of comments. */
+        static final int NORMAL = 0;
+        /** Scanning state inside a block comment. */
+        static final int IN_BLOCK_COMMENT = 1;
+
+        private final char[][] table;
+        private final int shift;
+        private final int seed;
+
+        public Tokenizer(String... keywords) {
+            int bits = 32 - Integer.numberOfLeadingZeros(Math.max(keywords.length, 1) * 4 - 1);
+            for (int k = 0; ; k++) {
+                if (k > 0 && k % 10000 == 0) bits++;
+                int seed = 0x9E3779B9 + k * 2;
+                char[][] table = new char[1 << bits][];
+                boolean perfect = true;
+                for (String keyword : keywords) {
+                    int index = index(hash(keyword, 0, keyword.length()), seed, 32 - bits);
+                    if (table[index] != null) {
+                        perfect = false;
+                        break;
+                    }
+                    table[index] = keyword.toCharArray();
+                }
+                if (perfect) {
+                    this.table = table;
+                    this.shift = 32 - bits;
+                    this.seed = seed;
+                    return;
+                }
+            }
         }
 
-        public void backSpace() {
-            if (position <= 0) return;
-            int n = (sb.charAt(position - 1) == '\n' &&
-                     position - 2 >= 0 && sb.charAt(position - 2) == '\r') ? 2 : 1;
-            remove(position - n, position);
+        /**
+         * Scan the text and emit the spans of keywords and comments in order.
+         * @param cs the text
+         * @param from the start index(inclusive)
+         * @param to the end index(exclusive)
+         * @param state the state at the start index
+         * @param consumer the consumer of the spans
+         * @return the state at the end index
+         */
+        public int scan(CharSequence cs, int from, int to, int state, SpanConsumer consumer) {
+            int i = from;
+            if (state == IN_BLOCK_COMMENT) {
+                int e = closeOfBlock(cs, i, to);
+                consumer.accept(BLOCK_COMMENT, i, (e == -1) ? to : e);
+                if (e == -1) return IN_BLOCK_COMMENT;
+                i = e;
+            }
+            while (i < to) {
+                char ch = cs.charAt(i);
+                if (ch == '/' && i + 1 < to && cs.charAt(i + 1) == '/') {
+                    int e = i + 2;
+                    while (e < to && cs.charAt(e) != '\n') e++;
+                    consumer.accept(LINE_COMMENT, i, e);
+                    i = e;
+                } else if (ch == '/' && i + 1 < to && cs.charAt(i + 1) == '*') {
+                    int e = closeOfBlock(cs, i + 2, to);
+                    consumer.accept(BLOCK_COMMENT, i, (e == -1) ? to : e);
+                    if (e == -1) return IN_BLOCK_COMMENT;
+                    i = e;
+                } else if (Character.isJavaIdentifierStart(ch)) {
+                    int e = i + 1;
+                    while (e < to && Character.isJavaIdentifierPart(cs.charAt(e))) e++;
+                    if (isKeyword(cs, i, e)) consumer.accept(KEYWORD, i, e);
+                    i = e;
+                } else if (Character.isDigit(ch)) {
+                    i++;
+                    while (i < to && Character.isJavaIdentifierPart(cs.charAt(i))) i++;
+                } else {
+                    i++;
+                }
+            }
+            return NORMAL;
         }
 
-        public void forward(int n) {
-            setPosition(position + n);
+        private boolean isKeyword(CharSequence cs, int start, int end) {
+            char[] keyword = table[index(hash(cs, start, end), seed, shift)];
+            if (keyword == null || keyword.length != end - start) return false;
+            for (int i = 0; i < keyword.length; i++) {
+                if (keyword[i] != cs.charAt(start + i)) return false;
+            }
+            return true;
         }
 
-        public void back(int n) {
-            setPosition(position - n);
+        private static int closeOfBlock(CharSequence cs, int from, int to) {
+            for (int i = from; i + 1 < to; i++) {
+                if (cs.charAt(i) == '*' && cs.charAt(i + 1) == '/') return i + 2;
+            }
+            return -1;
         }
 
-        public void moveToHeadOfLine() {
-            position = getHeadOfLinePos(position);
+        private static int hash(CharSequence cs, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) h = 31 * h + cs.charAt(i);
+            return h;
         }
 
-        public void moveToTailOfLine() {
-            position = getTailOfLinePos(position);
+        private static int index(int hash, int seed, int shift) {
+            return (hash * seed) >>> shift;
         }
 
-        public void up(int line) {
-            if (line <= 0) return;
-            int next = getHeadOfLinePos(position);
-            if (next == 0) return;
+        interface SpanConsumer {
+            /**
+             * Accept a span.
+             * @param type the type of the span
+             * @param start the start index(inclusive)
+             * @param end the end index(exclusive)
+             */
+            void accept(int type, int start, int end);
+        }
+    }
 
-            for (int i = 0; i < line; i++) {
-                next = getHeadOfLinePos(next - 1);
+    /**
+     * Finder of a literal string or a regular expression.
+     * Literal strings are searched with Boyer-Moore-Horspool, reading the text only through
+     * {@link CharSequence#charAt}, so the text need not be a string.
+     */
+    static class Finder {
+
+        private final String literal;
+        /** Shifts of Horspool by the low byte of the char, the minimum of the chars sharing the byte. */
+        private final int[] shift;
+        private final Pattern pattern;
+        private Matcher matcher;
+        private int start = -1;
+        private int end = -1;
+
+        private Finder(String literal, Pattern pattern) {
+            this.literal = literal;
+            this.pattern = pattern;
+            this.shift = new int[256];
+            if (literal != null) {
+                int m = literal.length();
+                Arrays.fill(shift, Math.max(m, 1));
+                for (int i = 0; i < m - 1; i++) shift[literal.charAt(i) & 0xff] = m - 1 - i;
             }
-            setPosition(next);
         }
 
-        public void down(int line) {
-            if (line <= 0) return;
-            if (isLastLine(position)) return;
-
-            int next = position;
-            for (int i = 0; i < line; i++) {
-                next = getTailOfLinePos(next) + 1;
-            }
-            setPosition(next);
+        static Finder literal(String literal) {
+            return new Finder(literal, null);
         }
 
-        public int getVisualColSize() {
-            int tabs = countCharacter(getHeadOfLinePos(position), position, '\t');
-            return position - getHeadOfLinePos(position) - tabs + tabs * tabSize;
+        /**
+         * Get a finder of the same query, to be used by another thread.
+         * @return the finder
+         */
+        Finder copy() {
+            return new Finder(literal, pattern);
         }
 
-        public void visualColInLine(int visualColSize) {
-            if (visualColSize <= 0) return;
-            int count = visualColSize;
-            for (int i = getHeadOfLinePos(position); i < getTailOfLinePos(position); i++) {
-                count -= (sb.codePointAt(i) == '\t') ? tabSize : 1;
-                if (count < 0) {
-                    position = Math.min(getTailOfLinePos(position), i);
-                    return;
-                }
-            }
-            position = getTailOfLinePos(position);
+        /**
+         * Get the length that a match can extend beyond the start of the next segment of a split search.
+         * @param regexLimit the limit for regular expressions, whose match length is not known
+         * @return the overlap of the segments
+         */
+        int overlap(int regexLimit) {
+            return (pattern != null) ? regexLimit : Math.max(literal.length() - 1, 0);
         }
 
-        public void setPosition(int pos) {
-            position = fitInRange(pos);
+        /**
+         * Create the finder of the regular expression.
+         * @param regex the regular expression
+         * @return the finder
+         * @throws PatternSyntaxException if the expression is invalid
+         */
+        static Finder regex(String regex) {
+            return new Finder(null, Pattern.compile(regex, Pattern.MULTILINE));
         }
 
-        public String getLines(int pos, int nLine) {
-            if (nLine <= 0) return "";
-            int next = pos;
-            for (int i = 0; i < nLine; i++) {
-                next = getTailOfLinePos(next) + 1;
-            }
-            return text(getHeadOfLinePos(pos), next);
+        /**
+         * Find the first match within the range.
+         * @param text the text
+         * @param from the start index(inclusive)
+         * @param to the end index(exclusive)
+         * @return {@code true} if found, the match is given by {@link #start()} and {@link #end()}
+         */
+        public boolean find(CharSequence text, int from, int to) {
+            return (pattern != null) ? findRegex(text, from, to) : findLiteral(text, from, to);
         }
 
-        public String getLineRight() {
-            return text(position, getTailOfLinePos(position));
+        private boolean findRegex(CharSequence text, int from, int to) {
+            if (matcher == null) matcher = pattern.matcher(text);
+            else matcher.reset(text);
+            matcher.useTransparentBounds(true).useAnchoringBounds(false).region(from, to);
+            if (!matcher.find()) return false;
+            start = matcher.start();
+            end = matcher.end();
+            return true;
         }
 
-        public int consecutiveLeft(int pos) {
-            int p = fitInRange(pos);
-            int type = Character.getType(Character.toLowerCase(sb.codePointAt(p)));
-            for (int i = fitInRange(p - 1); i >= 0; i--) {
-                if (type != Character.getType(Character.toLowerCase(sb.codePointAt(i)))) {
-                    return i + 1;
+        private boolean findLiteral(CharSequence text, int from, int to) {
+            int m = literal.length();
+            if (m == 0) return false;
+            char last = literal.charAt(m - 1);
+            for (int i = from; i + m <= to; ) {
+                char ch = text.charAt(i + m - 1);
+                if (ch == last && matchesAt(text, i)) {
+                    start = i;
+                    end = i + m;
+                    return true;
                 }
+                i += shift[ch & 0xff];
             }
-            return 0;
+            return false;
         }
 
-        public int consecutiveRight(int pos) {
-            int p = fitInRange(pos);
-            int type = Character.getType(Character.toLowerCase(sb.codePointAt(p)));
-            for (int i = fitInRange(p + 1); i < sb.length(); i++) {
-                if (type != Character.getType(Character.toLowerCase(sb.codePointAt(i)))) {
-                    return i;
-                }
+        private boolean matchesAt(CharSequence text, int i) {
+            for (int j = literal.length() - 2; j >= 0; j--) {
+                if (text.charAt(i + j) != literal.charAt(j)) return false;
             }
-            return sb.length();
+            return true;
         }
 
-        public int countLines(int fromPos, int toPos) {
-            return countCharacter(fromPos, toPos, '\n');
+        public int start() {
+            return start;
         }
 
-        private int countCharacter(int fromPos, int toPos, int ch) {
-            return (int) text(fromPos, toPos).chars().filter(c -> c == ch).count();
+        public int end() {
+            return end;
         }
 
-        public String text(int fromPos, int toPos) {
-            return sb.substring(fitInRange(Math.min(fromPos, toPos)), fitInRange(Math.max(fromPos, toPos)));
+        /**
+         * Expand the replacement for the current match.
+         * For a regular expression, {@code $n} refers to the n-th group and a backslash escapes the next char.
+         * @param replacement the replacement
+         * @return the expanded replacement
+         */
+        public String expand(String replacement) {
+            if (pattern == null || (replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0)) return replacement;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < replacement.length(); i++) {
+                char ch = replacement.charAt(i);
+                if (ch == '\\' && i + 1 < replacement.length()) {
+                    sb.append(replacement.charAt(++i));
+                } else if (ch == '$' && i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1))
+                        && replacement.charAt(i + 1) - '0' <= matcher.groupCount()) {
+                    String group = matcher.group(replacement.charAt(++i) - '0');
+                    if (group != null) sb.append(group);
+                } else {
+                    sb.append(ch);
+                }
+            }
+            return sb.toString();
         }
 
-        public int getNextLinePos(int pos) {
-            return fitInRange(getTailOfLinePos(pos) + 1);
+        interface MatchConsumer {
+            /**
+             * Accept a match.
+             * @param start the start index(inclusive)
+             * @param end the end index(exclusive)
+             */
+            void accept(int start, int end);
         }
+    }
 
-        public int getNextLinePos(int pos, int n) {
-            int ret = pos;
-            for (int i = 0; i < n; i++) {
-                ret = getNextLinePos(ret);
-                if (isLastLine(ret)) return ret;
-            }
-            return ret;
+    /**
+     * Per-line cache of the tokens.
+     * The state of the tokenizer entering a line is checkpointed every {@value #CHECKPOINT_LINES} lines,
+     * so a line is tokenized from the checkpoint above it without scanning the whole text above.
+     * The lines are lexed over the chunks of the buffer, without a string per line.
+     * An edit invalidates the checkpoints after the edited line, and the following lines are
+     * lexed again only until the state entering a checkpoint is the same as before the edit.
+     * A line far below the lexed lines is tokenized from a guessed state, and the lines up to it
+     * are lexed by {@link #sweep(long)} in slices, which drops the spans tokenized from a wrong guess.
+     */
+    static class TokenCache implements SessionBuffer.EditListener {
+
+        /** Lines between the checkpoints of the state. */
+        private static final int CHECKPOINT_LINES = 64;
+        /** Lines lexed on a lookup at once, the lines farther are left to the sweep. */
+        private static final int EAGER_LINES = 4096;
+        /** Number of the lines cached, a power of two. */
+        private static final int CACHE_LINES = 1024;
+        private static final int[] EMPTY = new int[0];
+        private static final Tokenizer.SpanConsumer NONE = (type, s, e) -> { };
+        private final Tokenizer tokenizer;
+        private final SessionBuffer session;
+        /** The lines of the checkpoints in ascending order, and the state entering each of them. */
+        private int[] marks = new int[1024];
+        private int[] states = new int[1024];
+        private int count = 1;
+        /** The checkpoints [0, valid) are up to date, the rest are left from before the edits. */
+        private int valid = 1;
+        /** The checkpoints left at or before this line are not to be trusted, the edits above them are not lexed yet. */
+        private int dirtyTo = -1;
+        /** The lines [0, frontier) are lexed, and the state entering the frontier line. */
+        private int frontier = 0;
+        private int frontierState = Tokenizer.NORMAL;
+        /** The lexed lines before the edits, and the state entering it, which are restored once the states are stable. */
+        private int reach = 0;
+        private int reachState = Tokenizer.NORMAL;
+        /** The sweep lexes the lines up to this line. */
+        private int target = 0;
+        /** The line tokenized last, and the state at its end, to go on to the next line. */
+        private int lastLine = -1;
+        private int lastState;
+        private boolean lastGuessed;
+        /** Whether the sweep has dropped the spans tokenized from a wrong guess. */
+        private boolean stale = false;
+        /** Spans of lines as triples of type, start and end, mapped directly by the line. */
+        private int[] cacheLines = new int[CACHE_LINES];
+        private int[][] cacheSpans = new int[CACHE_LINES][];
+        /** The state entering each cached line, and whether it is guessed. */
+        private int[] cacheStates = new int[CACHE_LINES];
+        private boolean[] cacheGuessed = new boolean[CACHE_LINES];
+        /** The spare arrays of the cache, to which it is moved when an edit shifts the lines. */
+        private int[] spareLines = new int[CACHE_LINES];
+        private int[][] spareSpans = new int[CACHE_LINES][];
+        private int[] spareStates = new int[CACHE_LINES];
+        private boolean[] spareGuessed = new boolean[CACHE_LINES];
+        /** The spans being collected, with the start of the line. */
+        private final IntArray collected = new IntArray();
+        private int collectedHead;
+        private final Tokenizer.SpanConsumer collector = (type, s, e) -> {
+            collected.add(type);
+            collected.add(s - collectedHead);
+            collected.add(e - collectedHead);
+        };
+
+        public TokenCache(Tokenizer tokenizer, SessionBuffer session) {
+            this.tokenizer = tokenizer;
+            this.session = session;
+            Arrays.fill(cacheLines, -1);
+            session.addListener(this);
         }
 
-        public int getPrevLinePos(int pos) {
-            return getHeadOfLinePos(fitInRange(getHeadOfLinePos(pos) - 1));
+        /**
+         * Get the spans of the line.
+         * @param line the line index
+         * @return the spans as triples of type, start and end in the line
+         */
+        public int[] spans(int line) {
+            if (line >= session.lineCount()) return EMPTY;
+            if (line >= frontier) {
+                if (line - frontier <= EAGER_LINES) advance(line, Long.MAX_VALUE);
+                else target = Math.max(target, line + 1);
+            }
+            int slot = line & (CACHE_LINES - 1);
+            if (cacheLines[slot] == line) return cacheSpans[slot];
+            return tokenize(line);
         }
 
-        public boolean isHeadOfLine() {
-            return (position == 0) || sb.charAt(position - 1) == '\n';
+        /**
+         * Lex the lines up to the lines looked up beyond the lexed lines, until the deadline.
+         * @param deadline the deadline in {@link System#nanoTime()}
+         * @return {@code true} if the lines looked up are all lexed
+         */
+        public boolean sweep(long deadline) {
+            advance(target, deadline);
+            return swept();
         }
 
-        public boolean save() {
-            if (file == null) return false;
-            saveAs(file);
-            return true;
+        /**
+         * Get whether the lines looked up are all lexed.
+         * @return {@code true} if no line is left to the sweep
+         */
+        public boolean swept() {
+            return frontier >= Math.min(target, session.lineCount());
         }
 
-        public void saveAs(File file) {
-            try {
-                Files.writeString(file.toPath(), sb.toString());
-                this.file = file;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        /**
+         * Get whether the spans tokenized from a wrong guess are dropped since the last call,
+         * and the lines are to be shown again.
+         * @return {@code true} if the spans are dropped
+         */
+        public boolean stale() {
+            boolean ret = stale;
+            stale = false;
+            return ret;
         }
 
-        public void open(File file) {
-            try {
-                String text = Files.readString(file.toPath());
-                clear();
-                this.file = file;
-                sb.append(text);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        @Override public void edited(int line, int removed, int added) {
+            int delta = added - removed;
+            boolean pending = valid < count;
+            if (!pending) {
+                reach = frontier;
+                reachState = frontierState;
+            }
+            if (reach > line + removed) reach += delta;
+            else if (reach > line) reach = line;
+
+            // the checkpoints in the edited lines are dropped, and the following ones are shifted
+            int i = after(line);
+            int j = after(line + removed);
+            System.arraycopy(marks, j, marks, i, count - j);
+            System.arraycopy(states, j, states, i, count - j);
+            count -= j - i;
+            for (int k = i; k < count; k++) marks[k] += delta;
+            valid = Math.min(valid, i);
+            if (frontier > line) {
+                frontier = marks[valid - 1];
+                frontierState = states[valid - 1];
+            }
+            int shiftedDirtyTo = (dirtyTo > line + removed) ? dirtyTo + delta : dirtyTo;
+            dirtyTo = pending ? Math.max(shiftedDirtyTo, line + added) : line + added;
+            if (target > line + removed) target += delta;
+            if (lastLine >= line) lastLine = -1;
+
+            if (delta == 0) {
+                for (int k = 0; k < CACHE_LINES; k++) {
+                    if (cacheLines[k] >= line && cacheLines[k] <= line + removed) cacheLines[k] = -1;
+                }
+                return;
+            }
+            Arrays.fill(spareLines, -1);
+            Arrays.fill(spareSpans, null);
+            for (int k = 0; k < CACHE_LINES; k++) {
+                int l = cacheLines[k];
+                if (l < 0 || (l >= line && l <= line + removed)) continue;
+                if (l > line + removed) l += delta;
+                int slot = l & (CACHE_LINES - 1);
+                spareLines[slot] = l;
+                spareSpans[slot] = cacheSpans[k];
+                spareStates[slot] = cacheStates[k];
+                spareGuessed[slot] = cacheGuessed[k];
             }
+            int[] lines = cacheLines; cacheLines = spareLines; spareLines = lines;
+            int[][] spans = cacheSpans; cacheSpans = spareSpans; spareSpans = spans;
+            int[] entries = cacheStates; cacheStates = spareStates; spareStates = entries;
+            boolean[] guessed = cacheGuessed; cacheGuessed = spareGuessed; spareGuessed = guessed;
+        }
+
+        /**
+         * Tokenize the line, from the state entering it.
+         * The state is guessed if the line is far below the lexed lines.
+         */
+        private int[] tokenize(int line) {
+            int from, state;
+            boolean guessed = false;
+            if (line == lastLine + 1) {
+                from = line;
+                state = lastState;
+                guessed = lastGuessed;
+            } else if (line >= frontier) {
+                from = frontier;
+                state = frontierState;
+            } else {
+                int i = after(line) - 1;
+                from = marks[i];
+                state = states[i];
+            }
+            if (line - from > CHECKPOINT_LINES) {
+                // from a checkpoint left from before the edits, or from a few lines above
+                int i = after(line) - 1;
+                if (marks[i] > frontier && line - marks[i] <= CHECKPOINT_LINES) {
+                    from = marks[i];
+                    state = states[i];
+                } else {
+                    from = line - CHECKPOINT_LINES;
+                    state = Tokenizer.NORMAL;
+                }
+                guessed = true;
+            }
+            CharSequence cs = session.cursor();
+            int head = session.lineStartPos(from);
+            for (int l = from; l < line; l++) {
+                int tail = session.lineStartPos(l + 1) - 1;
+                state = tokenizer.scan(cs, head, tail, state, NONE);
+                head = tail + 1;
+            }
+            int tail = (line < session.lineCount() - 1) ? session.lineStartPos(line + 1) - 1 : cs.length();
+            collected.clear();
+            collectedHead = head;
+            lastState = tokenizer.scan(cs, head, tail, state, collector);
+            lastLine = line;
+            lastGuessed = guessed;
+
+            int[] ret = collected.toArray();
+            int slot = line & (CACHE_LINES - 1);
+            cacheLines[slot] = line;
+            cacheSpans[slot] = ret;
+            cacheStates[slot] = state;
+            cacheGuessed[slot] = guessed;
+            return ret;
+        }
+
+        /**
+         * Lex the lines from the frontier up to the line, until the deadline.
+         */
+        private void advance(int to, long deadline) {
+            int lines = session.lineCount();
+            to = Math.min(to, lines);
+            if (frontier >= to) return;
+            CharSequence cs = session.cursor();
+            int line = frontier;
+            int state = frontierState;
+            int head = session.lineStartPos(line);
+            while (line < to) {
+                int tail = (line < lines - 1) ? session.lineStartPos(line + 1) - 1 : cs.length();
+                state = tokenizer.scan(cs, head, tail, state, NONE);
+                head = tail + 1;
+                line++;
+                if (line >= lines) break;
+                verify(line, state);
+                if (checkpoint(line, state)) {
+                    // the states are the same as before the edits from here
+                    for (int k = 0; k < CACHE_LINES; k++) {
+                        if (cacheGuessed[k] && cacheLines[k] > line && cacheLines[k] < reach) drop(k);
+                    }
+                    if (lastGuessed) lastLine = -1;
+                    line = reach;
+                    state = reachState;
+                    if (line >= to) break;
+                    head = session.lineStartPos(line);
+                }
+                if ((line & 255) == 0 && System.nanoTime() > deadline) break;
+            }
+            frontier = line;
+            frontierState = state;
+        }
+
+        /**
+         * Check the spans cached for the line against the state entering it.
+         */
+        private void verify(int line, int state) {
+            if (lastGuessed && line == lastLine + 1) {
+                if (lastState == state) lastGuessed = false;
+                else lastLine = -1;
+            }
+            int slot = line & (CACHE_LINES - 1);
+            if (cacheLines[slot] != line) return;
+            if (cacheStates[slot] == state) cacheGuessed[slot] = false;
+            else drop(slot);
+        }
+
+        /**
+         * Record the state entering the line, lexed after the last valid checkpoint.
+         * @return {@code true} if the state is the same as the one left from before the edits
+         */
+        private boolean checkpoint(int line, int state) {
+            if (valid < count && marks[valid] == line) {
+                if (line > dirtyTo && states[valid] == state) {
+                    valid = count;
+                    return true;
+                }
+                states[valid++] = state;
+            } else if (line - marks[valid - 1] >= CHECKPOINT_LINES) {
+                if (count == marks.length) {
+                    marks = Arrays.copyOf(marks, count * 2);
+                    states = Arrays.copyOf(states, count * 2);
+                }
+                System.arraycopy(marks, valid, marks, valid + 1, count - valid);
+                System.arraycopy(states, valid, states, valid + 1, count - valid);
+                marks[valid] = line;
+                states[valid] = state;
+                valid++;
+                count++;
+            }
+            return false;
+        }
+
+        /**
+         * Drop the spans tokenized from a wrong guess, which may be shown.
+         */
+        private void drop(int slot) {
+            cacheLines[slot] = -1;
+            cacheSpans[slot] = null;
+            stale = true;
+        }
+
+        /**
+         * Get the index of the first checkpoint after the line.
+         */
+        private int after(int line) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (marks[mid] <= line) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Input method editing palette.
+     */
+    static class ImePalette extends Region {
+
+        private TextArea textArea;
+        private Text palette;
+        private Text original;
+
+        public ImePalette(TextArea textArea) {
+            this.textArea = textArea;
+            this.palette  = createText("", Color.WHITESMOKE);
+            this.original = createText("", Color.WHITESMOKE);
+            palette.setUnderline(true);
+            setVisible(false);
+            setBackground(new Background(new BackgroundFill(Settings.background, null, null)));
+            getChildren().setAll(palette, original);
+            textArea.imeOn.addListener((observable, oldValue, newValue) -> handle(newValue));
+        }
+
+        private void handle(boolean imeOn) {
+            setVisible(imeOn);
+            if (imeOn) {
+                original.setText(textArea.session.getLineRight(textArea.viewportColSize()));
+                PathElement[] shape = textArea.caretShape(textArea.textIndexOf(textArea.session.getPosition()));
+                setLayoutX(getPathMinX(shape));
+                setLayoutY(getPathMinY(shape) + palette.getBaselineOffset());
+            } else {
+                original.setText("");
+                palette.setText("");
+            }
+        }
+
+        public void setText(String text) {
+            palette.setText(text);
+            original.setLayoutX(palette.getLayoutBounds().getWidth());
+        }
+    }
+
+    /**
+     * Query input of the search, shown while searching.
+     */
+    static class FindBar extends Region {
+
+        private final Text label;
+        private final StringBuilder query = new StringBuilder();
+        private final StringBuilder replacement = new StringBuilder();
+        /** {@code true} while the replacement is edited instead of the query. */
+        private boolean replacing = false;
+        private boolean regex = false;
+        private Finder finder;
+        private String status = "";
+
+        public FindBar() {
+            this.label = createText("", Color.WHITESMOKE);
+            label.setTextOrigin(VPos.TOP);
+            label.relocate(6, 2);
+            setPadding(new Insets(0, 6, 2, 0));
+            setVisible(false);
+            setBackground(new Background(new BackgroundFill(Color.web("#45484a"), null, null)));
+            getChildren().add(label);
+        }
+
+        public void open() {
+            setVisible(true);
+            update();
+        }
+
+        public void close() {
+            setVisible(false);
+        }
+
+        public boolean on() {
+            return isVisible();
+        }
+
+        public void append(String str) {
+            if (replacing) {
+                replacement.append(str);
+                label.setText(labelText());
+            } else {
+                query.append(str);
+                update();
+            }
+        }
+
+        public void backSpace() {
+            StringBuilder sb = replacing ? replacement : query;
+            if (sb.length() > 0) sb.setLength(sb.length() - 1);
+            if (replacing) label.setText(labelText());
+            else update();
+        }
+
+        /**
+         * Switch the input between the query and the replacement.
+         */
+        public void toggleField() {
+            replacing = !replacing;
+            label.setText(labelText());
+        }
+
+        public boolean replacing() {
+            return replacing;
+        }
+
+        public String replacement() {
+            return replacement.toString();
+        }
+
+        public void toggleRegex() {
+            regex = !regex;
+            update();
+        }
+
+        /**
+         * Get the finder of the query.
+         * @return the finder, or {@code null} if the query is empty or an invalid regular expression
+         */
+        public Finder finder() {
+            return finder;
+        }
+
+        public void notFound() {
+            label.setFill(Color.SALMON);
+        }
+
+        /**
+         * Show the number of the matches.
+         * @param current the index of the current match from 1, or 0 if unknown
+         * @param count the number of the matches found, or -1 to hide
+         * @param done {@code false} if the matches are still being counted
+         */
+        public void status(int current, int count, boolean done) {
+            this.status = (count < 0) ? ""
+                : "  " + (current > 0 ? current + "/" : "") + count + (done ? "" : "+");
+            label.setText(labelText());
+        }
+
+        /**
+         * Show the number of the matches found before the count failed.
+         * @param current the index of the current match from 1, or 0 if unknown
+         * @param count the number of the matches found
+         * @param e the failure of the count
+         */
+        public void failed(int current, int count, Throwable e) {
+            this.status = "  " + (current > 0 ? current + "/" : "") + count
+                + "? [Count failed:" + e.getClass().getSimpleName() + "]";
+            label.setText(labelText());
+        }
+
+        private String labelText() {
+            String str = (regex ? "Regex: " : "Find: ") + query + (replacing ? "" : "|") + status;
+            return (replacing || replacement.length() > 0)
+                ? str + "  Replace: " + replacement + (replacing ? "|" : "")
+                : str;
+        }
+
+        private void update() {
+            try {
+                finder = (query.length() == 0) ? null
+                    : regex ? Finder.regex(query.toString()) : Finder.literal(query.toString());
+            } catch (PatternSyntaxException e) {
+                finder = null;
+            }
+            status = "";
+            label.setText(labelText());
+            label.setFill((finder == null && query.length() > 0) ? Color.SALMON : Color.WHITESMOKE);
+        }
+    }
+
+    /**
+     * Backend buffer of text to be manipulated.
+     */
+    public static class SessionBuffer {
+
+        /** Size of the segments of a parallel search. */
+        static final int SEGMENT_SIZE = 1 << 20;
+        /** Overlap of the segments of a parallel search by a regular expression. */
+        static final int SEGMENT_OVERLAP = 1 << 16;
+        /** Text buffer. */
+        private final PieceTable pt;
+        /** Tab size. */
+        private final int tabSize;
+        /** Position of caret. [0..pt.length()] */
+        private int position = 0;
+        /** Target file. */
+        private File file;
+
+        private final EditLog undo = new EditLog(EditLog.DEFAULT_BUDGET);
+        private final EditLog redo = new EditLog(EditLog.DEFAULT_BUDGET);
+        /** The last undo entry can be extended by the next adjacent edit of the same kind. */
+        private boolean coalesce = false;
+        /** Journal of the edits, which is null if the edits are not journaled. */
+        private Journal journal;
+        /** The undo history is in the journal, and is restored when it is first used. */
+        private boolean historyPending = false;
+        /** Count of the changes of the text, to tell the changes after a snapshot. */
+        private long modCount = 0;
+        /** The count of the changes when the journal is attached. */
+        private long journalMod = 0;
+        /** The count of the changes when the text is loaded or saved. */
+        private long savedMark = 0;
+        private final List<EditListener> listeners = new ArrayList<>();
+        /** Reader of the chunks of the text, reused by the scans on the application thread. */
+        private final PieceTable.CharScanner scanner;
+        /**
+         * The carets of the multi-caret editing, as pairs of the anchor and the caret, ordered by
+         * their ranges which do not overlap. Empty for the single caret at the position.
+         */
+        private final IntArray carets = new IntArray();
+
+        public SessionBuffer(CharSequence text, int tabSize) {
+            this.pt = new PieceTable(text);
+            this.scanner = new PieceTable.CharScanner(pt);
+            this.tabSize = tabSize;
+        }
+
+        public void addListener(EditListener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(EditListener listener) {
+            listeners.remove(listener);
+        }
+
+        private void fire(int line, int removed, int added) {
+            modCount++;
+            // the carets are set again after a batched edit, any other edit leaves the single caret
+            carets.clear();
+            for (EditListener listener : listeners) listener.edited(line, removed, added);
+        }
+
+        public void clear() {
+            file = null;
+            int removed = pt.lineFeeds();
+            pt.clear();
+            position = 0;
+            undo.clear();
+            redo.clear();
+            coalesce = false;
+            if (journal != null) journal.close();
+            journal = null;
+            historyPending = false;
+            fire(0, removed, 0);
+            savedMark = modCount;
+        }
+
+        public void add(String text) {
+            if (text.isEmpty()) return;
+            restoreHistory();
+            int pos = position;
+            add(pos, text);
+            IntArray pieces = pt.pieces(pos, position);
+            if (coalesce && undo.removed() == 0 && undo.pos() + undo.added() == pos && text.indexOf('\n') < 0) {
+                // typing continues the last insert
+                IntArray addedPieces = undo.addedPieces();
+                int start = undo.pos();
+                int len = undo.added();
+                undo.pop();
+                undo.push(start, 0, len + text.length(), new IntArray(), PieceTable.concat(addedPieces, pieces));
+                if (journaled(len + text.length())) journal(Journal.AMEND, start, "", "", text);
+            } else {
+                undo.push(pos, 0, text.length(), new IntArray(), pieces);
+                if (journaled(text.length())) journal(Journal.EDIT, pos, "", text, "");
+            }
+            redo.clear();
+            coalesce = text.indexOf('\n') < 0;
+        }
+
+        private void add(int pos, String text) {
+            int line = pt.lineAt(pos);
+            pt.insert(pos, text);
+            position = pos + text.length();
+            fire(line, 0, pt.lineAt(position) - line);
+        }
+
+        public void remove(int fromPos, int toPos) {
+            int min = fitInRange(Math.min(fromPos, toPos));
+            int max = fitInRange(Math.max(fromPos, toPos));
+            if (min == max) return;
+            restoreHistory();
+            IntArray pieces = pt.pieces(min, max);
+            String removedText = journaled(max - min) ? pt.substring(min, max) : "";
+            boolean lineFeed = pt.lineAt(max) != pt.lineAt(min);
+            if (coalesce && !lineFeed && undo.added() == 0 && (undo.pos() == max || undo.pos() == min)) {
+                // back spaces or deletes continue the last delete
+                IntArray removedPieces = undo.removedPieces();
+                int len = undo.removed();
+                boolean backward = undo.pos() == max;
+                undo.pop();
+                undo.push(min, len + max - min, 0, backward
+                    ? PieceTable.concat(pieces, removedPieces)
+                    : PieceTable.concat(removedPieces, pieces), new IntArray());
+                journal(Journal.AMEND, min, backward ? removedText : "", backward ? "" : removedText, "");
+            } else {
+                undo.push(min, max - min, 0, pieces, new IntArray());
+                journal(Journal.EDIT, min, removedText, "", "");
+            }
+            redo.clear();
+            coalesce = !lineFeed;
+            delete(min, max - min);
+        }
+
+        private void delete(int pos, int length) {
+            setPosition(pos);
+            int line = pt.lineAt(pos);
+            int removed = pt.lineAt(pos + length) - line;
+            pt.delete(pos, length);
+            fire(line, removed, 0);
+        }
+
+        public void undo() {
+            restoreHistory();
+            if (undo.isEmpty()) return;
+            playback(undo, redo);
+            journal(Journal.UNDO);
+        }
+
+        public void redo() {
+            restoreHistory();
+            if (redo.isEmpty()) return;
+            playback(redo, undo);
+            journal(Journal.REDO);
+        }
+
+        public int getUndoPos() {
+            restoreHistory();
+            return undo.isEmpty() ? -1 : undo.pos() + undo.added();
+        }
+        public int getRedoPos() {
+            restoreHistory();
+            return redo.isEmpty() ? -1 : redo.pos();
+        }
+
+        private void playback(EditLog from, EditLog to) {
+            int pos = from.pos();
+            int line = pt.lineAt(pos);
+            int before = pt.lineAt(pos + from.added()) - line;
+            swap(from, to);
+            fire(line, before, pt.lineAt(position) - line);
+        }
+
+        private void swap(EditLog from, EditLog to) {
+            // put the removed pieces back in place of the added text
+            int pos = from.pos();
+            pt.delete(pos, from.added());
+            pt.insertPieces(pos, from.removedPieces());
+            position = pos + from.removed();
+            from.moveInverseTo(to);
+            coalesce = false;
+        }
+
+        /**
+         * Attach the journal of the file, which was opened with the content of the file.
+         * The edits made after the last save are restored at once, and the undo history
+         * before it is restored lazily, when it is first used.
+         * @param journal the journal
+         * @param mark the mark taken with the content of the file
+         * @return {@code true} if unsaved edits are restored
+         */
+        public boolean attach(Journal journal, long mark) {
+            if (mark != modCount || this.journal != null || file == null || !undo.isEmpty() || !redo.isEmpty()) {
+                // edited or reloaded while the journal was being opened
+                journal.close();
+                return false;
+            }
+            this.journal = journal;
+            journalMod = modCount;
+            if (journal.edits() == journal.savedSeq()) {
+                historyPending = journal.edits() > 0;
+                return false;
+            }
+            int lines = pt.lineFeeds();
+            replay(journal.records(), journal.savedSeq());
+            fire(0, lines, pt.lineFeeds());
+            journalMod = modCount;
+            return true;
+        }
+
+        /**
+         * Get the mark of the current text, to be given with the snapshot of it.
+         * @return the mark
+         */
+        public long mark() {
+            return modCount;
+        }
+
+        private void restoreHistory() {
+            if (!historyPending) return;
+            historyPending = false;
+            replay(journal.records(), Integer.MAX_VALUE);
+        }
+
+        /**
+         * Replay the records of the journal to the undo history.
+         * @param records the records
+         * @param applyFrom the number of the edits already applied to the text
+         */
+        private void replay(List<Journal.Record> records, int applyFrom) {
+            int seq = 0;
+            for (Journal.Record r : records) {
+                if (r.kind != Journal.SAVED) replay(r, seq++ >= applyFrom);
+            }
+            coalesce = false;
+        }
+
+        private void replay(Journal.Record r, boolean apply) {
+            switch (r.kind) {
+                case Journal.EDIT -> {
+                    IntArray removedPieces = pt.stash(r.a);
+                    if (apply) {
+                        pt.delete(r.pos, r.a.length());
+                        pt.insert(r.pos, r.b);
+                        position = r.pos + r.b.length();
+                    }
+                    undo.push(r.pos, r.a.length(), r.b.length(), removedPieces,
+                        apply ? pt.pieces(r.pos, r.pos + r.b.length()) : pt.stash(r.b));
+                    redo.clear();
+                }
+                case Journal.AMEND -> {
+                    if (undo.isEmpty()) return;
+                    int added = undo.added();
+                    int removed = undo.removed() + r.a.length() + r.b.length();
+                    IntArray removedPieces = PieceTable.concat(
+                        PieceTable.concat(pt.stash(r.a), undo.removedPieces()), pt.stash(r.b));
+                    if (apply) {
+                        pt.delete(r.pos, r.a.length() + r.b.length());
+                        pt.insert(r.pos + added, r.c);
+                        position = r.pos + added + r.c.length();
+                    }
+                    IntArray addedPieces = PieceTable.concat(undo.addedPieces(), apply
+                        ? pt.pieces(r.pos + added, r.pos + added + r.c.length()) : pt.stash(r.c));
+                    undo.pop();
+                    undo.push(r.pos, removed, added + r.c.length(), removedPieces, addedPieces);
+                }
+                case Journal.UNDO -> {
+                    if (undo.isEmpty()) return;
+                    if (apply) swap(undo, redo);
+                    else undo.moveInverseTo(redo);
+                }
+                case Journal.REDO -> {
+                    if (redo.isEmpty()) return;
+                    if (apply) swap(redo, undo);
+                    else redo.moveInverseTo(undo);
+                }
+                case Journal.REDO_ENTRY -> redo.push(r.pos, r.a.length(), r.b.length(), pt.stash(r.a), pt.stash(r.b));
+                default -> { }
+            }
+        }
+
+        /**
+         * Get whether the edit of the length is journaled, the journal is dropped if it is too large.
+         * @param length the length of the text of the edit
+         * @return {@code true} if the edit is journaled
+         */
+        private boolean journaled(int length) {
+            if (journal != null && length > Journal.MAX_TEXT) {
+                journal.delete();
+                journal = null;
+            }
+            return journal != null;
+        }
+
+        private void journal(byte kind, int pos, String a, String b, String c) {
+            if (journal == null) return;
+            try {
+                journal.edit(kind, pos, a, b, c);
+            } catch (RuntimeException e) {
+                journal.delete();
+                journal = null;
+            }
+        }
+
+        private void journal(byte kind) {
+            if (journal == null) return;
+            try {
+                journal.edit(kind);
+            } catch (RuntimeException e) {
+                journal.delete();
+                journal = null;
+            }
+        }
+
+        public void delete() {
+            if (position >= pt.length()) return;
+            int n = (pt.charAt(position) == '\r' &&
+                    position + 1 < pt.length() && pt.charAt(position + 1) == '\n') ? 2 : 1;
+            remove(position, position + n);
+        }
+
+        public void backSpace() {
+            if (position <= 0) return;
+            int n = (pt.charAt(position - 1) == '\n' &&
+                     position - 2 >= 0 && pt.charAt(position - 2) == '\r') ? 2 : 1;
+            remove(position - n, position);
+        }
+
+        public void forward(int n) {
+            setPosition(position + n);
+        }
+
+        public void back(int n) {
+            setPosition(position - n);
+        }
+
+        public void moveToHeadOfLine() {
+            position = getHeadOfLinePos(position);
+        }
+
+        public void moveToTailOfLine() {
+            position = getTailOfLinePos(position);
+        }
+
+        public void up(int line) {
+            if (line <= 0) return;
+            int current = lineAt(position);
+            if (current == 0) return;
+            setPosition(pt.lineStart(Math.max(current - line, 0)));
+        }
+
+        public void down(int line) {
+            if (line <= 0) return;
+            if (isLastLine(position)) return;
+            setPosition(pt.lineStart(lineAt(position) + line));
+        }
+
+        public int getVisualColSize() {
+            return visualCol(position);
+        }
+
+        /**
+         * Get the visual column of the position in its line.
+         * @param pos the position
+         * @return the visual column
+         */
+        public int visualCol(int pos) {
+            int head = getHeadOfLinePos(pos);
+            int tabs = countCharacter(head, pos, '\t');
+            return pos - head - tabs + tabs * tabSize;
+        }
+
+        /**
+         * Get the position at the visual column of the line, before a tab spanning the column.
+         * @param line the line index
+         * @param col the visual column
+         * @return the position, the tail of the line if the line is shorter
+         */
+        public int colPos(int line, int col) {
+            CharSequence cs = pt.cursor();
+            int tail = lineTail(line);
+            for (int i = pt.lineStart(line), count = col; i < tail; i++) {
+                count -= (cs.charAt(i) == '\t') ? tabSize : 1;
+                if (count < 0) return i;
+            }
+            return tail;
+        }
+
+        public void visualColInLine(int visualColSize) {
+            if (visualColSize <= 0) return;
+            int count = visualColSize;
+            int tail = getTailOfLinePos(position);
+            for (int i = getHeadOfLinePos(position); i < tail; i++) {
+                count -= (pt.charAt(i) == '\t') ? tabSize : 1;
+                if (count < 0) {
+                    position = i;
+                    return;
+                }
+            }
+            position = tail;
+        }
+
+        public void setPosition(int pos) {
+            position = fitInRange(pos);
+        }
+
+        public String getLines(int pos, int nLine) {
+            if (nLine <= 0) return "";
+            return text(getHeadOfLinePos(pos), pt.lineStart(lineAt(pos) + nLine));
+        }
+
+        /**
+         * Get the lines from the position, each clipped to the window of the visual columns.
+         * A char crossing the left edge of the window is shown as spaces, so that all the lines
+         * start at the same column, and the rest of a line right of the window is not read.
+         * @param pos the position in the first line
+         * @param nLine the number of the lines
+         * @param fromCol the first visual column of the window
+         * @param cols the number of the visual columns of the window
+         * @param map the map to which the rows are added
+         * @return the clipped lines
+         */
+        public String getLines(int pos, int nLine, int fromCol, int cols, RowMap map) {
+            map.clear();
+            StringBuilder sb = new StringBuilder();
+            CharSequence cs = pt.cursor();
+            int line = lineAt(pos);
+            map.firstLine = line;
+            map.firstSub = 0;
+            for (int i = 0; i < nLine && line <= pt.lineFeeds(); i++, line++) {
+                int head = pt.lineStart(line);
+                int tail = (line == pt.lineFeeds()) ? pt.length() : pt.lineStart(line + 1) - 1;
+                int p = head;
+                int col = 0;
+                while (p < tail && col < fromCol) col += (cs.charAt(p++) == '\t') ? tabSize : 1;
+                for (int c = fromCol; c < col; c++) sb.append(' ');
+                map.add(line, p, sb.length(), p - head);
+                while (p < tail && col < fromCol + cols) {
+                    char ch = cs.charAt(p++);
+                    sb.append(ch);
+                    col += (ch == '\t') ? tabSize : 1;
+                }
+                map.end(p);
+                if (line < pt.lineFeeds()) sb.append('\n');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Get the visual rows from the line of the position, the lines wrapped at the visual columns.
+         * @param pos the position in the first line
+         * @param skipRows the number of the rows of the first line above the viewport
+         * @param nRows the number of the rows
+         * @param cols the number of the visual columns of a row
+         * @param map the map to which the rows are added
+         * @return the rows separated by line feeds
+         */
+        public String getWrappedLines(int pos, int skipRows, int nRows, int cols, RowMap map) {
+            map.clear();
+            StringBuilder sb = new StringBuilder();
+            CharSequence cs = pt.cursor();
+            int line = lineAt(pos);
+            map.firstLine = line;
+            map.firstSub = skipRows;
+            for (int row = -skipRows; row < nRows && line <= pt.lineFeeds(); line++) {
+                int head = pt.lineStart(line);
+                int tail = lineTail(line);
+                int p = head;
+                do {
+                    int end = rowEnd(cs, p, tail, cols);
+                    if (row >= 0) {
+                        if (row > 0) sb.append('\n');
+                        map.add(line, p, sb.length(), p - head);
+                        sb.append(cs, p, end);
+                        map.end(end);
+                    }
+                    row++;
+                    p = end;
+                } while (p < tail && row < nRows);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Get the number of the rows of the line wrapped at the visual columns.
+         * @param line the line index
+         * @param cols the number of the visual columns of a row
+         * @return the number of the rows
+         */
+        public int wrapCount(int line, int cols) {
+            CharSequence cs = pt.cursor();
+            int tail = lineTail(line);
+            int rows = 1;
+            for (int p = rowEnd(cs, pt.lineStart(line), tail, cols); p < tail; p = rowEnd(cs, p, tail, cols)) rows++;
+            return rows;
+        }
+
+        /**
+         * Get the row of the position in its line wrapped at the visual columns.
+         * @param pos the position
+         * @param cols the number of the visual columns of a row
+         * @return the row in the line
+         */
+        public int wrapRow(int pos, int cols) {
+            return wrapped(pos, cols)[0];
+        }
+
+        /**
+         * Get the visual column of the position in its row.
+         * @param pos the position
+         * @param cols the number of the visual columns of a row
+         * @return the visual column in the row
+         */
+        public int wrapCol(int pos, int cols) {
+            int start = wrapped(pos, cols)[1];
+            int tabs = countCharacter(start, pos, '\t');
+            return pos - start - tabs + tabs * tabSize;
+        }
+
+        /**
+         * Get the position at the visual column of the row of the line wrapped at the visual columns.
+         * A column right of a row which is not the last of the line is taken as its last char.
+         * @param line the line index
+         * @param row the row in the line, the last row if the line has fewer rows
+         * @param col the visual column
+         * @param cols the number of the visual columns of a row
+         * @return the position
+         */
+        public int wrapPos(int line, int row, int col, int cols) {
+            CharSequence cs = pt.cursor();
+            int tail = lineTail(line);
+            int p = pt.lineStart(line);
+            int end = rowEnd(cs, p, tail, cols);
+            for (int i = 0; i < row && end < tail; i++) {
+                p = end;
+                end = rowEnd(cs, p, tail, cols);
+            }
+            for (int count = col; p < end; p++) {
+                count -= (cs.charAt(p) == '\t') ? tabSize : 1;
+                if (count < 0) return p;
+            }
+            if (end == tail) return end;
+            return Character.isLowSurrogate(cs.charAt(end - 1)) ? end - 2 : end - 1;
+        }
+
+        /** Get the row of the position in its line, and the position of the head of the row. */
+        private int[] wrapped(int pos, int cols) {
+            CharSequence cs = pt.cursor();
+            int line = lineAt(pos);
+            int tail = lineTail(line);
+            int p = pt.lineStart(line);
+            int row = 0;
+            for (int end = rowEnd(cs, p, tail, cols); pos >= end && end < tail; end = rowEnd(cs, p, tail, cols)) {
+                p = end;
+                row++;
+            }
+            return new int[] { row, p };
+        }
+
+        /**
+         * Get the end of the row from the position, a char which does not fit in the rest
+         * of the row goes to the next row. A surrogate pair is not split.
+         */
+        private int rowEnd(CharSequence cs, int p, int tail, int cols) {
+            int col = 0;
+            for (; p < tail; p++) {
+                char ch = cs.charAt(p);
+                int w = (ch == '\t') ? tabSize : 1;
+                if (col > 0 && col + w > cols && !Character.isLowSurrogate(ch)) break;
+                col += w;
+            }
+            return p;
+        }
+
+        private int lineTail(int line) {
+            return (line == pt.lineFeeds()) ? pt.length() : pt.lineStart(line + 1) - 1;
+        }
+
+        /**
+         * Get the text right of the caret in the line.
+         * @param limit the maximum number of the chars
+         * @return the text
+         */
+        public String getLineRight(int limit) {
+            return text(position, Math.min(getTailOfLinePos(position), position + limit));
+        }
+
+        public int consecutiveLeft(int pos) {
+            return scanner.runStart(fitInRange(pos));
+        }
+
+        public int consecutiveRight(int pos) {
+            return scanner.runEnd(fitInRange(pos));
+        }
+
+        public int countLines(int fromPos, int toPos) {
+            return Math.abs(lineAt(toPos) - lineAt(fromPos));
+        }
+
+        /**
+         * Get the line index at the position.
+         * @param pos the position
+         * @return the line index(0 origin)
+         */
+        public int lineAt(int pos) {
+            return pt.lineAt(fitInRange(pos));
+        }
+
+        /**
+         * Get the head position of the line.
+         * @param line the line index(0 origin)
+         * @return the head position of the line, or the max position if the line does not exist
+         */
+        public int lineStartPos(int line) {
+            return pt.lineStart(line);
+        }
+
+        /**
+         * Get the number of lines.
+         * @return the number of lines
+         */
+        public int lineCount() {
+            return pt.lineFeeds() + 1;
+        }
+
+        private int countCharacter(int fromPos, int toPos, char ch) {
+            return scanner.count(fitInRange(Math.min(fromPos, toPos)), fitInRange(Math.max(fromPos, toPos)), ch);
+        }
+
+        public String text(int fromPos, int toPos) {
+            return pt.substring(fitInRange(Math.min(fromPos, toPos)), fitInRange(Math.max(fromPos, toPos)));
+        }
+
+        /**
+         * Find the first match at or after the position, wrapping around to the head of the text.
+         * @param finder the finder, which holds the match if found
+         * @param fromPos the position to start the search
+         * @return {@code true} if found
+         */
+        public boolean find(Finder finder, int fromPos) {
+            CharSequence cs = pt.cursor();
+            int from = fitInRange(fromPos);
+            return finder.find(cs, from, pt.length()) || (from > 0 && finder.find(cs, 0, pt.length()));
+        }
+
+        /**
+         * Find the next match at or after the caret.
+         * @param finder the finder, which holds the match if found
+         * @return {@code true} if found
+         */
+        public boolean findNext(Finder finder) {
+            if (!find(finder, position)) return false;
+            if (finder.start() == position && finder.end() == position) {
+                // step over the empty match at the caret
+                return position < maxPos() && find(finder, position + 1);
+            }
+            return true;
+        }
+
+        /**
+         * Find all matches in the text, searching segments of the text in parallel.
+         * Each segment is searched up to the overlap beyond its end, so that the matches starting in the
+         * segment are found. The matches are passed to the consumer in order on the calling thread,
+         * as soon as the segment and the ones before it are done.
+         * Matches of a regular expression longer than {@link #SEGMENT_OVERLAP} may be cut at a segment boundary.
+         * @param text the snapshot of the text
+         * @param finder the finder
+         * @param consumer the consumer of the matches
+         * @param cancelled returns {@code true} to stop the search
+         * @return the number of matches
+         */
+        static int findAll(PieceTable text, Finder finder, Finder.MatchConsumer consumer, BooleanSupplier cancelled) {
+            int length = text.length();
+            int overlap = finder.overlap(SEGMENT_OVERLAP);
+            int n = (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+            List<ForkJoinTask<IntArray>> segments = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int from = i * SEGMENT_SIZE;
+                int to = Math.min(from + SEGMENT_SIZE, length);
+                segments.add(ForkJoinPool.commonPool().submit(() -> cancelled.getAsBoolean()
+                    ? new IntArray() : findInSegment(text, finder.copy(), from, to, overlap)));
+            }
+            CharSequence cs = text.cursor();
+            int count = 0;
+            int next = 0;
+            try {
+                for (int i = 0; i < n && !cancelled.getAsBoolean(); i++) {
+                    IntArray found = segments.get(i).join();
+                    segments.set(i, null);
+                    int segmentEnd = Math.min((i + 1) * SEGMENT_SIZE, length);
+                    int limit = Math.min(segmentEnd + overlap, length);
+                    int bound = startBound(segmentEnd, length);
+                    for (int k = 0; k < found.size(); ) {
+                        if (found.get(k) >= next) {
+                            consumer.accept(found.get(k), found.get(k + 1));
+                            count++;
+                            next = nextSearchPos(found.get(k), found.get(k + 1));
+                            k += 2;
+                            continue;
+                        }
+                        // the match overlaps the last one, search again from there until both agree
+                        for (;;) {
+                            if (!finder.find(cs, next, limit) || finder.start() >= bound) {
+                                k = found.size();
+                                break;
+                            }
+                            while (k < found.size() && found.get(k) < finder.start()) k += 2;
+                            if (k < found.size() && found.get(k) == finder.start()) break;
+                            consumer.accept(finder.start(), finder.end());
+                            count++;
+                            next = nextSearchPos(finder.start(), finder.end());
+                        }
+                    }
+                }
+            } finally {
+                for (ForkJoinTask<IntArray> segment : segments) {
+                    if (segment != null) segment.cancel(false);
+                }
+            }
+            return count;
+        }
+
+        private static IntArray findInSegment(PieceTable text, Finder finder, int from, int to, int overlap) {
+            IntArray found = new IntArray();
+            CharSequence cs = text.cursor();
+            int limit = Math.min(to + overlap, text.length());
+            int bound = startBound(to, text.length());
+            for (int pos = from; pos < bound && finder.find(cs, pos, limit) && finder.start() < bound; ) {
+                found.add(finder.start());
+                found.add(finder.end());
+                pos = nextSearchPos(finder.start(), finder.end());
+            }
+            return found;
+        }
+
+        /**
+         * Get the bound of the starts of the matches in the segment, the last segment takes an empty match at the end.
+         */
+        private static int startBound(int segmentEnd, int length) {
+            return (segmentEnd == length) ? length + 1 : segmentEnd;
+        }
+
+        private static int nextSearchPos(int start, int end) {
+            return (end > start) ? end : end + 1;
+        }
+
+        /**
+         * Replace all the matches in the text, as a single edit to be undone at once.
+         * @param finder the finder
+         * @param replacement the replacement, which can refer to the groups of a regular expression
+         * @return the number of the replaced matches
+         */
+        public int replaceAll(Finder finder, String replacement) {
+            IntArray starts = new IntArray();
+            IntArray ends = new IntArray();
+            List<String> texts = new ArrayList<>();
+            findAll(finder, 0, pt.length(), (s, e) -> {
+                starts.add(s);
+                ends.add(e);
+                texts.add(finder.expand(replacement));
+            });
+            int n = starts.size();
+            if (n == 0) return 0;
+            int from = starts.get(0);
+            int to = ends.get(n - 1);
+            int length = pt.length();
+            replace(starts, ends, texts::get);
+            if (position > to) position += pt.length() - length;
+            else if (position > from) position = from;
+            return n;
+        }
+
+        /**
+         * Replace the ranges with the texts in one pass over the pieces, recorded as a single edit.
+         * @param starts the start positions of the ranges, in ascending order without overlaps
+         * @param ends the end positions of the ranges
+         * @param texts the text for each range
+         * @return the end positions of the replaced texts
+         */
+        private IntArray replace(IntArray starts, IntArray ends, IntFunction<? extends CharSequence> texts) {
+            int n = starts.size();
+            int from = starts.get(0);
+            int to = ends.get(n - 1);
+            int line = pt.lineAt(from);
+            int removedLines = pt.lineAt(to) - line;
+            IntArray tails = new IntArray();
+            for (int i = 0, shift = 0; i < n; i++) {
+                int len = texts.apply(i).length();
+                tails.add(starts.get(i) + shift + len);
+                shift += len - (ends.get(i) - starts.get(i));
+            }
+            int toPos = tails.get(n - 1) + to - ends.get(n - 1);
+            restoreHistory();
+            IntArray removedPieces = pt.pieces(from, to);
+            String removedText = journaled(to - from) ? pt.substring(from, to) : "";
+            pt.replace(starts, ends, texts::apply);
+            undo.push(from, to - from, toPos - from, removedPieces, pt.pieces(from, toPos));
+            redo.clear();
+            if (journaled(toPos - from)) journal(Journal.EDIT, from, removedText, pt.substring(from, toPos), "");
+            coalesce = false;
+            fire(line, removedLines, pt.lineAt(toPos) - line);
+            return tails;
+        }
+
+        /**
+         * Get the number of the carets, 1 for the single caret.
+         * @return the number of the carets
+         */
+        public int caretCount() {
+            return Math.max(carets.size() / 2, 1);
+        }
+
+        public boolean multiCaret() {
+            return carets.size() > 0;
+        }
+
+        public int anchorAt(int i) {
+            return carets.size() == 0 ? position : carets.get(i * 2);
+        }
+
+        public int caretAt(int i) {
+            return carets.size() == 0 ? position : carets.get(i * 2 + 1);
+        }
+
+        /**
+         * Add a caret, which selects the range from the anchor. A caret overlapping
+         * the others is merged with them, and the position moves to the caret.
+         * @param anchor the anchor
+         * @param caret the caret
+         */
+        public void addCaret(int anchor, int caret) {
+            anchor = fitInRange(anchor);
+            caret = fitInRange(caret);
+            IntArray ranges = new IntArray();
+            if (carets.size() == 0) {
+                ranges.add(position);
+                ranges.add(position);
+            } else {
+                for (int i = 0; i < carets.size(); i++) ranges.add(carets.get(i));
+            }
+            int i = 0;
+            while (i < ranges.size() && Math.min(ranges.get(i), ranges.get(i + 1)) <= Math.min(anchor, caret)) i += 2;
+            carets.clear();
+            for (int j = 0; j < ranges.size(); j += 2) {
+                if (j == i) merge(anchor, caret);
+                merge(ranges.get(j), ranges.get(j + 1));
+            }
+            if (i == ranges.size()) merge(anchor, caret);
+            position = caret;
+            if (carets.size() == 2) carets.clear();
+        }
+
+        private void merge(int anchor, int caret) {
+            int n = carets.size();
+            if (n > 0) {
+                int a = carets.get(n - 2);
+                int c = carets.get(n - 1);
+                int min = Math.min(a, c);
+                int max = Math.max(a, c);
+                if (Math.min(anchor, caret) < max || Math.min(anchor, caret) == min
+                        || (anchor == caret && caret == max)) {
+                    // the latter caret wins its direction
+                    int from = Math.min(min, Math.min(anchor, caret));
+                    int to = Math.max(max, Math.max(anchor, caret));
+                    carets.set(n - 2, (caret < anchor) ? to : from);
+                    carets.set(n - 1, (caret < anchor) ? from : to);
+                    return;
+                }
+            }
+            carets.add(anchor);
+            carets.add(caret);
+        }
+
+        /**
+         * Select the columns of the lines between the anchor and the caret, with a caret in each line.
+         * @param anchor the position of a corner of the block
+         * @param caret the position of the opposite corner, where the caret goes
+         */
+        public void selectColumns(int anchor, int caret) {
+            anchor = fitInRange(anchor);
+            caret = fitInRange(caret);
+            int anchorCol = visualCol(anchor);
+            int caretCol = visualCol(caret);
+            int anchorLine = lineAt(anchor);
+            int caretLine = lineAt(caret);
+            carets.clear();
+            // in the order of the lines, so the ranges are in ascending order
+            for (int line = Math.min(anchorLine, caretLine); line <= Math.max(anchorLine, caretLine); line++) {
+                carets.add(colPos(line, anchorCol));
+                carets.add(colPos(line, caretCol));
+            }
+            position = caret;
+            if (carets.size() == 2 && anchor == caret) carets.clear();
+        }
+
+        public void clearCarets() {
+            carets.clear();
+        }
+
+        /**
+         * Replace the range of every caret with the text, as a single edit.
+         * @param texts the text for each caret
+         */
+        public void addAll(IntFunction<String> texts) {
+            IntArray starts = new IntArray();
+            IntArray ends = new IntArray();
+            for (int i = 0; i < caretCount(); i++) {
+                starts.add(Math.min(anchorAt(i), caretAt(i)));
+                ends.add(Math.max(anchorAt(i), caretAt(i)));
+            }
+            editAll(starts, ends, texts);
+        }
+
+        /**
+         * Delete the range of every caret, or the char before each caret without a range, as a single edit.
+         */
+        public void backSpaceAll() {
+            IntArray starts = new IntArray();
+            IntArray ends = new IntArray();
+            for (int i = 0; i < caretCount(); i++) {
+                int a = anchorAt(i);
+                int c = caretAt(i);
+                int end = Math.max(a, c);
+                int start = Math.min(a, c);
+                if (a == c && c > 0) {
+                    start = c - ((pt.charAt(c - 1) == '\n' && c - 2 >= 0 && pt.charAt(c - 2) == '\r')
+                        || (Character.isLowSurrogate(pt.charAt(c - 1)) && c - 2 >= 0
+                            && Character.isHighSurrogate(pt.charAt(c - 2))) ? 2 : 1);
+                }
+                // not into the range of the previous caret
+                if (i > 0) start = Math.max(start, ends.get(i - 1));
+                starts.add(start);
+                ends.add(end);
+            }
+            editAll(starts, ends, i -> "");
+        }
+
+        /**
+         * Delete the range of every caret, or the char after each caret without a range, as a single edit.
+         */
+        public void deleteAll() {
+            IntArray starts = new IntArray();
+            IntArray ends = new IntArray();
+            int n = caretCount();
+            for (int i = 0; i < n; i++) {
+                int a = anchorAt(i);
+                int c = caretAt(i);
+                int start = Math.min(a, c);
+                int end = Math.max(a, c);
+                if (a == c && c < pt.length()) {
+                    end = c + ((pt.charAt(c) == '\r' && c + 1 < pt.length() && pt.charAt(c + 1) == '\n')
+                        || (Character.isHighSurrogate(pt.charAt(c)) && c + 1 < pt.length()
+                            && Character.isLowSurrogate(pt.charAt(c + 1))) ? 2 : 1);
+                }
+                // not into the range of the next caret
+                if (i + 1 < n) end = Math.min(end, Math.min(anchorAt(i + 1), caretAt(i + 1)));
+                starts.add(start);
+                ends.add(end);
+            }
+            editAll(starts, ends, i -> "");
+        }
+
+        private void editAll(IntArray starts, IntArray ends, IntFunction<String> texts) {
+            int n = starts.size();
+            boolean changed = false;
+            for (int i = 0; i < n && !changed; i++) changed = starts.get(i) < ends.get(i) || !texts.apply(i).isEmpty();
+            if (!changed) return;
+            int primary = 0;
+            for (int i = 0; i < n; i++) if (caretAt(i) == position) primary = i;
+            IntArray tails = replace(starts, ends, texts);
+            position = tails.get(primary);
+            if (n == 1) return;
+            // the carets collapse to the ends of the texts, the carets coming together are merged
+            for (int i = 0; i < n; i++) {
+                int tail = tails.get(i);
+                if (carets.size() == 0 || carets.get(carets.size() - 1) != tail) {
+                    carets.add(tail);
+                    carets.add(tail);
+                }
+            }
+            if (carets.size() == 2) carets.clear();
+        }
+
+        /**
+         * Find all matches within the range.
+         * @param finder the finder
+         * @param fromPos the start position(inclusive)
+         * @param toPos the end position(exclusive)
+         * @param consumer the consumer of the matches
+         */
+        public void findAll(Finder finder, int fromPos, int toPos, Finder.MatchConsumer consumer) {
+            CharSequence cs = pt.cursor();
+            int to = fitInRange(toPos);
+            for (int pos = fitInRange(fromPos); pos <= to && finder.find(cs, pos, to); ) {
+                consumer.accept(finder.start(), finder.end());
+                pos = nextSearchPos(finder.start(), finder.end());
+            }
+        }
+
+        public int getNextLinePos(int pos) {
+            return fitInRange(getTailOfLinePos(pos) + 1);
+        }
+
+        public int getNextLinePos(int pos, int n) {
+            if (n <= 0) return pos;
+            if (isLastLine(pos)) return maxPos();
+            return pt.lineStart(Math.min(lineAt(pos) + n, pt.lineFeeds()));
+        }
+
+        public int getPrevLinePos(int pos) {
+            return getHeadOfLinePos(fitInRange(getHeadOfLinePos(pos) - 1));
+        }
+
+        public boolean isHeadOfLine() {
+            return (position == 0) || pt.charAt(position - 1) == '\n';
+        }
+
+        /**
+         * Get the snapshot of the text, which can be written from another thread.
+         * @return the snapshot
+         */
+        public PieceTable snapshot() {
+            return pt.snapshot();
+        }
+
+        /**
+         * Get the size in bytes of the text held on the heap, an estimate which leaves out the history.
+         * @return the size in bytes
+         */
+        public long heapSize() {
+            return pt.heapSize();
+        }
+
+        /**
+         * Drop the caches of the text, which are read again from the swap or the file when needed.
+         */
+        public void trim() {
+            pt.trim();
+        }
+
+        /**
+         * Replace the buffers of the text with their copies spilled to the swap.
+         * @param snapshot the snapshot, from which the copies are written
+         * @param swaps the copies by {@link PieceTable#spill()}
+         * @return {@code false} if the text is loaded again since the snapshot
+         */
+        public boolean spilled(PieceTable snapshot, PieceTable.Buffer[] swaps) {
+            return pt.spilled(snapshot, swaps);
+        }
+
+        /**
+         * Mark the content as saved to the file, and record the save in the journal of the file.
+         * The journal is to be rewritten with the current history, when it is new or has grown large.
+         * The history is copied here, and the returned rewrite writes it into a new journal in the
+         * background, then gives the step replacing the journal on the application thread. The step
+         * leaves the journal as it is if the text is edited in between. The edits larger than
+         * {@link Journal#MAX_TEXT} are not journaled, with the older history than them.
+         * @param file the saved file
+         * @param length the length of the saved text
+         * @param hash the hash of the saved text
+         * @param mark the mark taken with the saved text
+         * @return the rewrite of the journal, or null if the journal is not rewritten
+         */
+        public Callable<Runnable> saved(File file, int length, long hash, long mark) {
+            this.file = file;
+            savedMark = mark;
+            java.nio.file.Path path = Journal.pathOf(file);
+            if (journal != null && !journal.path().equals(path)) {
+                journal.close();
+                journal = null;
+            }
+            if (journal != null && mark >= journalMod) {
+                journal.saved(hash, length, journal.edits() - (int) (modCount - mark));
+            }
+            if (mark != modCount || historyPending || (journal != null && journal.size() <= Journal.COMPACT_SIZE)) {
+                return null;
+            }
+            Journal old = journal;
+            PieceTable text = pt.snapshot();
+            EditLog undoLog = undo.copy();
+            EditLog redoLog = redo.copy();
+            return () -> {
+                java.nio.file.Path tmp = Journal.write(path, j -> {
+                    for (int i = undoLog.within(Journal.MAX_TEXT); i < undoLog.size(); i++) {
+                        j.edit(Journal.EDIT, undoLog.pos(i),
+                            text.text(undoLog.removedPieces(i)), text.text(undoLog.addedPieces(i)), "");
+                    }
+                    for (int i = redoLog.within(Journal.MAX_TEXT); i < redoLog.size(); i++) {
+                        j.edit(Journal.REDO_ENTRY, redoLog.pos(i),
+                            text.text(redoLog.removedPieces(i)), text.text(redoLog.addedPieces(i)), "");
+                    }
+                    j.saved(hash, length, j.edits());
+                });
+                return () -> {
+                    try {
+                        if (journal != old || modCount != mark
+                                || this.file == null || !path.equals(Journal.pathOf(this.file))) {
+                            // edited or closed while rewriting, the journal is left as it is
+                            Files.deleteIfExists(tmp);
+                            return;
+                        }
+                        if (old != null) old.close();
+                        journal = null;
+                        journal = Journal.replace(tmp, path);
+                        journalMod = modCount;
+                    } catch (IOException | RuntimeException ignore) {
+                        // the edits are not journaled
+                    }
+                };
+            };
+        }
+
+        /**
+         * Write the text to the file.
+         * The text is encoded in chunks into a temporary file, which then replaces the file atomically,
+         * so the file is never left half-written.
+         * @param text the text to be written
+         * @param path the path of the file
+         * @throws IOException if an I/O error occurs
+         */
+        static void write(PieceTable text, java.nio.file.Path path) throws IOException {
+            // a symbolic link is written through, the file it links to is replaced
+            java.nio.file.Path target = Files.exists(path) ? path.toRealPath() : path.toAbsolutePath();
+            java.nio.file.Path tmp = createTempFile(target.getParent(), "." + target.getFileName());
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+                    CharBuffer cb = CharBuffer.allocate(8 * 1024);
+                    ByteBuffer bb = ByteBuffer.allocateDirect(32 * 1024);
+                    IOException[] error = { null };
+                    text.visit(0, text.length(), false, (buf, s, e, pos) -> {
+                        try {
+                            for (int i = s; i < e; ) {
+                                int n = Math.min(cb.remaining(), e - i);
+                                for (int j = 0; j < n; j++) cb.put(buf.charAt(i + j));
+                                i += n;
+                                if (!cb.hasRemaining()) encode(encoder, cb, bb, channel, false);
+                            }
+                            return true;
+                        } catch (IOException ex) {
+                            error[0] = ex;
+                            return false;
+                        }
+                    });
+                    if (error[0] != null) throw error[0];
+                    encode(encoder, cb, bb, channel, true);
+                    channel.force(false);
+                }
+                if (Files.exists(target)) {
+                    try {
+                        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+                    } catch (UnsupportedOperationException ignore) { }
+                }
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        /**
+         * Create a temporary file in the directory. Unlike {@link Files#createTempFile}, which makes
+         * the file readable only by the owner, the file gets the default permissions of a new file.
+         * @param dir the directory
+         * @param prefix the prefix of the name of the file
+         * @return the path of the file
+         * @throws IOException if an I/O error occurs
+         */
+        private static java.nio.file.Path createTempFile(java.nio.file.Path dir, String prefix) throws IOException {
+            for (;;) {
+                String name = prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp";
+                try {
+                    return Files.createFile(dir.resolve(name));
+                } catch (FileAlreadyExistsException ignore) {
+                    // another name is tried
+                }
+            }
+        }
+
+        private static void encode(CharsetEncoder encoder, CharBuffer cb, ByteBuffer bb,
+                FileChannel channel, boolean endOfInput) throws IOException {
+            cb.flip();
+            for (;;) {
+                CoderResult cr = encoder.encode(cb, bb, endOfInput);
+                if (cr.isError()) cr.throwException();
+                if (cr.isOverflow()) drain(bb, channel);
+                else break;
+            }
+            if (endOfInput) {
+                while (encoder.flush(bb).isOverflow()) drain(bb, channel);
+                drain(bb, channel);
+            }
+            // an unpaired high surrogate at the end of the chunk is left for the next one
+            cb.compact();
+        }
+
+        private static void drain(ByteBuffer bb, FileChannel channel) throws IOException {
+            bb.flip();
+            while (bb.hasRemaining()) channel.write(bb);
+            bb.clear();
+        }
+
+        public void open(File file) {
+            try {
+                load(file, (file.length() > Settings.largeFileSize)
+                    ? MappedText.open(file.toPath(), StandardCharsets.UTF_8)
+                    : Files.readString(file.toPath()));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Replace the content with the text loaded from the file.
+         * @param file the file
+         * @param text the text of the file, which may be followed by {@link #append(CharSequence)}
+         */
+        public void load(File file, CharSequence text) {
+            load(file, text, text.length());
+        }
+
+        /**
+         * Replace the content with the head of the text loaded from the file.
+         * @param file the file
+         * @param text the text of the file, such as a mapped text still being indexed
+         * @param length the length of the head, the rest is appended by {@link #appendLoaded(int, int)}
+         */
+        public void load(File file, CharSequence text, int length) {
+            clear();
+            this.file = file;
+            pt.load(text, length);
+            fire(0, 0, pt.lineFeeds());
+            savedMark = modCount;
+        }
+
+        /**
+         * Replace the content with the text restored from a recovery snapshot.
+         * @param file the file of the text, or null for an untitled text
+         * @param original the original buffer of the snapshot
+         * @param added the add buffer of the snapshot
+         * @param pieces the pieces of the snapshot
+         * @param position the position of the caret
+         */
+        public void restore(File file, CharSequence original, CharSequence added, IntArray pieces, int position) {
+            clear();
+            this.file = file;
+            pt.load(original);
+            pt.stash(added);
+            pt.delete(0, pt.length());
+            pt.insertPieces(0, pieces);
+            this.position = fitInRange(position);
+            fire(0, 0, pt.lineFeeds());
+        }
+
+        /**
+         * Append the text being loaded, without the undo history.
+         * @param text the text
+         */
+        public void append(CharSequence text) {
+            int line = pt.lineFeeds();
+            pt.insert(pt.length(), text);
+            fire(line, 0, pt.lineFeeds() - line);
+            savedMark = modCount;
+        }
+
+        /**
+         * Append the range of the loaded text indexed after its head, without the undo history.
+         * @param start the start index in the loaded text(inclusive)
+         * @param end the end index in the loaded text(exclusive)
+         */
+        public void appendLoaded(int start, int end) {
+            int line = pt.lineFeeds();
+            pt.appendOriginal(start, end);
+            fire(line, 0, pt.lineFeeds() - line);
+            savedMark = modCount;
+        }
+
+        /**
+         * Get whether the text is changed since it is loaded or saved.
+         * @return {@code true} if the text is changed
+         */
+        public boolean modified() {
+            return savedMark != modCount;
+        }
+
+        /**
+         * Detach the target file, so the content is to be saved as another file.
+         */
+        public void detach() {
+            file = null;
+        }
+
+        /**
+         * Release the journal of the document closed, which is then detached from the file.
+         * The edits after the last save are dropped from the journal, as the document is closed
+         * without saving them, so they are not restored when the file is opened again.
+         */
+        public void release() {
+            if (journal != null) journal.discard();
+            journal = null;
+            historyPending = false;
+            file = null;
         }
 
         public int getPosition() {
             return position;
         }
 
-        public String getFileName() {
-            return Objects.isNull(file) ? "" : file.getName();
+        public File getFile() {
+            return file;
+        }
+
+        public String getFileName() {
+            return Objects.isNull(file) ? "" : file.getName();
+        }
+
+        public int maxPos() {
+            return pt.length();
+        }
+
+        private int fitInRange(int pos) {
+            return (pos < 0) ? 0 : Math.min(pos, maxPos());
+        }
+
+        int getHeadOfLinePos(int pos) {
+            return (pos <= 0) ? 0 : pt.lineStart(lineAt(pos));
+        }
+
+        int getTailOfLinePos(int pos) {
+            if (pos > (pt.length() - 1)) return maxPos();
+            int line = lineAt(pos);
+            return (line == pt.lineFeeds()) ? maxPos() : pt.lineStart(line + 1) - 1;
+        }
+
+        boolean isLastLine(int pos) {
+            return pos > (pt.length() - 1) || lineAt(pos) == pt.lineFeeds();
+        }
+
+        /**
+         * Get the text of the line, without the line feed.
+         * @param line the line index(0 origin)
+         * @return the text of the line
+         */
+        public String lineText(int line) {
+            int head = pt.lineStart(line);
+            return text(head, line < pt.lineFeeds() ? pt.lineStart(line + 1) - 1 : maxPos());
+        }
+
+        /**
+         * Get the view of the text for sequential reads.
+         * @return the view, which is not updated by the following edits
+         */
+        public CharSequence cursor() {
+            return pt.cursor();
+        }
+
+        @Override public String toString() {
+            return pt.toString();
+        }
+
+        /**
+         * Listener of the edits on the buffer.
+         */
+        interface EditListener {
+            /**
+             * Called after the lines are edited.
+             * @param line the first edited line
+             * @param removed the number of lines following the first line that have been removed
+             * @param added the number of lines following the first line that have been added
+             */
+            void edited(int line, int removed, int added);
+        }
+
+    }
+
+    /**
+     * Piece table.
+     * The text is a sequence of pieces, each referring to a range of the immutable
+     * original buffer or of the append-only add buffer. Pieces are held in a persistent
+     * treap ordered by their offset in the text, so an edit costs O(log pieces) and
+     * creates a new root without touching the previous one.
+     * Each node also counts the line feeds of its subtree, which makes line to offset
+     * lookups logarithmic.
+     */
+    static class PieceTable implements CharSequence {
+
+        private Buffer original;
+        private AddBuffer added;
+        private Node root;
+
+        public PieceTable(CharSequence text) {
+            load(text);
+        }
+
+        private PieceTable(Buffer original, AddBuffer added, Node root) {
+            this.original = original;
+            this.added = added;
+            this.root = root;
+        }
+
+        /**
+         * Load the text as the original buffer.
+         * @param text the text, which is used as it is if it is a {@link Buffer}
+         */
+        public void load(CharSequence text) {
+            load(text, text.length());
+        }
+
+        /**
+         * Load the head of the text as the original buffer.
+         * @param text the text, which is used as it is if it is a {@link Buffer}
+         * @param length the length of the head, the rest is appended by {@link #appendOriginal(int, int)}
+         */
+        public void load(CharSequence text, int length) {
+            original = (text instanceof Buffer) ? (Buffer) text : new TextBuffer(text.toString());
+            added = new AddBuffer();
+            root = length == 0 ? null : leaf(false, 0, length);
+        }
+
+        public void clear() {
+            load("");
+        }
+
+        /**
+         * Get the snapshot of the current text.
+         * The snapshot is immutable and can be read from another thread,
+         * while this piece table is edited on the application thread.
+         * @return the snapshot
+         */
+        public PieceTable snapshot() {
+            return new PieceTable(original, added.freeze(), root);
+        }
+
+        /**
+         * Get the size in bytes of the buffers held on the heap, an estimate.
+         * @return the size in bytes
+         */
+        public long heapSize() {
+            return original.heapSize() + added.heapSize();
+        }
+
+        /**
+         * Drop the caches of the buffers, which are read again when needed.
+         */
+        public void trim() {
+            original.trim();
+            added.trim();
+        }
+
+        /**
+         * Write the buffers held on the heap to the swap, which is called on a snapshot in the background.
+         * The chars are kept at the same indexes, so the pieces and the history refer them as they are.
+         * @return the copies of the original buffer and the add buffer, each null if there is nothing to be spilled
+         * @throws IOException if an I/O error occurs
+         */
+        public Buffer[] spill() throws IOException {
+            Buffer[] swaps = new Buffer[2];
+            if (original instanceof TextBuffer && original.length() > 0) {
+                swaps[0] = MappedText.swap(original, original.length());
+            }
+            int length = added.spillable();
+            if (length > (added.swap == null ? 0 : added.swap.length())) {
+                swaps[1] = MappedText.swap(added, length);
+            }
+            return swaps;
+        }
+
+        /**
+         * Replace the buffers with the copies spilled from the snapshot.
+         * @param snapshot the snapshot, from which the copies are written
+         * @param swaps the copies by {@link #spill()}
+         * @return {@code false} if the text is loaded again since the snapshot
+         */
+        public boolean spilled(PieceTable snapshot, Buffer[] swaps) {
+            if (original != snapshot.original) return false;
+            if (swaps[0] != null) original = swaps[0];
+            if (swaps[1] != null) added.spill(swaps[1]);
+            return true;
+        }
+
+        public void insert(int pos, CharSequence text) {
+            if (text.length() == 0) return;
+            int start = added.length();
+            added.append(text);
+            Node[] s = split(root, pos);
+            Node last = Node.last(s[0]);
+            if (last != null && last.added && last.start + last.len == start) {
+                // sequential typing extends the last piece instead of adding a new one
+                root = merge(extendLast(s[0], text.length()), s[1]);
+            } else {
+                root = merge(merge(s[0], leaf(true, start, text.length())), s[1]);
+            }
+        }
+
+        /**
+         * Append the range of the original buffer to the end of the text.
+         * @param start the start index in the original buffer(inclusive)
+         * @param end the end index in the original buffer(exclusive)
+         */
+        public void appendOriginal(int start, int end) {
+            if (start >= end) return;
+            Node last = Node.last(root);
+            if (last != null && !last.added && last.start + last.len == start) {
+                root = extendLast(root, end - start);
+            } else {
+                root = merge(root, leaf(false, start, end - start));
+            }
+        }
+
+        public void delete(int pos, int length) {
+            if (length <= 0) return;
+            Node[] s = split(root, pos);
+            root = merge(s[0], split(s[1], length)[1]);
+        }
+
+        /**
+         * Get the pieces of the range, as pairs of the start in the buffer and the length.
+         * The start is complemented for the pieces of the add buffer.
+         * @param from the start position(inclusive)
+         * @param to the end position(exclusive)
+         * @return the pieces
+         */
+        public IntArray pieces(int from, int to) {
+            IntArray ret = new IntArray();
+            if (from < to) pieces(root, 0, from, to, ret);
+            return ret;
+        }
+
+        private void pieces(Node n, int offset, int from, int to, IntArray out) {
+            if (n == null || to <= offset || offset + n.length <= from) return;
+            int pieceOffset = offset + Node.length(n.left);
+            pieces(n.left, offset, from, to, out);
+            int s = Math.max(from, pieceOffset);
+            int e = Math.min(to, pieceOffset + n.len);
+            if (s < e) {
+                int start = n.start + s - pieceOffset;
+                int last = out.size() - 2;
+                if (last >= 0 && (out.get(last) < 0) == n.added
+                        && (n.added ? ~out.get(last) : out.get(last)) + out.get(last + 1) == start) {
+                    // continues the previous piece in the same buffer
+                    out.set(last + 1, out.get(last + 1) + e - s);
+                } else {
+                    out.add(n.added ? ~start : start);
+                    out.add(e - s);
+                }
+            }
+            pieces(n.right, pieceOffset + n.len, from, to, out);
+        }
+
+        /**
+         * Insert the pieces taken by {@link #pieces(int, int)}.
+         * @param pos the position
+         * @param pieces the pieces
+         */
+        public void insertPieces(int pos, IntArray pieces) {
+            if (pieces.size() == 0) return;
+            Node inserted = null;
+            for (int i = 0; i < pieces.size(); i += 2) {
+                boolean added = pieces.get(i) < 0;
+                inserted = merge(inserted, leaf(added, added ? ~pieces.get(i) : pieces.get(i), pieces.get(i + 1)));
+            }
+            Node[] s = split(root, pos);
+            root = merge(merge(s[0], inserted), s[1]);
+        }
+
+        /**
+         * Get the original buffer, which is replaced only when a text is loaded.
+         * @return the original buffer
+         */
+        public Buffer original() {
+            return original;
+        }
+
+        /**
+         * Get the add buffer, to which the inserted texts are appended.
+         * @return the add buffer
+         */
+        public Buffer addBuffer() {
+            return added;
+        }
+
+        /**
+         * Append the text to the add buffer, without inserting it into the text.
+         * @param text the text
+         * @return the pieces of the text, to be inserted by {@link #insertPieces(int, IntArray)}
+         */
+        public IntArray stash(CharSequence text) {
+            IntArray ret = new IntArray();
+            if (text.length() == 0) return ret;
+            ret.add(~added.length());
+            ret.add(text.length());
+            added.append(text);
+            return ret;
+        }
+
+        /**
+         * Get the text of the pieces.
+         * @param pieces the pieces
+         * @return the text
+         */
+        public String text(IntArray pieces) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < pieces.size(); i += 2) {
+                boolean isAdded = pieces.get(i) < 0;
+                int start = isAdded ? ~pieces.get(i) : pieces.get(i);
+                sb.append(isAdded ? added : original, start, start + pieces.get(i + 1));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Concatenate the pieces, joining the pieces continued in the same buffer.
+         * @param a the leading pieces
+         * @param b the following pieces
+         * @return the pieces
+         */
+        static IntArray concat(IntArray a, IntArray b) {
+            IntArray ret = new IntArray();
+            for (int i = 0; i < a.size(); i++) ret.add(a.get(i));
+            for (int i = 0; i < b.size(); i += 2) {
+                int last = ret.size() - 2;
+                boolean added = b.get(i) < 0;
+                int start = added ? ~b.get(i) : b.get(i);
+                if (i == 0 && last >= 0 && (ret.get(last) < 0) == added
+                        && (added ? ~ret.get(last) : ret.get(last)) + ret.get(last + 1) == start) {
+                    ret.set(last + 1, ret.get(last + 1) + b.get(i + 1));
+                } else {
+                    ret.add(b.get(i));
+                    ret.add(b.get(i + 1));
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Replace the ranges with the texts.
+         * The pieces are rewritten in one pass and built into a balanced tree, instead of
+         * splitting and merging the tree for each range.
+         * @param starts the start positions of the ranges, in ascending order without overlaps
+         * @param ends the end positions of the ranges
+         * @param texts the text for each range
+         */
+        public void replace(IntArray starts, IntArray ends, IntFunction<CharSequence> texts) {
+            List<Node> pieces = new ArrayList<>();
+            Node.collect(root, pieces);
+            List<Node> out = new ArrayList<>(pieces.size() + starts.size() * 2);
+            int piece = 0;
+            int pieceOffset = 0;
+            int pos = 0;
+            for (int i = 0; i <= starts.size(); i++) {
+                int to = (i < starts.size()) ? starts.get(i) : length();
+                // copy the pieces between the ranges, cutting them at the range bounds
+                while (pos < to) {
+                    Node n = pieces.get(piece);
+                    int s = pos - pieceOffset;
+                    int e = Math.min(to - pieceOffset, n.len);
+                    out.add((s == 0 && e == n.len) ? n
+                        : new Node(n.added, n.start + s, e - s, countLf(n.added, n.start + s, n.start + e), null, null, 0));
+                    pos = pieceOffset + e;
+                    if (e == n.len) {
+                        pieceOffset += n.len;
+                        piece++;
+                    }
+                }
+                if (i == starts.size()) break;
+                CharSequence text = texts.apply(i);
+                if (text.length() > 0) {
+                    int start = added.length();
+                    added.append(text);
+                    out.add(new Node(true, start, text.length(), countLf(true, start, start + text.length()), null, null, 0));
+                }
+                // skip the range
+                pos = ends.get(i);
+                while (piece < pieces.size() && pieceOffset + pieces.get(piece).len <= pos) {
+                    pieceOffset += pieces.get(piece).len;
+                    piece++;
+                }
+            }
+            root = build(out, 0, out.size(), 0);
+        }
+
+        /**
+         * Build a balanced tree of the pieces.
+         * The priority of a node is drawn from the band of its depth, which keeps the heap order of the treap.
+         */
+        private static Node build(List<Node> pieces, int from, int to, int depth) {
+            if (from >= to) return null;
+            int mid = (from + to) >>> 1;
+            Node left = build(pieces, from, mid, depth + 1);
+            Node right = build(pieces, mid + 1, to, depth + 1);
+            Node n = pieces.get(mid);
+            int band = 1 << 26;
+            int priority = (int) (Integer.MAX_VALUE - (long) Math.min(depth, 63) * band - ThreadLocalRandom.current().nextInt(band));
+            return new Node(n.added, n.start, n.len, n.lf, left, right, priority);
+        }
+
+        @Override public int length() {
+            return Node.length(root);
+        }
+
+        /**
+         * Get the number of line feeds in the text.
+         * @return the number of line feeds
+         */
+        public int lineFeeds() {
+            return Node.lineFeeds(root);
+        }
+
+        /**
+         * Get the height of the piece tree, which stays logarithmic in the number of pieces.
+         * @return the height, 0 for the empty text
+         */
+        int depth() {
+            return Node.depth(root);
+        }
+
+        /**
+         * Get the line index at the position, i.e. the number of line feeds before the position.
+         * @param pos the position
+         * @return the line index
+         */
+        public int lineAt(int pos) {
+            int line = 0;
+            Node n = root;
+            while (n != null) {
+                int leftLen = Node.length(n.left);
+                if (pos < leftLen) {
+                    n = n.left;
+                } else if (pos < leftLen + n.len) {
+                    return line + Node.lineFeeds(n.left) + countLf(n.added, n.start, n.start + pos - leftLen);
+                } else {
+                    pos -= leftLen + n.len;
+                    line += Node.lineFeeds(n.left) + n.lf;
+                    n = n.right;
+                }
+            }
+            return line;
+        }
+
+        /**
+         * Get the start position of the line.
+         * @param line the line index
+         * @return the start position of the line, or the length of the text if the line does not exist
+         */
+        public int lineStart(int line) {
+            if (line <= 0) return 0;
+            if (line > lineFeeds()) return length();
+            int offset = 0;
+            Node n = root;
+            for (;;) {
+                int leftLf = Node.lineFeeds(n.left);
+                if (line <= leftLf) {
+                    n = n.left;
+                } else if (line <= leftLf + n.lf) {
+                    int lfPos = buffer(n).lfPos(n.start, line - leftLf - 1);
+                    return offset + Node.length(n.left) + lfPos - n.start + 1;
+                } else {
+                    line -= leftLf + n.lf;
+                    offset += Node.length(n.left) + n.len;
+                    n = n.right;
+                }
+            }
+        }
+
+        @Override public char charAt(int index) {
+            if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(index);
+            Node n = root;
+            for (;;) {
+                int leftLen = Node.length(n.left);
+                if (index < leftLen) {
+                    n = n.left;
+                } else if (index < leftLen + n.len) {
+                    return buffer(n).charAt(n.start + index - leftLen);
+                } else {
+                    index -= leftLen + n.len;
+                    n = n.right;
+                }
+            }
+        }
+
+        @Override public CharSequence subSequence(int start, int end) {
+            return substring(start, end);
+        }
+
+        public String substring(int start, int end) {
+            StringBuilder sb = new StringBuilder(Math.max(end - start, 0));
+            visit(start, end, false, (buf, s, e, pos) -> { sb.append(buf, s, e); return true; });
+            return sb.toString();
+        }
+
+        /**
+         * Get the index of the first occurrence of the character at or after the position.
+         * @param ch the character
+         * @param from the position to start the search
+         * @return the index, or -1 if not found
+         */
+        public int indexOf(char ch, int from) {
+            int[] ret = { -1 };
+            visit(Math.max(from, 0), length(), false, (buf, s, e, pos) -> {
+                for (int i = s; i < e; i++) {
+                    if (buf.charAt(i) == ch) {
+                        ret[0] = pos + i - s;
+                        return false;
+                    }
+                }
+                return true;
+            });
+            return ret[0];
+        }
+
+        /**
+         * Get the index of the last occurrence of the character at or before the position.
+         * @param ch the character
+         * @param from the position to start the backward search
+         * @return the index, or -1 if not found
+         */
+        public int lastIndexOf(char ch, int from) {
+            int[] ret = { -1 };
+            visit(0, Math.min(from + 1, length()), true, (buf, s, e, pos) -> {
+                for (int i = e - 1; i >= s; i--) {
+                    if (buf.charAt(i) == ch) {
+                        ret[0] = pos + i - s;
+                        return false;
+                    }
+                }
+                return true;
+            });
+            return ret[0];
+        }
+
+        /**
+         * Get the view of the text for sequential reads.
+         * @return the view, which is not updated by the following edits
+         */
+        public CharSequence cursor() {
+            return new Cursor(this, root);
+        }
+
+        /**
+         * Visit the chunks of the text in the range.
+         * @param from the start position in the text(inclusive)
+         * @param to the end position in the text(exclusive)
+         * @param reverse visit from tail to head if {@code true}
+         * @param visitor the visitor
+         */
+        void visit(int from, int to, boolean reverse, ChunkVisitor visitor) {
+            if (from < to) visit(root, 0, from, to, reverse, visitor);
+        }
+
+        private boolean visit(Node n, int offset, int from, int to, boolean reverse, ChunkVisitor visitor) {
+            if (n == null || to <= offset || offset + n.length <= from) return true;
+            int pieceOffset = offset + Node.length(n.left);
+            int s = Math.max(from, pieceOffset);
+            int e = Math.min(to, pieceOffset + n.len);
+            if (reverse) {
+                return visit(n.right, pieceOffset + n.len, from, to, true, visitor)
+                    && (s >= e || buffer(n).visit(n.start + s - pieceOffset, n.start + e - pieceOffset, s, visitor))
+                    && visit(n.left, offset, from, to, true, visitor);
+            } else {
+                return visit(n.left, offset, from, to, false, visitor)
+                    && (s >= e || buffer(n).visit(n.start + s - pieceOffset, n.start + e - pieceOffset, s, visitor))
+                    && visit(n.right, pieceOffset + n.len, from, to, false, visitor);
+            }
+        }
+
+        @Override public String toString() {
+            return substring(0, length());
+        }
+
+        private Buffer buffer(Node n) {
+            return n.added ? added : original;
+        }
+
+        private int countLf(boolean added, int start, int end) {
+            return (added ? this.added : original).countLf(start, end);
+        }
+
+        private Node leaf(boolean added, int start, int len) {
+            return new Node(added, start, len, countLf(added, start, start + len),
+                null, null, ThreadLocalRandom.current().nextInt());
+        }
+
+        private Node extendLast(Node n, int by) {
+            return (n.right == null)
+                ? new Node(n.added, n.start, n.len + by, countLf(n.added, n.start, n.start + n.len + by),
+                    n.left, null, n.priority)
+                : n.with(n.left, extendLast(n.right, by));
+        }
+
+        /**
+         * Split the tree at the position.
+         * @param n the root of the tree
+         * @param pos the position to split
+         * @return the trees of the head {@code [0, pos)} and the tail {@code [pos, length)}
+         */
+        private Node[] split(Node n, int pos) {
+            if (n == null) return new Node[] { null, null };
+            int leftLen = Node.length(n.left);
+            if (pos <= leftLen) {
+                Node[] s = split(n.left, pos);
+                return new Node[] { s[0], n.with(s[1], n.right) };
+            } else if (pos >= leftLen + n.len) {
+                Node[] s = split(n.right, pos - leftLen - n.len);
+                return new Node[] { n.with(n.left, s[0]), s[1] };
+            } else {
+                int k = pos - leftLen;
+                int lf = countLf(n.added, n.start, n.start + k);
+                // the halves get their own priorities, fragments sharing one would degrade the tree to a list
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                return new Node[] {
+                    merge(n.left, new Node(n.added, n.start, k, lf, null, null, random.nextInt())),
+                    merge(new Node(n.added, n.start + k, n.len - k, n.lf - lf, null, null, random.nextInt()), n.right) };
+            }
+        }
+
+        private static Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            return (a.priority > b.priority)
+                ? a.with(a.left, merge(a.right, b))
+                : b.with(merge(a, b.left), b.right);
+        }
+
+        /**
+         * Buffer referred by pieces.
+         */
+        interface Buffer extends CharSequence {
+
+            /**
+             * Count the line feeds in the range.
+             * @param start the start index(inclusive)
+             * @param end the end index(exclusive)
+             * @return the number of line feeds
+             */
+            int countLf(int start, int end);
+
+            /**
+             * Get the index of the n-th line feed at or after the start index.
+             * @param start the start index
+             * @param n the number of line feeds to skip(0 origin)
+             * @return the index of the line feed
+             */
+            int lfPos(int start, int n);
+
+            /**
+             * Visit the range of this buffer as chunks.
+             * @param start the start index(inclusive)
+             * @param end the end index(exclusive)
+             * @param pos the position of the start index in the text
+             * @param visitor the visitor
+             * @return {@code false} if the visitor stopped the visit
+             */
+            default boolean visit(int start, int end, int pos, ChunkVisitor visitor) {
+                return visitor.visit(this, start, end, pos);
+            }
+
+            /**
+             * Set the array holding the char at the index to the scanner.
+             * @param index the index
+             * @param scanner the scanner, to which the array and the range of this buffer held in it are set
+             */
+            void chunk(int index, CharScanner scanner);
+
+            /**
+             * Get the size in bytes held on the heap by this buffer, an estimate.
+             * @return the size in bytes
+             */
+            long heapSize();
+
+            /**
+             * Drop the caches of this buffer, which are read again when needed.
+             */
+            default void trim() { }
+        }
+
+        /**
+         * In-memory buffer, which keeps the indexes of the line feeds.
+         */
+        static class TextBuffer implements Buffer {
+
+            private final char[] chars;
+            private final CharBuffer view;
+            private final IntArray lfs = new IntArray();
+
+            TextBuffer(String text) {
+                this.chars = text.toCharArray();
+                this.view = CharBuffer.wrap(chars);
+                for (int i = 0; i < chars.length; i++) {
+                    if (chars[i] == '\n') lfs.add(i);
+                }
+            }
+
+            @Override public int countLf(int start, int end) {
+                return lfs.lowerBound(end) - lfs.lowerBound(start);
+            }
+
+            @Override public int lfPos(int start, int n) {
+                return lfs.get(lfs.lowerBound(start) + n);
+            }
+
+            @Override public boolean visit(int start, int end, int pos, ChunkVisitor visitor) {
+                return visitor.visit(view, start, end, pos);
+            }
+
+            @Override public void chunk(int index, CharScanner scanner) {
+                scanner.set(chars, 0, chars.length);
+            }
+
+            @Override public long heapSize() {
+                return chars.length * 2L + lfs.size() * 4L;
+            }
+
+            @Override public int length() {
+                return chars.length;
+            }
+
+            @Override public char charAt(int index) {
+                return chars[index];
+            }
+
+            @Override public CharSequence subSequence(int start, int end) {
+                return new String(chars, start, end - start);
+            }
+
+            @Override public String toString() {
+                return new String(chars);
+            }
+        }
+
+        /**
+         * Append-only buffer of fixed size blocks.
+         * Blocks are never reallocated, so a frozen view can be read from another thread
+         * while text is appended. The whole blocks can be spilled to a swap, and
+         * such a block is read back from the swap when it is touched.
+         */
+        static class AddBuffer implements Buffer {
+
+            private static final int BLOCK_SHIFT = 16;
+            private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+            private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+            private char[][] blocks;
+            private int length;
+            private int[] lfs;
+            private int lfSize;
+            private final boolean frozen;
+            /** The copy of the blocks spilled, or null. The blocks in it are null until read back. */
+            private Buffer swap;
+
+            AddBuffer() {
+                this(new char[4][], 0, new int[16], 0, false, null);
+            }
+
+            private AddBuffer(char[][] blocks, int length, int[] lfs, int lfSize, boolean frozen, Buffer swap) {
+                this.blocks = blocks;
+                this.length = length;
+                this.lfs = lfs;
+                this.lfSize = lfSize;
+                this.frozen = frozen;
+                this.swap = swap;
+            }
+
+            void append(CharSequence cs) {
+                if (frozen) throw new UnsupportedOperationException();
+                for (int i = 0; i < cs.length(); i++) {
+                    int b = length >>> BLOCK_SHIFT;
+                    if (b == blocks.length) blocks = Arrays.copyOf(blocks, b * 2);
+                    if (blocks[b] == null) blocks[b] = new char[BLOCK_SIZE];
+                    char ch = cs.charAt(i);
+                    blocks[b][length & BLOCK_MASK] = ch;
+                    if (ch == '\n') {
+                        if (lfSize == lfs.length) lfs = Arrays.copyOf(lfs, lfSize * 2);
+                        lfs[lfSize++] = length;
+                    }
+                    length++;
+                }
+            }
+
+            /**
+             * Get the read-only view of the current content.
+             * @return the view
+             */
+            AddBuffer freeze() {
+                return new AddBuffer(blocks, length, lfs, lfSize, true, swap);
+            }
+
+            /**
+             * Get the length of the whole blocks, which can be spilled.
+             * @return the length
+             */
+            int spillable() {
+                return length & ~BLOCK_MASK;
+            }
+
+            /**
+             * Drop the blocks held in the swap.
+             * @param swap the copy of the chars {@code [0, swap.length())}, a multiple of the block size
+             */
+            void spill(Buffer swap) {
+                // a new array of the blocks, so the views frozen before keep theirs
+                char[][] spilled = Arrays.copyOf(blocks, blocks.length);
+                Arrays.fill(spilled, 0, swap.length() >>> BLOCK_SHIFT, null);
+                blocks = spilled;
+                this.swap = swap;
+            }
+
+            private char[] block(int b) {
+                char[] block = blocks[b];
+                return (block != null) ? block : reload(b);
+            }
+
+            private char[] reload(int b) {
+                synchronized (swap) {
+                    if (blocks[b] == null) {
+                        char[] block = new char[BLOCK_SIZE];
+                        int start = b << BLOCK_SHIFT;
+                        swap.visit(start, start + BLOCK_SIZE, 0, (buf, s, e, pos) -> {
+                            for (int i = s; i < e; i++) block[pos + i - s] = buf.charAt(i);
+                            return true;
+                        });
+                        blocks[b] = block;
+                    }
+                    return blocks[b];
+                }
+            }
+
+            @Override public long heapSize() {
+                long size = lfs.length * 4L + blocks.length * 8L;
+                for (char[] block : blocks) {
+                    if (block != null) size += block.length * 2L;
+                }
+                return size + (swap == null ? 0 : swap.heapSize());
+            }
+
+            @Override public void trim() {
+                if (swap == null) return;
+                Arrays.fill(blocks, 0, swap.length() >>> BLOCK_SHIFT, null);
+                swap.trim();
+            }
+
+            @Override public int countLf(int start, int end) {
+                return lowerBound(end) - lowerBound(start);
+            }
+
+            @Override public int lfPos(int start, int n) {
+                return lfs[lowerBound(start) + n];
+            }
+
+            private int lowerBound(int value) {
+                int lo = 0, hi = lfSize;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (lfs[mid] < value) lo = mid + 1;
+                    else hi = mid;
+                }
+                return lo;
+            }
+
+            @Override public boolean visit(int start, int end, int pos, ChunkVisitor visitor) {
+                for (int i = start; i < end; ) {
+                    int b = i >>> BLOCK_SHIFT;
+                    int e = Math.min(end, (b + 1) << BLOCK_SHIFT);
+                    if (!visitor.visit(CharBuffer.wrap(block(b)), i & BLOCK_MASK, ((e - 1) & BLOCK_MASK) + 1, pos + i - start)) {
+                        return false;
+                    }
+                    i = e;
+                }
+                return true;
+            }
+
+            @Override public void chunk(int index, CharScanner scanner) {
+                int base = index & ~BLOCK_MASK;
+                scanner.set(block(index >>> BLOCK_SHIFT), base, Math.min(length, base + BLOCK_SIZE));
+            }
+
+            @Override public int length() {
+                return length;
+            }
+
+            @Override public char charAt(int index) {
+                return block(index >>> BLOCK_SHIFT)[index & BLOCK_MASK];
+            }
+
+            @Override public CharSequence subSequence(int start, int end) {
+                StringBuilder sb = new StringBuilder(end - start);
+                visit(start, end, start, (buf, s, e, pos) -> { sb.append(buf, s, e); return true; });
+                return sb.toString();
+            }
+
+            @Override public String toString() {
+                return subSequence(0, length).toString();
+            }
+        }
+
+        /**
+         * Read-only view of a piece tree, which keeps the chunk read last.
+         * Reading a char in the chunk costs an array access, and moving to another chunk a walk down the tree.
+         */
+        static class Cursor implements CharSequence {
+
+            private final PieceTable pt;
+            private final int length;
+            private final CharScanner scanner;
+
+            private Cursor(PieceTable pt, Node root) {
+                this.pt = new PieceTable(pt.original, pt.added, root);
+                this.length = Node.length(root);
+                this.scanner = new CharScanner(this.pt);
+            }
+
+            @Override public char charAt(int index) {
+                CharScanner s = scanner;
+                if (index < s.start || index >= s.end) {
+                    if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+                    s.seek(index);
+                }
+                return s.buf[index + s.delta];
+            }
+
+            @Override public int length() {
+                return length;
+            }
+
+            @Override public CharSequence subSequence(int start, int end) {
+                return pt.substring(start, end);
+            }
+
+            @Override public String toString() {
+                return pt.substring(0, length);
+            }
+        }
+
+        /**
+         * Reusable reader of the text as chunks of the arrays of the buffers, for bulk scans.
+         * A chunk is the part of a piece held in an array, and the char at a position
+         * in {@code [start, end)} is {@code buf[pos + delta]}. Seeking walks down the tree, and
+         * no scan allocates. The chunk is dropped at the start of each scan, as the text may be edited
+         * between the scans.
+         */
+        static final class CharScanner {
+
+            /** Types of the Latin-1 chars, as {@link Character#getType(char)} of the lower case. */
+            private static final byte[] LATIN1_TYPES = new byte[256];
+            static {
+                for (char c = 0; c < 256; c++) LATIN1_TYPES[c] = (byte) Character.getType(Character.toLowerCase(c));
+            }
+            private final PieceTable pt;
+            char[] buf;
+            int start;
+            int end;
+            int delta;
+            /** The array set by the buffer, with the range of the buffer held in it. */
+            private char[] array;
+            private int base;
+            private int limit;
+
+            CharScanner(PieceTable pt) {
+                this.pt = pt;
+            }
+
+            void set(char[] array, int base, int limit) {
+                this.array = array;
+                this.base = base;
+                this.limit = limit;
+            }
+
+            /**
+             * Move to the chunk at the position.
+             * @param pos the position, in the range of the text
+             */
+            void seek(int pos) {
+                Node n = pt.root;
+                int offset = 0;
+                while (n != null) {
+                    int pieceStart = offset + Node.length(n.left);
+                    if (pos < pieceStart) {
+                        n = n.left;
+                    } else if (pos >= pieceStart + n.len) {
+                        offset = pieceStart + n.len;
+                        n = n.right;
+                    } else {
+                        pt.buffer(n).chunk(n.start + pos - pieceStart, this);
+                        buf = array;
+                        delta = n.start - pieceStart - base;
+                        start = pieceStart + Math.max(base - n.start, 0);
+                        end = pieceStart + Math.min(limit - n.start, n.len);
+                        return;
+                    }
+                }
+                throw new IndexOutOfBoundsException(pos);
+            }
+
+            /**
+             * Count the char in the range.
+             * @param from the start position(inclusive)
+             * @param to the end position(exclusive)
+             * @param ch the char
+             * @return the number of the char
+             */
+            int count(int from, int to, char ch) {
+                int n = 0;
+                for (int i = from; i < to; ) {
+                    seek(i);
+                    char[] a = buf;
+                    int e = Math.min(end, to) + delta;
+                    // branch free, so that the loop is vectorized
+                    for (int j = i + delta; j < e; j++) n += (a[j] == ch) ? 1 : 0;
+                    i = e - delta;
+                }
+                return n;
+            }
+
+            /**
+             * Get the end of the run of the chars of the same type as the char at the position.
+             * @param pos the position
+             * @return the position of the first char of another type after the position, or the length
+             */
+            int runEnd(int pos) {
+                int length = pt.length();
+                int type = typeAt(pos, length);
+                for (int i = Math.min(pos + 1, length); i < length; ) {
+                    seek(i);
+                    char[] a = buf;
+                    int d = delta;
+                    for (int e = end; i < e; i++) {
+                        char c = a[i + d];
+                        if (((c < 256) ? LATIN1_TYPES[c] : typeOf(c, i, length)) != type) return i;
+                    }
+                }
+                return length;
+            }
+
+            /**
+             * Get the start of the run of the chars of the same type as the char at the position.
+             * @param pos the position
+             * @return the position of the first char of the run
+             */
+            int runStart(int pos) {
+                int length = pt.length();
+                int type = typeAt(pos, length);
+                for (int i = Math.min(pos - 1, length - 1); i >= 0; ) {
+                    seek(i);
+                    char[] a = buf;
+                    int d = delta;
+                    for (int s = start; i >= s; i--) {
+                        char c = a[i + d];
+                        if (((c < 256) ? LATIN1_TYPES[c] : typeOf(c, i, length)) != type) return i + 1;
+                    }
+                }
+                return 0;
+            }
+
+            private int typeAt(int pos, int length) {
+                if (pos >= length) return Character.UNASSIGNED;
+                char c = pt.charAt(pos);
+                return (c < 256) ? LATIN1_TYPES[c] : typeOf(c, pos, length);
+            }
+
+            /**
+             * Get the type of the char out of Latin-1, a surrogate pair taking the type of its code point.
+             * The chunk is not moved, the other half of a pair is read through the tree.
+             */
+            private int typeOf(char c, int pos, int length) {
+                if (Character.isHighSurrogate(c) && pos + 1 < length && Character.isLowSurrogate(pt.charAt(pos + 1))) {
+                    return Character.getType(Character.toLowerCase(Character.toCodePoint(c, pt.charAt(pos + 1))));
+                } else if (Character.isLowSurrogate(c) && pos > 0 && Character.isHighSurrogate(pt.charAt(pos - 1))) {
+                    return Character.getType(Character.toLowerCase(Character.toCodePoint(pt.charAt(pos - 1), c)));
+                }
+                return Character.getType(Character.toLowerCase(c));
+            }
+        }
+
+        interface ChunkVisitor {
+            /**
+             * Visit a chunk of the text.
+             * @param buf the buffer holding the chunk
+             * @param start the start index in the buffer(inclusive)
+             * @param end the end index in the buffer(exclusive)
+             * @param pos the position of the chunk in the text
+             * @return {@code false} to stop the visit
+             */
+            boolean visit(CharSequence buf, int start, int end, int pos);
+        }
+
+        /**
+         * Immutable node of the piece tree.
+         */
+        static final class Node {
+            /** The piece refers to the add buffer if {@code true}, otherwise the original buffer. */
+            final boolean added;
+            /** Start index of the piece in the buffer. */
+            final int start;
+            /** Length of the piece. */
+            final int len;
+            /** Number of line feeds in the piece. */
+            final int lf;
+            final Node left;
+            final Node right;
+            final int priority;
+            /** Total length of the subtree. */
+            final int length;
+            /** Total number of line feeds in the subtree. */
+            final int lineFeeds;
+
+            private Node(boolean added, int start, int len, int lf, Node left, Node right, int priority) {
+                this.added = added;
+                this.start = start;
+                this.len = len;
+                this.lf = lf;
+                this.left = left;
+                this.right = right;
+                this.priority = priority;
+                this.length = length(left) + len + length(right);
+                this.lineFeeds = lineFeeds(left) + lf + lineFeeds(right);
+            }
+
+            private Node with(Node left, Node right) {
+                return new Node(added, start, len, lf, left, right, priority);
+            }
+
+            static int length(Node n) {
+                return (n == null) ? 0 : n.length;
+            }
+
+            static int lineFeeds(Node n) {
+                return (n == null) ? 0 : n.lineFeeds;
+            }
+
+            static int depth(Node n) {
+                return (n == null) ? 0 : 1 + Math.max(depth(n.left), depth(n.right));
+            }
+
+            static Node last(Node n) {
+                if (n == null) return null;
+                while (n.right != null) n = n.right;
+                return n;
+            }
+
+            /**
+             * Collect the nodes of the subtree in order.
+             */
+            static void collect(Node n, List<Node> nodes) {
+                if (n == null) return;
+                collect(n.left, nodes);
+                nodes.add(n);
+                collect(n.right, nodes);
+            }
+        }
+    }
+
+    /**
+     * Read-only text of a memory-mapped file.
+     * The file is indexed by pages of bytes from its start, recording the number of chars and line feeds
+     * of each page, and only the pages actually accessed are decoded and cached. The index grows by
+     * {@link #index(int)}, so the head of a file can be read while the rest is still being indexed.
+     * The text is limited to {@code Integer.MAX_VALUE - 8} chars, as the positions in the editor are int.
+     */
+    static class MappedText implements PieceTable.Buffer {
+
+        /** Size of a page in bytes. */
+        private static final int PAGE_SIZE = 64 * 1024;
+        /** Size of a mapped region in bytes, each region overlaps the next one by a page. */
+        private static final long REGION_SIZE = 1L << 30;
+        /** Number of decoded pages to be cached. */
+        private static final int CACHE_SIZE = 64;
+
+        private final Charset charset;
+        /** The chars are stored as they are, without encoding, in the swap. */
+        private final boolean raw;
+        private final MappedByteBuffer[] regions;
+        /** Size of the file in bytes. */
+        private final long size;
+        /** Byte offset of each page, and the end of the indexed bytes at the end. */
+        private final long[] pageByte;
+        /** Char index of each page, and the length of the indexed text at the end. */
+        private final int[] pageChar;
+        /** Number of line feeds before each page, and the total of the indexed text at the end. */
+        private final int[] pageLf;
+        /** Number of the pages indexed, written after the entries of the page, so readers see them published. */
+        private volatile int pages;
+        /** Decoder carried over the pages being indexed. */
+        private final CharsetDecoder indexer;
+        /** The mapped file, and its last modified time when it was mapped. */
+        private java.nio.file.Path path;
+        private long modified;
+        private final Map<Integer, Page> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        private MappedText(Charset charset, boolean raw, MappedByteBuffer[] regions, long size) {
+            this.charset = charset;
+            this.raw = raw;
+            this.regions = regions;
+            this.size = size;
+            int capacity = (int) (size / (PAGE_SIZE / 2)) + 2;
+            this.pageByte = new long[capacity];
+            this.pageChar = new int[capacity];
+            this.pageLf = new int[capacity];
+            this.indexer = raw ? null : decoder(charset);
+        }
+
+        /**
+         * Map the file and index all its pages.
+         * @param path the path of the file
+         * @param charset the charset of the file
+         * @return the mapped text
+         * @throws IOException if an I/O error occurs, or the text is too large
+         */
+        public static MappedText open(java.nio.file.Path path, Charset charset) throws IOException {
+            MappedText text = map(path, charset, false);
+            while (!text.index(1024)) {
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+            }
+            return text;
+        }
+
+        /**
+         * Map the file without indexing it, the pages are indexed by {@link #index(int)}.
+         * @param path the path of the file
+         * @param charset the charset of the file
+         * @return the mapped text, empty until indexed
+         * @throws IOException if an I/O error occurs
+         */
+        public static MappedText map(java.nio.file.Path path, Charset charset) throws IOException {
+            return map(path, charset, false);
+        }
+
+        /**
+         * Write the chars to a swap file as they are, and map it.
+         * The file is deleted once mapped where the platform allows, the mapping lives until unreachable.
+         * @param text the text
+         * @param length the length of the text to be written
+         * @return the mapped copy of the text
+         * @throws IOException if an I/O error occurs
+         */
+        static MappedText swap(CharSequence text, int length) throws IOException {
+            java.nio.file.Path path = Files.createTempFile("kilofx-", ".swap");
+            try {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    ByteBuffer bb = ByteBuffer.allocateDirect(64 * 1024);
+                    for (int i = 0; i < length; ) {
+                        bb.clear();
+                        for (; i < length && bb.hasRemaining(); i++) bb.putChar(text.charAt(i));
+                        bb.flip();
+                        while (bb.hasRemaining()) channel.write(bb);
+                    }
+                }
+                MappedText swap = map(path, StandardCharsets.UTF_16BE, true);
+                swap.index(Integer.MAX_VALUE);
+                return swap;
+            } finally {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    path.toFile().deleteOnExit();
+                }
+            }
+        }
+
+        private static MappedText map(java.nio.file.Path path, Charset charset, boolean raw) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                long size = channel.size();
+                MappedByteBuffer[] regions = new MappedByteBuffer[(int) (size / REGION_SIZE) + 1];
+                for (int i = 0; i < regions.length; i++) {
+                    long pos = i * REGION_SIZE;
+                    regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(REGION_SIZE + PAGE_SIZE, size - pos));
+                }
+                MappedText text = new MappedText(charset, raw, regions, size);
+                text.path = path;
+                text.modified = modified;
+                return text;
+            }
+        }
+
+        /**
+         * Index the next pages of the file, which is called by a single thread at a time.
+         * The text grows by the pages indexed, and can be read by other threads meanwhile.
+         * @param count the number of pages to be indexed at most
+         * @return {@code true} if the whole file is indexed
+         * @throws IOException if the file is not decodable, or the text gets too large
+         */
+        public boolean index(int count) throws IOException {
+            CharBuffer cb = CharBuffer.allocate(PAGE_SIZE);
+            int p = pages;
+            long pos = pageByte[p];
+            long chars = pageChar[p];
+            int lfs = pageLf[p];
+            for (int n = 0; n < count && pos < size; n++) {
+                ByteBuffer bb = slice(regions, pos, (int) Math.min(PAGE_SIZE, size - pos));
+                boolean endOfInput = pos + bb.remaining() == size;
+                cb.clear();
+                if (raw) {
+                    cb.put(bb.asCharBuffer());
+                    bb.position(bb.limit());
+                } else {
+                    indexer.decode(bb, cb, endOfInput);
+                    if (endOfInput) indexer.flush(cb);
+                }
+                if (bb.position() == 0) throw new IOException("Unable to decode " + path);
+                cb.flip();
+                for (int i = 0; i < cb.limit(); i++) {
+                    if (cb.get(i) == '\n') lfs++;
+                }
+                chars += cb.limit();
+                pos += endOfInput ? bb.limit() : bb.position();
+                if (chars > Integer.MAX_VALUE - 8) throw new IOException("Too large file " + path);
+                pageByte[p + 1] = pos;
+                pageChar[p + 1] = (int) chars;
+                pageLf[p + 1] = lfs;
+                pages = ++p;
+            }
+            return pos >= size;
+        }
+
+        /**
+         * Get the number of bytes indexed so far.
+         * @return the number of bytes
+         */
+        public long indexedBytes() {
+            return pageByte[pages];
+        }
+
+        /**
+         * Get the mapped file.
+         * @return the path of the file
+         */
+        public java.nio.file.Path path() {
+            return path;
+        }
+
+        /**
+         * Get whether the file is left as it was mapped, so it still has this text.
+         * @return {@code true} if the file is not changed
+         */
+        public boolean unchanged() {
+            try {
+                return Files.size(path) == size && Files.getLastModifiedTime(path).toMillis() == modified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override public int length() {
+            return pageChar[pages];
+        }
+
+        @Override public char charAt(int index) {
+            int p = pageOf(index);
+            return page(p).chars[index - pageChar[p]];
+        }
+
+        @Override public CharSequence subSequence(int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            visit(start, end, start, (buf, s, e, pos) -> { sb.append(buf, s, e); return true; });
+            return sb.toString();
+        }
+
+        @Override public int countLf(int start, int end) {
+            return lfBefore(end) - lfBefore(start);
+        }
+
+        @Override public int lfPos(int start, int n) {
+            int k = lfBefore(start) + n;
+            int lo = 0, hi = pages;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (pageLf[mid + 1] <= k) lo = mid + 1;
+                else hi = mid;
+            }
+            return pageChar[lo] + page(lo).lfs[k - pageLf[lo]];
+        }
+
+        @Override public void chunk(int index, PieceTable.CharScanner scanner) {
+            int p = pageOf(index);
+            scanner.set(page(p).chars, pageChar[p], pageChar[p + 1]);
+        }
+
+        @Override public boolean visit(int start, int end, int pos, PieceTable.ChunkVisitor visitor) {
+            for (int i = start; i < end; ) {
+                int p = pageOf(i);
+                Page page = page(p);
+                int s = i - pageChar[p];
+                int e = Math.min(end, pageChar[p + 1]) - pageChar[p];
+                if (!visitor.visit(page.buffer, s, e, pos + i - start)) return false;
+                i += e - s;
+            }
+            return true;
+        }
+
+        @Override public String toString() {
+            return subSequence(0, length()).toString();
+        }
+
+        @Override public long heapSize() {
+            long size = pageChar.length * 16L;
+            synchronized (cache) {
+                for (Page page : cache.values()) size += page.chars.length * 2L + page.lfs.length * 4L;
+            }
+            return size;
+        }
+
+        @Override public void trim() {
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+
+        private int lfBefore(int index) {
+            if (index >= length()) return pageLf[pages];
+            int p = pageOf(index);
+            int[] lfs = page(p).lfs;
+            int target = index - pageChar[p];
+            int lo = 0, hi = lfs.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (lfs[mid] < target) lo = mid + 1;
+                else hi = mid;
+            }
+            return pageLf[p] + lo;
+        }
+
+        private int pageOf(int index) {
+            if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(index);
+            int lo = 0, hi = pages - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (pageChar[mid] <= index) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        private Page page(int p) {
+            synchronized (cache) {
+                Page page = cache.get(p);
+                if (page != null) return page;
+            }
+            // decoded out of the lock, so that the pages can be decoded by parallel readers
+            Page page = decode(p);
+            synchronized (cache) {
+                Page cached = cache.putIfAbsent(p, page);
+                return (cached != null) ? cached : page;
+            }
+        }
+
+        private Page decode(int p) {
+            ByteBuffer bb = slice(regions, pageByte[p], (int) (pageByte[p + 1] - pageByte[p]));
+            CharBuffer cb = CharBuffer.allocate(pageChar[p + 1] - pageChar[p]);
+            if (raw) {
+                cb.put(bb.asCharBuffer());
+            } else {
+                CharsetDecoder decoder = decoder(charset);
+                boolean endOfInput = pageByte[p + 1] == size;
+                decoder.decode(bb, cb, endOfInput);
+                if (endOfInput) decoder.flush(cb);
+            }
+            char[] chars = cb.array();
+            int[] lfs = new int[pageLf[p + 1] - pageLf[p]];
+            for (int i = 0, n = 0; i < chars.length && n < lfs.length; i++) {
+                if (chars[i] == '\n') lfs[n++] = i;
+            }
+            return new Page(chars, lfs);
+        }
+
+        private static ByteBuffer slice(MappedByteBuffer[] regions, long pos, int length) {
+            return regions[(int) (pos / REGION_SIZE)].slice((int) (pos % REGION_SIZE), length);
+        }
+
+        private static CharsetDecoder decoder(Charset charset) {
+            return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        private static class Page {
+            final char[] chars;
+            /** Indexes of the line feeds in the page. */
+            final int[] lfs;
+            final CharBuffer buffer;
+            Page(char[] chars, int[] lfs) {
+                this.chars = chars;
+                this.lfs = lfs;
+                this.buffer = CharBuffer.wrap(chars);
+            }
+        }
+    }
+
+    /**
+     * Timings of the phases of a frame, also registered as an MXBean.
+     * The histograms are recorded on the application thread and read without synchronization,
+     * so a reading taken while frames are rendered may be slightly off.
+     */
+    static class FrameStats implements FrameStatsMXBean {
+
+        static final int FETCH = 0;
+        static final int TOKENIZE = 1;
+        static final int LAYOUT = 2;
+        static final int CARET = 3;
+        static final int PAINT = 4;
+        static final int FRAME = 5;
+        private static final String[] NAMES = { "fetch", "tokenize", "layout", "caret", "paint", "frame" };
+
+        private final Histogram[] histograms = new Histogram[NAMES.length];
+        /** The name registered as, or null if not registered. */
+        private ObjectName objectName;
+
+        FrameStats() {
+            for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+        }
+
+        /**
+         * Get the name of the MXBean of the document.
+         * @param name the id of the document
+         * @return the object name
+         */
+        static ObjectName objectName(String name) {
+            try {
+                return new ObjectName("com.mammb.kilofx:type=FrameStats,name=" + ObjectName.quote(name));
+            } catch (MalformedObjectNameException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * Register as the MXBean of the document, to be unregistered when the document is closed.
+         * @param name the id of the document
+         */
+        void register(String name) {
+            try {
+                ObjectName on = objectName(name);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+                objectName = on;
+            } catch (JMException e) {
+                System.getLogger(FrameStats.class.getName()).log(System.Logger.Level.WARNING,
+                    "Failed to register the frame stats of " + name, e);
+            }
+        }
+
+        void unregister() {
+            if (objectName == null) return;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.getLogger(FrameStats.class.getName()).log(System.Logger.Level.WARNING,
+                    "Failed to unregister " + objectName, e);
+            }
+            objectName = null;
+        }
+
+        /**
+         * Record the time of the phase since the start.
+         * @param phase the phase
+         * @param start the start time in nanoseconds
+         * @return the current time in nanoseconds, the start of the next phase
+         */
+        long lap(int phase, long start) {
+            long now = System.nanoTime();
+            histograms[phase].record(now - start);
+            return now;
+        }
+
+        void record(int phase, long nanos) {
+            histograms[phase].record(nanos);
+        }
+
+        Histogram histogram(int phase) {
+            return histograms[phase];
+        }
+
+        String summary() {
+            StringBuilder sb = new StringBuilder("p50/p99 us");
+            for (int i = NAMES.length - 1; i >= 0; i--) {
+                sb.append(i == FRAME ? "  " : "\n").append(NAMES[i]).append(' ')
+                  .append(histograms[i].percentile(50) / 1000).append('/')
+                  .append(histograms[i].percentile(99) / 1000);
+            }
+            return sb.toString();
+        }
+
+        @Override public long getFrames() {
+            return histograms[FRAME].count();
+        }
+
+        @Override public Map<String, Double> getP50() {
+            return percentiles(50);
+        }
+
+        @Override public Map<String, Double> getP99() {
+            return percentiles(99);
+        }
+
+        @Override public String getSummary() {
+            return summary();
+        }
+
+        @Override public void reset() {
+            for (Histogram histogram : histograms) histogram.reset();
+        }
+
+        private Map<String, Double> percentiles(double p) {
+            Map<String, Double> map = new LinkedHashMap<>();
+            for (int i = 0; i < NAMES.length; i++) map.put(NAMES[i], histograms[i].percentile(p) / 1000.0);
+            return map;
+        }
+    }
+
+    /**
+     * Management interface of the frame timings, in microseconds.
+     */
+    public interface FrameStatsMXBean {
+        long getFrames();
+        Map<String, Double> getP50();
+        Map<String, Double> getP99();
+        String getSummary();
+        void reset();
+    }
+
+    /**
+     * Histogram of non-negative values with log-linear buckets.
+     * Each power of two is divided into 32 buckets, so a value is kept within about 3%.
+     */
+    static class Histogram {
+
+        private static final int SUB_BITS = 5;
+        private static final int SUB_SIZE = 1 << SUB_BITS;
+        private final long[] counts = new long[64 * SUB_SIZE];
+        private long count;
+        private long max;
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts[index(value)]++;
+            count++;
+            if (value > max) max = value;
+        }
+
+        public long count() {
+            return count;
         }
 
-        public int maxPos() {
-            return sb.length();
+        public long max() {
+            return max;
         }
 
-        private int fitInRange(int pos) {
-            return (pos < 0) ? 0 : Math.min(pos, maxPos());
+        /**
+         * Get the value at the percentile.
+         * @param percentile the percentile [0..100]
+         * @return the lowest value of the bucket holding the percentile, or 0 if empty
+         */
+        public long percentile(double percentile) {
+            long rank = Math.max((long) Math.ceil(count * percentile / 100), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(valueOf(i), max);
+            }
+            return 0;
         }
 
-        int getHeadOfLinePos(int pos) {
-            for (int i = pos - 1; i >= 0; i--) {
-                if (sb.charAt(i) == '\n') {
-                    return i + 1;
+        public void reset() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            max = 0;
+        }
+
+        static int index(long value) {
+            if (value < 2 * SUB_SIZE) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift << SUB_BITS) + (int) (value >>> shift);
+        }
+
+        static long valueOf(int index) {
+            if (index < 2 * SUB_SIZE) return index;
+            int shift = (index >>> SUB_BITS) - 1;
+            return (long) (index - (shift << SUB_BITS)) << shift;
+        }
+    }
+
+    /**
+     * Growable array of int.
+     */
+    static class IntArray {
+
+        private int[] values = new int[16];
+        private int size = 0;
+
+        public void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        public int get(int index) {
+            return values[index];
+        }
+
+        public void set(int index, int value) {
+            values[index] = value;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        /**
+         * Get the index of the first value not less than the given value, for the values in ascending order.
+         * @param value the value
+         * @return the index
+         */
+        public int lowerBound(int value) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] < value) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Map of the rows of the viewport to the text.
+     * Each row shows the window of the visual columns of a line, or a visual row of a wrapped line,
+     * which starts at a position of the line and at an index in the text node.
+     */
+    static class RowMap {
+        /** The line of the first row. */
+        int firstLine;
+        /** The number of the rows of the first line above the first row, if wrapped. */
+        int firstSub;
+        /** The line of each row. */
+        final IntArray lines = new IntArray();
+        /** The position of the first char shown in each row. */
+        final IntArray starts = new IntArray();
+        /** The position next to the last char shown in each row. */
+        final IntArray ends = new IntArray();
+        /** The index in the text node of the first char shown in each row. */
+        final IntArray offsets = new IntArray();
+        /** The number of the chars of the line left of the window in each row. */
+        final IntArray skips = new IntArray();
+
+        void clear() {
+            lines.clear();
+            starts.clear();
+            ends.clear();
+            offsets.clear();
+            skips.clear();
+        }
+
+        void add(int line, int start, int offset, int skip) {
+            lines.add(line);
+            starts.add(start);
+            offsets.add(offset);
+            skips.add(skip);
+        }
+
+        void end(int end) {
+            ends.add(end);
+        }
+
+        int size() {
+            return starts.size();
+        }
+
+        /**
+         * Get the index in the text node of the position, clamped to the window of the row.
+         * @param line the line of the position
+         * @param pos the position
+         * @return the index in the text node
+         */
+        int indexOf(int line, int pos) {
+            if (size() == 0 || line < firstLine) return 0;
+            // the last row of the line, then back to the row of the position
+            int row = lines.lowerBound(line + 1) - 1;
+            if (lines.get(row) < line) {
+                pos = ends.get(row);
+            } else {
+                while (row > 0 && lines.get(row - 1) == line && starts.get(row) > pos) row--;
+            }
+            return offsets.get(row) + Math.max(Math.min(pos, ends.get(row)) - starts.get(row), 0);
+        }
+
+        /**
+         * Get the row of the line which shows the chars from the skip.
+         * @param line the line
+         * @param skip the number of the chars of the line left of the row
+         * @return the row, or -1 if not shown
+         */
+        int find(int line, int skip) {
+            for (int row = lines.lowerBound(line); row < size() && lines.get(row) == line; row++) {
+                if (skips.get(row) == skip) return row;
+            }
+            return -1;
+        }
+
+        /**
+         * Get whether the row continues the line of the row above it.
+         * @param row the row
+         * @return {@code true} if the row is not the first row of its line
+         */
+        boolean continued(int row) {
+            return (row == 0) ? firstSub > 0 : lines.get(row) == lines.get(row - 1);
+        }
+
+        /**
+         * Get the position of the index in the text node.
+         * @param index the index in the text node
+         * @return the position
+         */
+        int posOf(int index) {
+            for (int row = 0; row < size(); row++) {
+                int len = ends.get(row) - starts.get(row);
+                // the row ends at its line feed in the text node
+                if (index <= offsets.get(row) + len || row == size() - 1) {
+                    return starts.get(row) + Math.min(Math.max(index - offsets.get(row), 0), len);
                 }
             }
             return 0;
         }
+    }
 
-        int getTailOfLinePos(int pos) {
-            if (pos > (sb.length() - 1)) return maxPos();
-            int index = sb.indexOf("\n", pos);
-            return (index == -1) ? maxPos() : index;
+    /**
+     * Index of the visual rows of the lines wrapped at a number of the visual columns.
+     * The rows of the lines are summed in a Fenwick tree, so the first row of a line and the line
+     * of a row are found in O(log n). Only the edited lines are wrapped again; when the columns
+     * change, the counts are kept as estimates and the lines are wrapped again in slices by
+     * {@link #sweep(long)}.
+     */
+    static class WrapIndex implements SessionBuffer.EditListener {
+
+        /** Edits adding more lines than this are left to the sweep. */
+        private static final int EAGER_LINES = 1024;
+        private final SessionBuffer session;
+        private int cols;
+        /** The rows of each line. */
+        private int[] counts = new int[0];
+        /** The Fenwick tree of the counts, 1 origin, rebuilt lazily when lines are added or removed. */
+        private int[] tree = new int[1];
+        private boolean treeValid = false;
+        private int lines = 0;
+        private int total = 0;
+        /** The lines [0, swept) are wrapped at the current columns. */
+        private int swept = 0;
+
+        WrapIndex(SessionBuffer session, int cols) {
+            this.session = session;
+            this.cols = Math.max(cols, 1);
+            lines = session.lineCount();
+            counts = new int[Math.max(lines, 1024)];
+            Arrays.fill(counts, 0, lines, 1);
+            total = lines;
+            session.addListener(this);
         }
 
-        boolean isLastLine(int pos) {
-            return sb.indexOf("\n", pos) == -1 || pos > (sb.length() - 1);
+        /**
+         * Stop following the edits.
+         */
+        void close() {
+            session.removeListener(this);
         }
 
-        @Override public String toString() {
-            return sb.toString();
+        int cols() {
+            return cols;
+        }
+
+        /**
+         * Change the columns of a row. The counts are kept until they are wrapped again.
+         * @param cols the number of the visual columns of a row
+         * @return {@code true} if changed
+         */
+        boolean cols(int cols) {
+            cols = Math.max(cols, 1);
+            if (cols == this.cols) return false;
+            this.cols = cols;
+            swept = 0;
+            return true;
+        }
+
+        /**
+         * Get whether all the lines are wrapped at the current columns.
+         * @return {@code true} if all the lines are wrapped
+         */
+        boolean swept() {
+            return swept >= lines;
+        }
+
+        int total() {
+            return total;
+        }
+
+        int rows(int line) {
+            return counts[line];
+        }
+
+        /**
+         * Get the rows of the line, wrapping it if not yet wrapped at the current columns.
+         * @param line the line
+         * @return the rows of the line
+         */
+        int exact(int line) {
+            if (line >= swept) set(line, session.wrapCount(line, cols));
+            return counts[line];
+        }
+
+        /**
+         * Get the first row of the line.
+         * @param line the line
+         * @return the sum of the rows of the lines above the line
+         */
+        int rowOf(int line) {
+            if (line >= lines) return total;
+            ensureTree();
+            int sum = 0;
+            for (int i = line; i > 0; i -= i & -i) sum += tree[i];
+            return sum;
+        }
+
+        /**
+         * Get the line of the row.
+         * @param row the row
+         * @return the line which has the row
+         */
+        int lineAt(int row) {
+            ensureTree();
+            int line = 0;
+            for (int step = Integer.highestOneBit(lines); step > 0; step >>= 1) {
+                if (line + step <= lines && tree[line + step] <= row) {
+                    line += step;
+                    row -= tree[line];
+                }
+            }
+            return Math.min(line, lines - 1);
+        }
+
+        /**
+         * Wrap the lines not yet wrapped at the current columns, until the deadline.
+         * @param deadline the deadline in {@link System#nanoTime()}
+         * @return {@code true} if all the lines are wrapped
+         */
+        boolean sweep(long deadline) {
+            while (swept < lines) {
+                set(swept, session.wrapCount(swept, cols));
+                swept++;
+                if ((swept & 63) == 0 && System.nanoTime() > deadline) break;
+            }
+            return swept();
+        }
+
+        @Override public void edited(int line, int removed, int added) {
+            if (removed == added) {
+                // the lines are replaced in place, and the tree is kept up to date with the counts
+                for (int i = line + 1; i <= line + added; i++) set(i, 1);
+            } else {
+                int n = lines + added - removed;
+                for (int i = line + 1; i <= line + removed; i++) total -= counts[i];
+                if (n > counts.length) counts = Arrays.copyOf(counts, Math.max(counts.length * 2, n));
+                System.arraycopy(counts, line + removed + 1, counts, line + added + 1, lines - (line + removed + 1));
+                Arrays.fill(counts, line + 1, line + added + 1, 1);
+                total += added;
+                lines = n;
+                treeValid = false;
+            }
+            if (swept > line + removed) swept += added - removed;
+            else if (swept > line) swept = line + added + 1;
+            if (added > EAGER_LINES) {
+                swept = Math.min(swept, line);
+                return;
+            }
+            for (int i = line; i <= line + added; i++) set(i, session.wrapCount(i, cols));
         }
 
+        private void set(int line, int count) {
+            int delta = count - counts[line];
+            if (delta == 0) return;
+            counts[line] = count;
+            total += delta;
+            if (treeValid) for (int i = line + 1; i <= lines; i += i & -i) tree[i] += delta;
+        }
+
+        private void ensureTree() {
+            if (treeValid) return;
+            if (tree.length < lines + 1) tree = new int[Math.max(tree.length * 2, lines + 1)];
+            for (int i = 1; i <= lines; i++) tree[i] = counts[i - 1];
+            for (int i = 1; i <= lines; i++) {
+                int j = i + (i & -i);
+                if (j <= lines) tree[j] += tree[i];
+            }
+            treeValid = true;
+        }
     }
 
-    static class History {
-        public final boolean del;
-        public final int pos;
-        public final String str;
-        private History(boolean del, int pos, String str) {
-            this.del = del;
-            this.pos = pos;
-            this.str = str;
+    /**
+     * Stack of edits for undo and redo, kept in primitive arrays.
+     * An edit replaces the text at a position, and the removed and the added text are recorded
+     * as pieces of the buffers of the piece table, so no text is copied. The oldest edits are
+     * dropped when the log grows beyond its memory budget.
+     */
+    static class EditLog {
+
+        /** Default memory budget in bytes. */
+        static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+        private static final int ENTRY_BYTES = 5 * Integer.BYTES;
+
+        private final long budget;
+        private int size = 0;
+        private int[] pos = new int[64];
+        private int[] removed = new int[64];
+        private int[] added = new int[64];
+        /** Index of the first removed piece of each entry, the added pieces follow the removed ones. */
+        private int[] piecesFrom = new int[64];
+        /** Index of the first added piece of each entry. */
+        private int[] addedFrom = new int[64];
+        /** Pieces as pairs of the start in the buffer, complemented for the add buffer, and the length. */
+        private int[] pieces = new int[256];
+        private int piecesSize = 0;
+
+        EditLog(long budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Push an edit.
+         * @param pos the position of the edit
+         * @param removed the length of the removed text
+         * @param added the length of the added text
+         * @param removedPieces the pieces of the removed text
+         * @param addedPieces the pieces of the added text
+         */
+        void push(int pos, int removed, int added, IntArray removedPieces, IntArray addedPieces) {
+            if (size == this.pos.length) {
+                int n = size * 2;
+                this.pos = Arrays.copyOf(this.pos, n);
+                this.removed = Arrays.copyOf(this.removed, n);
+                this.added = Arrays.copyOf(this.added, n);
+                piecesFrom = Arrays.copyOf(piecesFrom, n);
+                addedFrom = Arrays.copyOf(addedFrom, n);
+            }
+            this.pos[size] = pos;
+            this.removed[size] = removed;
+            this.added[size] = added;
+            piecesFrom[size] = piecesSize;
+            appendPieces(removedPieces);
+            addedFrom[size] = piecesSize;
+            appendPieces(addedPieces);
+            size++;
+            if (bytes() > budget) trim();
+        }
+
+        /**
+         * Move the last edit to the other log, as the inverse edit.
+         * @param to the log to push the inverse
+         */
+        void moveInverseTo(EditLog to) {
+            IntArray addedPieces = piecesOf(piecesFrom[size - 1], addedFrom[size - 1]);
+            IntArray removedPieces = piecesOf(addedFrom[size - 1], piecesSize);
+            to.push(pos(), added(), removed(), removedPieces, addedPieces);
+            pop();
+        }
+
+        void pop() {
+            size--;
+            piecesSize = piecesFrom[size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+            piecesSize = 0;
+        }
+
+        int pos() {
+            return pos[size - 1];
+        }
+
+        int removed() {
+            return removed[size - 1];
+        }
+
+        int added() {
+            return added[size - 1];
+        }
+
+        /** Get the pieces of the text removed by the last edit. */
+        IntArray removedPieces() {
+            return removedPieces(size - 1);
+        }
+
+        /** Get the pieces of the text added by the last edit. */
+        IntArray addedPieces() {
+            return addedPieces(size - 1);
+        }
+
+        int pos(int index) {
+            return pos[index];
         }
-        public static History insertOf(int pos, String str) {
-            return new History(false, pos, str);
+
+        /**
+         * Get the oldest edit of the recent edits, each of which has no more chars than the limit.
+         * @param max the limit of the removed and the added chars of an edit
+         * @return the index of the oldest edit after the last one over the limit
+         */
+        int within(int max) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (removed[i] > max || added[i] > max) return i + 1;
+            }
+            return 0;
+        }
+
+        /**
+         * Get a copy of this log, which can be read from another thread.
+         * @return the copy
+         */
+        EditLog copy() {
+            EditLog log = new EditLog(budget);
+            log.size = size;
+            log.pos = Arrays.copyOf(pos, size);
+            log.removed = Arrays.copyOf(removed, size);
+            log.added = Arrays.copyOf(added, size);
+            log.piecesFrom = Arrays.copyOf(piecesFrom, size);
+            log.addedFrom = Arrays.copyOf(addedFrom, size);
+            log.pieces = Arrays.copyOf(pieces, piecesSize);
+            log.piecesSize = piecesSize;
+            return log;
+        }
+
+        /** Get the pieces of the text removed by the edit, the oldest edit is at index 0. */
+        IntArray removedPieces(int index) {
+            return piecesOf(piecesFrom[index], addedFrom[index]);
+        }
+
+        /** Get the pieces of the text added by the edit, the oldest edit is at index 0. */
+        IntArray addedPieces(int index) {
+            return piecesOf(addedFrom[index], index + 1 < size ? piecesFrom[index + 1] : piecesSize);
+        }
+
+        long bytes() {
+            return (long) size * ENTRY_BYTES + (long) piecesSize * Integer.BYTES;
         }
-        public static History deleteOf(int pos, String str) {
-            return new History(true, pos, str);
+
+        private IntArray piecesOf(int from, int to) {
+            IntArray ret = new IntArray();
+            for (int i = from; i < to; i++) ret.add(pieces[i]);
+            return ret;
         }
-        public History inverse() {
-            return new History(!del, pos, str);
+
+        private void appendPieces(IntArray src) {
+            if (piecesSize + src.size() > pieces.length) {
+                pieces = Arrays.copyOf(pieces, Math.max(pieces.length * 2, piecesSize + src.size()));
+            }
+            for (int i = 0; i < src.size(); i++) pieces[piecesSize++] = src.get(i);
         }
-        public int getToPos() {
-            return del ? pos : pos + str.length();
+
+        /**
+         * Drop the oldest edits down to 3/4 of the budget, at least one but never the last.
+         */
+        private void trim() {
+            int drop = 0;
+            long bytes = bytes();
+            while (drop < size - 1 && (drop == 0 || bytes > budget * 3 / 4)) {
+                int next = piecesFrom[drop + 1];
+                bytes -= ENTRY_BYTES + (long) (next - piecesFrom[drop]) * Integer.BYTES;
+                drop++;
+            }
+            int shift = piecesFrom[drop];
+            System.arraycopy(pieces, shift, pieces, 0, piecesSize - shift);
+            piecesSize -= shift;
+            size -= drop;
+            System.arraycopy(pos, drop, pos, 0, size);
+            System.arraycopy(removed, drop, removed, 0, size);
+            System.arraycopy(added, drop, added, 0, size);
+            System.arraycopy(piecesFrom, drop, piecesFrom, 0, size);
+            System.arraycopy(addedFrom, drop, addedFrom, 0, size);
+            for (int i = 0; i < size; i++) {
+                piecesFrom[i] -= shift;
+                addedFrom[i] -= shift;
+            }
         }
     }
 
-    // -- helper --------------------------------------------------------------
+    /**
+     * Append-only journal of the edits of a document, kept in a memory-mapped file.
+     * The journal is replayed to restore the undo history when the file is reopened, and
+     * also the edits made after the last save when the editor did not exit cleanly.
+     * A record is framed by its length and a checksum, so a torn record at the end is ignored.
+     */
+    static class Journal {
+
+        /** An edit replacing the text, which is pushed to the undo log. */
+        static final byte EDIT = 1;
+        /** An adjacent edit coalesced into the last undo entry. */
+        static final byte AMEND = 2;
+        static final byte UNDO = 3;
+        static final byte REDO = 4;
+        /** An entry of the redo log, written by the compaction. */
+        static final byte REDO_ENTRY = 5;
+        /** A save of the text, with the hash and the number of the edits before it. */
+        static final byte SAVED = 6;
+
+        /** Directory of the journals, under the state directory given by {@code -Dkilofx.stateDir}. */
+        static final java.nio.file.Path DIR = java.nio.file.Path.of(System.getProperty("kilofx.stateDir",
+            System.getProperty("user.home") + File.separator + ".kilofx"), "journal");
+        /** Edits of more chars than this are not journaled, the journal is dropped instead. */
+        static final int MAX_TEXT = 8 * 1024 * 1024;
+        /** The journal is compacted on save when it is larger than this size in bytes. */
+        static final long COMPACT_SIZE = 4L * 1024 * 1024;
+        private static final int MAGIC = 0x4B464A31;
+        private static final int HEADER = 4;
+        private static final int REGION = 1024 * 1024;
+
+        private final java.nio.file.Path path;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer buffer;
+        /** The end of the records. */
+        private int end;
+        /** Number of the records except {@link #SAVED}. */
+        private int edits;
+        /** The last save, the number of the edits before it is -1 if there is no save. */
+        private long savedHash;
+        private int savedLength;
+        private int savedSeq = -1;
+
+        private Journal(java.nio.file.Path path, FileChannel channel) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            map(Math.max(channel.size(), REGION));
+            if (channel.size() < HEADER + 4 || buffer.getInt(0) != MAGIC) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(HEADER, 0);
+            }
+            end = HEADER;
+            for (int len; (len = recordLength(end)) > 0; end += len) {
+                if (buffer.get(end + 4) != SAVED) {
+                    edits++;
+                } else {
+                    savedHash = buffer.getLong(end + 5);
+                    savedLength = buffer.getInt(end + 13);
+                    savedSeq = buffer.getInt(end + 17);
+                }
+            }
+        }
+
+        /**
+         * Open the journal, which is created if it does not exist.
+         * @param path the path of the journal
+         * @return the journal
+         * @throws IOException if an I/O error occurs
+         */
+        static Journal open(java.nio.file.Path path) throws IOException {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            return new Journal(path, FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+
+        /**
+         * Write a new journal in a temporary file, which then replaces the journal atomically.
+         * @param path the path of the journal
+         * @param content the writer of the records
+         * @return the opened journal
+         * @throws IOException if an I/O error occurs
+         */
+        static Journal create(java.nio.file.Path path, Consumer<Journal> content) throws IOException {
+            return replace(write(path, content), path);
+        }
+
+        /**
+         * Write a new journal in a temporary file, to replace the journal by {@link #replace}.
+         * @param path the path of the journal
+         * @param content the writer of the records
+         * @return the path of the temporary file
+         * @throws IOException if an I/O error occurs
+         */
+        static java.nio.file.Path write(java.nio.file.Path path, Consumer<Journal> content) throws IOException {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            java.nio.file.Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName(), ".tmp");
+            try {
+                Journal journal = new Journal(tmp, FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                try {
+                    content.accept(journal);
+                } finally {
+                    journal.close();
+                }
+                return tmp;
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+        }
+
+        /**
+         * Replace the journal atomically with the new journal written in the temporary file.
+         * @param tmp the temporary file by {@link #write}
+         * @param path the path of the journal
+         * @return the opened journal
+         * @throws IOException if an I/O error occurs
+         */
+        static Journal replace(java.nio.file.Path tmp, java.nio.file.Path path) throws IOException {
+            try {
+                try {
+                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return open(path);
+        }
+
+        /**
+         * Open the journal of the file.
+         * If the journal was not saved with the content of the file, a new journal is created,
+         * as the history does not apply to the file changed out of the editor.
+         * @param file the file
+         * @param hash the hash of the content of the file
+         * @param length the length of the content of the file
+         * @return the journal
+         * @throws IOException if an I/O error occurs
+         */
+        static Journal openFor(File file, long hash, int length) throws IOException {
+            java.nio.file.Path path = pathOf(file);
+            if (Files.exists(path)) {
+                Journal journal = open(path);
+                if (journal.savedSeq >= 0 && journal.savedHash == hash && journal.savedLength == length) {
+                    return journal;
+                }
+                journal.close();
+            }
+            return create(path, journal -> journal.saved(hash, length, 0));
+        }
+
+        /**
+         * Get the path of the journal of the file.
+         * @param file the file
+         * @return the path of the journal
+         */
+        static java.nio.file.Path pathOf(File file) {
+            return DIR.resolve(id(file) + ".journal");
+        }
+
+        /**
+         * Get the id of the file, used to name the state of the file.
+         * @param file the file, or null for an untitled text
+         * @return the id
+         */
+        static String id(File file) {
+            if (file == null) return "untitled";
+            String name = file.getAbsolutePath();
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) h = (h ^ name.charAt(i)) * 0x100000001b3L;
+            return file.getName() + "-" + Long.toHexString(h);
+        }
+
+        /**
+         * Get the hash of the text, which identifies the content of the saved file.
+         * @param text the text
+         * @return the hash
+         */
+        static long hash(PieceTable text) {
+            long[] h = { 0xcbf29ce484222325L };
+            text.visit(0, text.length(), false, (buf, s, e, pos) -> {
+                long v = h[0];
+                for (int i = s; i < e; i++) v = (v ^ buf.charAt(i)) * 0x100000001b3L;
+                h[0] = v;
+                return true;
+            });
+            return h[0];
+        }
+
+        java.nio.file.Path path() {
+            return path;
+        }
+
+        /** Get the number of the records except {@link #SAVED}. */
+        int edits() {
+            return edits;
+        }
+
+        /** Get the size of the records in bytes. */
+        long size() {
+            return end;
+        }
+
+        /** Get the number of the edits applied to the text of the last save. */
+        int savedSeq() {
+            return savedSeq;
+        }
+
+        void edit(byte kind, int pos, String a, String b, String c) {
+            long size = 1 + 4 + 12 + 2L * (a.length() + b.length() + c.length());
+            if (size > Integer.MAX_VALUE - 12) throw new IllegalArgumentException("record too large: " + size);
+            int len = (int) size;
+            ByteBuffer bb = begin(kind, len);
+            bb.putInt(pos);
+            putString(bb, a);
+            putString(bb, b);
+            putString(bb, c);
+            commit(len);
+            edits++;
+        }
+
+        void edit(byte kind) {
+            begin(kind, 1);
+            commit(1);
+            edits++;
+        }
+
+        /**
+         * Record the save of the text.
+         * @param hash the hash of the saved text
+         * @param length the length of the saved text
+         * @param seq the number of the edits applied to the saved text
+         */
+        void saved(long hash, int length, int seq) {
+            int len = 1 + 8 + 4 + 4;
+            ByteBuffer bb = begin(SAVED, len);
+            bb.putLong(hash);
+            bb.putInt(length);
+            bb.putInt(seq);
+            commit(len);
+            savedHash = hash;
+            savedLength = length;
+            savedSeq = seq;
+        }
+
+        /**
+         * Read all the records.
+         * @return the records
+         */
+        List<Record> records() {
+            List<Record> records = new ArrayList<>();
+            for (int at = HEADER, len; (len = recordLength(at)) > 0; at += len) {
+                ByteBuffer bb = buffer.duplicate().position(at + 4);
+                byte kind = bb.get();
+                records.add(switch (kind) {
+                    case SAVED -> new Record(kind, 0, "", "", "", bb.getLong(), bb.getInt(), bb.getInt());
+                    case UNDO, REDO -> new Record(kind, 0, "", "", "", 0, 0, 0);
+                    default -> new Record(kind, bb.getInt(), getString(bb), getString(bb), getString(bb), 0, 0, 0);
+                });
+            }
+            return records;
+        }
+
+        void close() {
+            try (channel) {
+                buffer.force();
+                channel.truncate(end + 4L);
+            } catch (IOException ignore) { }
+        }
+
+        /**
+         * Drop the edits made after the last save, and close the journal.
+         * The journal is deleted if there is no save to go back to.
+         */
+        void discard() {
+            if (savedSeq < 0) {
+                delete();
+                return;
+            }
+            int at = HEADER;
+            for (int seq = 0, len; seq < savedSeq && (len = recordLength(at)) > 0; at += len) {
+                if (buffer.get(at + 4) != SAVED) seq++;
+            }
+            buffer.putInt(at, 0);
+            end = at;
+            edits = savedSeq;
+            saved(savedHash, savedLength, savedSeq);
+            close();
+        }
+
+        /**
+         * Close and delete the journal.
+         */
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignore) { }
+        }
+
+        private ByteBuffer begin(byte kind, int len) {
+            if ((long) end + len + 12 > buffer.capacity()) {
+                map(Math.max(buffer.capacity() * 2L, end + len + 12L + REGION));
+            }
+            ByteBuffer bb = buffer.duplicate().position(end);
+            bb.putInt(len);
+            bb.put(kind);
+            return bb;
+        }
+
+        private void commit(int len) {
+            crc.reset();
+            crc.update(buffer.duplicate().position(end + 4).limit(end + 4 + len));
+            buffer.putInt(end + 4 + len, (int) crc.getValue());
+            // the terminator is written before the end moves, so a reader never goes beyond it
+            buffer.putInt(end + 8 + len, 0);
+            end += 8 + len;
+        }
+
+        /**
+         * Get the length of the record at the position.
+         * @param at the position
+         * @return the length of the framed record, or 0 if there is no valid record
+         */
+        private int recordLength(int at) {
+            if (at + 4 > buffer.capacity()) return 0;
+            int len = buffer.getInt(at);
+            if (len <= 0 || (long) at + 8 + len > buffer.capacity()) return 0;
+            crc.reset();
+            crc.update(buffer.duplicate().position(at + 4).limit(at + 4 + len));
+            return buffer.getInt(at + 4 + len) == (int) crc.getValue() ? 8 + len : 0;
+        }
+
+        private void map(long size) {
+            try {
+                if (size > Integer.MAX_VALUE) throw new IOException("journal too large: " + path);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static void putString(ByteBuffer bb, String str) {
+            bb.putInt(str.length());
+            for (int i = 0; i < str.length(); i++) bb.putChar(str.charAt(i));
+        }
 
-    private static List<String> split(String str, char c) {
-        List<String> list = new ArrayList<>();
-        int n = 0;
-        for (int i = 0; i < str.length(); i++) {
-            if (str.codePointAt(i) == c) {
-                list.add(str.substring(n, i + 1));
-                n = i + 1;
+        private static String getString(ByteBuffer bb) {
+            char[] chars = new char[bb.getInt()];
+            for (int i = 0; i < chars.length; i++) chars[i] = bb.getChar();
+            return new String(chars);
+        }
+
+        /**
+         * Record of the journal.
+         * For the edits, the text {@code a} is removed at {@code pos} and {@code b} is added there.
+         * For an amend, {@code a} is removed before and {@code b} after the position of the last entry,
+         * which then starts at {@code pos}, and {@code c} is appended to its added text.
+         */
+        static class Record {
+            final byte kind;
+            final int pos;
+            final String a;
+            final String b;
+            final String c;
+            final long hash;
+            final int length;
+            final int seq;
+
+            Record(byte kind, int pos, String a, String b, String c, long hash, int length, int seq) {
+                this.kind = kind;
+                this.pos = pos;
+                this.a = a;
+                this.b = b;
+                this.c = c;
+                this.hash = hash;
+                this.length = length;
+                this.seq = seq;
             }
         }
-        if (n < str.length()) list.add(str.substring(n));
-        return list;
     }
 
-    private static String removeLf(String s) {
-        return (s.charAt(s.length() - 1) == '\n') ? s.substring(0, s.length() - 1) : s;
+    /**
+     * Recovery snapshots of an unsaved text, written in the background.
+     * The add buffer of the piece table is append-only, so only the chars appended since the
+     * last snapshot are written, along with the list of the pieces. The original buffer is
+     * written once, unless it is mapped from a file which is left unchanged.
+     */
+    static class Recovery {
+
+        /** Directory of the recovery snapshots. */
+        static final java.nio.file.Path DIR = Journal.DIR.resolveSibling("recovery");
+        private static final int MAGIC = 0x4B465231;
+
+        /** The id of the snapshot of the untitled text, unique among the documents. */
+        private final String untitled;
+        /** The id of the snapshot being written. */
+        private String id;
+        /** The original buffer of the snapshot being written. */
+        private PieceTable.Buffer original;
+        /** The original buffer is written in the .orig file. */
+        private boolean originalWritten;
+        /** Number of the chars of the add buffer written in the .add file. */
+        private int addWritten;
+
+        Recovery() {
+            this(Journal.id(null));
+        }
+
+        Recovery(String untitled) {
+            this.untitled = untitled;
+        }
+
+        /**
+         * Write the snapshot, which is called on a background thread.
+         * @param text the snapshot of the text
+         * @param file the file of the text, or null for an untitled text
+         * @param position the position of the caret
+         * @throws IOException if an I/O error occurs
+         */
+        void write(PieceTable text, File file, int position) throws IOException {
+            String id = (file == null) ? untitled : Journal.id(file);
+            if (!id.equals(this.id) || text.original() != original) {
+                // the text is loaded or saved as another file, so it starts over, without the files left in the id
+                delete();
+                discard(id);
+                this.id = id;
+                original = text.original();
+            }
+            Files.createDirectories(DIR);
+            MappedText source = (original instanceof MappedText) ? (MappedText) original : null;
+            if (source != null && !source.unchanged()) source = null;
+            if (source == null && !originalWritten && original.length() > 0) {
+                SessionBuffer.write(new PieceTable(original), DIR.resolve(id + ".orig"));
+                originalWritten = true;
+            }
+
+            PieceTable.Buffer added = text.addBuffer();
+            try (FileChannel channel = FileChannel.open(DIR.resolve(id + ".add"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer bb = ByteBuffer.allocate(16 * 1024);
+                channel.position(addWritten * 2L);
+                for (int i = addWritten; i < added.length(); ) {
+                    bb.clear();
+                    for (; i < added.length() && bb.hasRemaining(); i++) bb.putChar(added.charAt(i));
+                    bb.flip();
+                    while (bb.hasRemaining()) channel.write(bb);
+                }
+                channel.force(false);
+            }
+            addWritten = added.length();
+
+            // the pieces refer only the chars already written, and replace the last ones atomically
+            IntArray pieces = text.pieces(0, text.length());
+            java.nio.file.Path meta = DIR.resolve(id + ".meta");
+            java.nio.file.Path tmp = Files.createTempFile(DIR, "." + id, ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeUTF(file == null ? "" : file.getAbsolutePath());
+                    out.writeUTF(source == null ? "" : source.path().toAbsolutePath().toString());
+                    out.writeInt(addWritten);
+                    out.writeInt(position);
+                    out.writeInt(pieces.size());
+                    for (int i = 0; i < pieces.size(); i++) out.writeInt(pieces.get(i));
+                }
+                Files.move(tmp, meta, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        /**
+         * Delete the snapshot being written, which is called on a background thread.
+         * @throws IOException if an I/O error occurs
+         */
+        void delete() throws IOException {
+            if (id != null) discard(id);
+            id = null;
+            original = null;
+            originalWritten = false;
+            addWritten = 0;
+        }
+
+        /**
+         * Delete the snapshot.
+         * @param id the id of the snapshot
+         * @throws IOException if an I/O error occurs
+         */
+        static void discard(String id) throws IOException {
+            Files.deleteIfExists(DIR.resolve(id + ".meta"));
+            Files.deleteIfExists(DIR.resolve(id + ".add"));
+            Files.deleteIfExists(DIR.resolve(id + ".orig"));
+        }
+
+        /**
+         * Get the ids of the snapshots left in the recovery directory, the latest first.
+         * @return the ids, or empty if there is none
+         */
+        static List<String> leftovers() {
+            if (!Files.isDirectory(DIR)) return List.of();
+            try (Stream<java.nio.file.Path> files = Files.list(DIR)) {
+                return files.filter(p -> p.getFileName().toString().endsWith(".meta"))
+                    .sorted(Comparator.comparingLong((java.nio.file.Path p) -> p.toFile().lastModified()).reversed())
+                    .map(p -> p.getFileName().toString().replaceFirst("\\.meta$", ""))
+                    .toList();
+            } catch (IOException e) {
+                return List.of();
+            }
+        }
+
+        /**
+         * Read the snapshot, and continue to write it as this recovery.
+         * @param id the id of the snapshot
+         * @param session the session to be restored
+         * @return the runnable to restore the session on the application thread
+         * @throws IOException if an I/O error occurs, or the original text is lost
+         */
+        Runnable read(String id, SessionBuffer session) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(DIR.resolve(id + ".meta"))))) {
+                if (in.readInt() != MAGIC) throw new IOException("broken recovery: " + id);
+                String file = in.readUTF();
+                String source = in.readUTF();
+                int addLength = in.readInt();
+                int position = in.readInt();
+                IntArray pieces = new IntArray();
+                for (int i = in.readInt(); i > 0; i--) pieces.add(in.readInt());
+
+                java.nio.file.Path orig = DIR.resolve(id + ".orig");
+                CharSequence original = !source.isEmpty() ? MappedText.open(java.nio.file.Path.of(source), StandardCharsets.UTF_8)
+                    : !Files.exists(orig) ? ""
+                    : Files.size(orig) > Settings.largeFileSize ? MappedText.open(orig, StandardCharsets.UTF_8)
+                    : Files.readString(orig);
+                if (original instanceof MappedText && !source.isEmpty() && !((MappedText) original).unchanged()) {
+                    throw new IOException("the original text is lost: " + source);
+                }
+                byte[] bytes = new byte[addLength * 2];
+                try (InputStream add = Files.newInputStream(DIR.resolve(id + ".add"))) {
+                    if (add.readNBytes(bytes, 0, bytes.length) != bytes.length) throw new IOException("broken recovery: " + id);
+                }
+                String added = new String(bytes, StandardCharsets.UTF_16BE);
+                this.id = id;
+                this.originalWritten = Files.exists(orig);
+                this.addWritten = addLength;
+                return () -> {
+                    session.restore(file.isEmpty() ? null : new File(file), original, added, pieces, position);
+                    this.original = session.snapshot().original();
+                };
+            }
+        }
     }
 
+    // -- helper --------------------------------------------------------------
+
     private static File fileChooseOpen(Window owner) {
         FileChooser fc = new FileChooser();
         fc.setTitle("Select file...");
@@ -1127,6 +7179,13 @@ public class App extends Application {
         return fc.showSaveDialog(owner);
     }
 
+    private static Rectangle clip(Region region) {
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(region.widthProperty());
+        clip.heightProperty().bind(region.heightProperty());
+        return clip;
+    }
+
     private static Text createText(String str, Paint color) {
         Text text = new Text();
         text.setFont(Settings.font);
@@ -1187,7 +7246,15 @@ public class App extends Application {
     private static final KeyCombination SC_C = new KeyCharacterCombination("c", KeyCombination.SHORTCUT_DOWN);
     private static final KeyCombination SC_V = new KeyCharacterCombination("v", KeyCombination.SHORTCUT_DOWN);
     private static final KeyCombination SC_X = new KeyCharacterCombination("x", KeyCombination.SHORTCUT_DOWN);
+    private static final KeyCombination SC_F = new KeyCharacterCombination("f", KeyCombination.SHORTCUT_DOWN);
+    private static final KeyCombination SC_ENTER = new KeyCodeCombination(KeyCode.ENTER, KeyCombination.SHORTCUT_DOWN);
+    private static final KeyCombination SC_R = new KeyCharacterCombination("r", KeyCombination.SHORTCUT_DOWN);
     private static final KeyCombination SC_O = new KeyCharacterCombination("o", KeyCombination.SHORTCUT_DOWN);
+    private static final KeyCombination SC_T = new KeyCharacterCombination("t", KeyCombination.SHORTCUT_DOWN);
+    private static final KeyCombination SC_W = new KeyCharacterCombination("w", KeyCombination.SHORTCUT_DOWN);
+    private static final KeyCombination AL_Z = new KeyCodeCombination(KeyCode.Z, KeyCombination.ALT_DOWN);
+    private static final KeyCombination AL_SUP = new KeyCodeCombination(KeyCode.UP, KeyCombination.ALT_DOWN, KeyCombination.SHIFT_DOWN);
+    private static final KeyCombination AL_SDOWN = new KeyCodeCombination(KeyCode.DOWN, KeyCombination.ALT_DOWN, KeyCombination.SHIFT_DOWN);
     private static final KeyCombination SC_S = new KeyCharacterCombination("s", KeyCombination.SHORTCUT_DOWN);
     private static final KeyCombination SC_SA= new KeyCharacterCombination("s", KeyCombination.SHORTCUT_DOWN, KeyCombination.SHIFT_DOWN);
     private static final KeyCombination SC_Z = new KeyCharacterCombination("z", KeyCombination.SHORTCUT_DOWN);
@@ -1,4 +1,5 @@
 module com.mammb.kilofx {
     requires javafx.controls;
+    requires java.management;
     exports com.mammb.kilofx;
 }
\ No newline at end of file
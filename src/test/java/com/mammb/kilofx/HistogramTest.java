@@ -0,0 +1,30 @@
+package com.mammb.kilofx;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistogramTest {
+
+    @Test void buckets() {
+        for (long v : new long[] { 0, 1, 63, 64, 65, 127, 128, 1000, 123_456_789L, Long.MAX_VALUE }) {
+            int index = App.Histogram.index(v);
+            assertThat(App.Histogram.valueOf(index)).isLessThanOrEqualTo(v);
+            assertThat(App.Histogram.index(App.Histogram.valueOf(index))).isEqualTo(index);
+            assertThat(v - App.Histogram.valueOf(index)).isLessThanOrEqualTo(v / 32);
+        }
+    }
+
+    @Test void percentile() {
+        var histogram = new App.Histogram();
+        assertThat(histogram.percentile(50)).isEqualTo(0);
+        for (int i = 1; i <= 100; i++) histogram.record(i * 1000L);
+        assertThat(histogram.count()).isEqualTo(100);
+        assertThat(histogram.max()).isEqualTo(100_000);
+        assertThat(histogram.percentile(50)).isBetween(48_500L, 50_000L);
+        assertThat(histogram.percentile(99)).isBetween(96_000L, 99_000L);
+        assertThat(histogram.percentile(100)).isBetween(97_000L, 100_000L);
+        histogram.reset();
+        assertThat(histogram.count()).isEqualTo(0);
+    }
+}
@@ -1,8 +1,18 @@
 package com.mammb.kilofx;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class SessionBufferTest {
 
@@ -61,4 +71,727 @@ public class SessionBufferTest {
         assertThat(session.isLastLine(4)).isEqualTo(true);
     }
 
+    @Test void linesWindow() {
+        var session = new App.SessionBuffer(new StringBuffer("0123456789\na\tbcdef\n\n0123"), 4);
+        var rows = new App.RowMap();
+        // columns 2..5; the tab of the second line spans the columns 1..4
+        assertThat(session.getLines(0, 4, 2, 4, rows)).isEqualTo("2345\n   b\n\n23");
+        assertThat(rows.firstLine).isEqualTo(0);
+        assertThat(rows.size()).isEqualTo(4);
+        assertThat(rows.indexOf(0, 3)).isEqualTo(1);
+        assertThat(rows.indexOf(0, 9)).isEqualTo(4);
+        assertThat(rows.indexOf(1, 13)).isEqualTo(8);
+        assertThat(rows.indexOf(1, 11)).isEqualTo(8);
+        assertThat(rows.posOf(1)).isEqualTo(3);
+        assertThat(rows.posOf(6)).isEqualTo(13);
+        assertThat(rows.posOf(8)).isEqualTo(13);
+        assertThat(rows.posOf(10)).isEqualTo(19);
+        assertThat(rows.posOf(11)).isEqualTo(22);
+        assertThat(rows.posOf(12)).isEqualTo(23);
+    }
+
+    @Test void linesWrapped() {
+        var session = new App.SessionBuffer(new StringBuffer("0123456789\n\tab\n\nxyz"), 4);
+        assertThat(session.wrapCount(0, 4)).isEqualTo(3);
+        assertThat(session.wrapCount(1, 4)).isEqualTo(2);
+        assertThat(session.wrapCount(2, 4)).isEqualTo(1);
+        assertThat(session.wrapCount(3, 4)).isEqualTo(1);
+        assertThat(session.wrapRow(3, 4)).isEqualTo(0);
+        assertThat(session.wrapRow(4, 4)).isEqualTo(1);
+        assertThat(session.wrapRow(10, 4)).isEqualTo(2);
+        assertThat(session.wrapCol(5, 4)).isEqualTo(1);
+        assertThat(session.wrapCol(13, 4)).isEqualTo(1);
+        assertThat(session.wrapPos(0, 1, 2, 4)).isEqualTo(6);
+        assertThat(session.wrapPos(0, 0, 9, 4)).isEqualTo(3);
+        assertThat(session.wrapPos(0, 5, 9, 4)).isEqualTo(10);
+        assertThat(session.wrapPos(1, 0, 1, 4)).isEqualTo(11);
+
+        var rows = new App.RowMap();
+        assertThat(session.getWrappedLines(0, 1, 4, 4, rows)).isEqualTo("4567\n89\n\t\nab");
+        assertThat(rows.size()).isEqualTo(4);
+        assertThat(rows.indexOf(0, 7)).isEqualTo(3);
+        assertThat(rows.indexOf(0, 8)).isEqualTo(5);
+        assertThat(rows.indexOf(1, 13)).isEqualTo(11);
+        assertThat(rows.posOf(11)).isEqualTo(13);
+        assertThat(rows.find(1, 1)).isEqualTo(3);
+        assertThat(rows.find(0, 0)).isEqualTo(-1);
+        assertThat(rows.continued(0)).isTrue();
+        assertThat(rows.continued(2)).isFalse();
+        assertThat(rows.continued(3)).isTrue();
+    }
+
+    @Test void consecutive() {
+        var session = new App.SessionBuffer(new StringBuffer("foo bar"), 4);
+        session.setPosition(3);
+        session.add("Baz");
+        assertThat(session.toString()).isEqualTo("fooBaz bar");
+        assertThat(session.consecutiveRight(0)).isEqualTo(6);
+        assertThat(session.consecutiveLeft(5)).isEqualTo(0);
+        assertThat(session.consecutiveRight(6)).isEqualTo(7);
+        assertThat(session.consecutiveLeft(9)).isEqualTo(7);
+        assertThat(session.consecutiveRight(10)).isEqualTo(10);
+        assertThat(session.consecutiveLeft(10)).isEqualTo(10);
+
+        session = new App.SessionBuffer(new StringBuffer("a\uD83D\uDE00\uD83D\uDE00b"), 4);
+        assertThat(session.consecutiveRight(0)).isEqualTo(1);
+        assertThat(session.consecutiveRight(1)).isEqualTo(5);
+        assertThat(session.consecutiveLeft(4)).isEqualTo(1);
+
+        session = new App.SessionBuffer(new StringBuffer("\tx\ty"), 4);
+        session.setPosition(4);
+        assertThat(session.getVisualColSize()).isEqualTo(10);
+    }
+
+    @Test void scanChunks() {
+        var expected = new StringBuilder("\t0123\n".repeat(100));
+        var pt = new App.PieceTable(expected.toString());
+        var random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            // long inserts, so the add buffer spans several blocks
+            int pos = random.nextInt(expected.length() + 1);
+            String str = (i + "\t").repeat(random.nextInt(400));
+            expected.insert(pos, str);
+            pt.insert(pos, str);
+        }
+        var cursor = pt.cursor();
+        for (int i = 0; i < expected.length(); i++) assertThat(cursor.charAt(i)).isEqualTo(expected.charAt(i));
+        for (int i = expected.length() - 1; i >= 0; i -= 7) assertThat(cursor.charAt(i)).isEqualTo(expected.charAt(i));
+        var scanner = new App.PieceTable.CharScanner(pt);
+        assertThat(scanner.count(0, expected.length(), '\t'))
+            .isEqualTo((int) expected.chars().filter(c -> c == '\t').count());
+        assertThat(scanner.count(100, 70_000, '\n'))
+            .isEqualTo((int) expected.substring(100, 70_000).chars().filter(c -> c == '\n').count());
+    }
+
+    @Test void undoRedo() {
+        var session = new App.SessionBuffer(new StringBuffer("abc\ndef"), 4);
+        session.setPosition(1);
+        session.add("12");
+        session.remove(4, 7);
+        assertThat(session.toString()).isEqualTo("a12bef");
+
+        session.undo();
+        assertThat(session.toString()).isEqualTo("a12bc\ndef");
+        session.undo();
+        assertThat(session.toString()).isEqualTo("abc\ndef");
+        assertThat(session.getPosition()).isEqualTo(1);
+
+        session.redo();
+        assertThat(session.toString()).isEqualTo("a12bc\ndef");
+        assertThat(session.getPosition()).isEqualTo(3);
+        session.redo();
+        assertThat(session.toString()).isEqualTo("a12bef");
+    }
+
+    @Test void undoCoalesce() {
+        var session = new App.SessionBuffer(new StringBuffer("abc"), 4);
+        session.setPosition(3);
+        session.add("d");
+        session.add("e");
+        session.add("f");
+        assertThat(session.toString()).isEqualTo("abcdef");
+        session.remove(4, 6);
+        session.remove(3, 4);
+        session.remove(0, 1);
+        assertThat(session.toString()).isEqualTo("bc");
+
+        session.undo();
+        assertThat(session.toString()).isEqualTo("abc");
+        session.undo();
+        assertThat(session.toString()).isEqualTo("abcdef");
+        session.undo();
+        assertThat(session.toString()).isEqualTo("abc");
+        session.redo();
+        session.redo();
+        assertThat(session.toString()).isEqualTo("abc");
+        assertThat(session.getPosition()).isEqualTo(3);
+    }
+
+    @Test void undoAll() {
+        var session = new App.SessionBuffer(new StringBuffer("0123456789\n"), 4);
+        var random = new Random(1);
+        var texts = new ArrayList<String>();
+        texts.add(session.toString());
+        for (int i = 0; i < 3000; i++) {
+            int pos = random.nextInt(session.maxPos() + 1);
+            session.setPosition(pos);
+            if (random.nextBoolean()) {
+                session.add(i % 5 == 0 ? i + "\n" : Integer.toString(i));
+            } else {
+                session.remove(pos, Math.min(session.maxPos(), pos + random.nextInt(5)));
+            }
+            texts.add(session.toString());
+        }
+        var expected = session.toString();
+        while (session.getUndoPos() >= 0) session.undo();
+        assertThat(session.toString()).isEqualTo(texts.get(0));
+        while (session.getRedoPos() >= 0) session.redo();
+        assertThat(session.toString()).isEqualTo(expected);
+    }
+
+    @Test void editLogBudget() {
+        var log = new App.EditLog(100 * Integer.BYTES);
+        var pieces = new App.IntArray();
+        pieces.add(0);
+        pieces.add(1);
+        for (int i = 0; i < 100; i++) {
+            log.push(i, 0, 1, new App.IntArray(), pieces);
+        }
+        assertThat(log.bytes()).isLessThanOrEqualTo(100 * Integer.BYTES);
+        assertThat(log.pos()).isEqualTo(99);
+        int size = log.size();
+        for (int i = 0; i < size; i++) log.pop();
+        assertThat(log.isEmpty()).isTrue();
+    }
+
+    @Test void pieceTable() {
+        var expected = new StringBuilder("0123456789");
+        var pt = new App.PieceTable(expected);
+        var random = new java.util.Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int pos = random.nextInt(expected.length() + 1);
+            if (random.nextBoolean() || expected.length() == 0) {
+                String str = Integer.toString(i) + (i % 7 == 0 ? "\n" : "");
+                expected.insert(pos, str);
+                pt.insert(pos, str);
+            } else {
+                int len = random.nextInt(Math.min(5, expected.length() - pos) + 1);
+                expected.delete(pos, pos + len);
+                pt.delete(pos, len);
+            }
+        }
+        assertThat(pt.toString()).isEqualTo(expected.toString());
+        assertThat(pt.indexOf('\n', 10)).isEqualTo(expected.indexOf("\n", 10));
+        assertThat(pt.lastIndexOf('\n', 100)).isEqualTo(expected.lastIndexOf("\n", 100));
+        assertThat(pt.substring(20, 40)).isEqualTo(expected.substring(20, 40));
+        for (int i = 0, line = 0; i < expected.length(); i++) {
+            assertThat(pt.lineAt(i)).isEqualTo(line);
+            if (expected.charAt(i) == '\n') assertThat(pt.lineStart(++line)).isEqualTo(i + 1);
+        }
+    }
+
+    @Test void pieceTableBalanced() {
+        var expected = new StringBuilder("0123456789".repeat(10_000));
+        var pt = new App.PieceTable(expected.toString());
+        var random = new Random(1);
+        for (int i = 0; i < 20_000; i++) {
+            // single chars at random positions split the pieces over and over
+            int pos = random.nextInt(expected.length() + 1);
+            if (i % 4 == 3) {
+                pos = Math.min(pos, expected.length() - 1);
+                expected.deleteCharAt(pos);
+                pt.delete(pos, 1);
+            } else {
+                expected.insert(pos, 'x');
+                pt.insert(pos, "x");
+            }
+        }
+        assertThat(pt.toString()).isEqualTo(expected.toString());
+        int pieces = pt.pieces(0, pt.length()).size() / 2;
+        assertThat(pieces).isGreaterThan(10_000);
+        int log2 = 32 - Integer.numberOfLeadingZeros(pieces);
+        assertThat(pt.depth()).isLessThanOrEqualTo(4 * log2);
+    }
+
+    @Test void lineIndex() {
+        var session = new App.SessionBuffer(new StringBuffer("ab\n\ncd"), 4);
+        session.setPosition(4);
+        session.add("x\ny\n");
+        assertThat(session.toString()).isEqualTo("ab\n\nx\ny\ncd");
+        assertThat(session.lineCount()).isEqualTo(5);
+        assertThat(session.lineAt(0)).isEqualTo(0);
+        assertThat(session.lineAt(3)).isEqualTo(1);
+        assertThat(session.lineAt(5)).isEqualTo(2);
+        assertThat(session.lineAt(10)).isEqualTo(4);
+        assertThat(session.lineStartPos(2)).isEqualTo(4);
+        assertThat(session.lineStartPos(4)).isEqualTo(8);
+        assertThat(session.lineStartPos(5)).isEqualTo(10);
+        assertThat(session.countLines(1, 9)).isEqualTo(4);
+        assertThat(session.getLines(5, 2)).isEqualTo("x\ny\n");
+        assertThat(session.getNextLinePos(0, 3)).isEqualTo(6);
+        assertThat(session.getNextLinePos(9, 1)).isEqualTo(10);
+    }
+
+    @Test void mappedText(@TempDir Path dir) throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append(i).append(i % 3 == 0 ? "あいう\n" : "abc\n");
+        var file = dir.resolve("large.txt");
+        Files.writeString(file, sb);
+
+        var text = App.MappedText.open(file, StandardCharsets.UTF_8);
+        assertThat(text.length()).isEqualTo(sb.length());
+        assertThat(text.toString()).isEqualTo(sb.toString());
+        assertThat(text.countLf(0, text.length())).isEqualTo(20000);
+        assertThat(text.lfPos(70000, 0)).isEqualTo(sb.indexOf("\n", 70000));
+
+        var pt = new App.PieceTable(text);
+        pt.insert(100000, "xyz\n");
+        sb.insert(100000, "xyz\n");
+        assertThat(pt.lineStart(15000)).isEqualTo(nthLineStart(sb, 15000));
+        assertThat(pt.lineAt(150000)).isEqualTo((int) sb.substring(0, 150000).chars().filter(c -> c == '\n').count());
+    }
+
+    @Test void mappedTextIndexedByPages(@TempDir Path dir) throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append(i).append(i % 3 == 0 ? "あいう\n" : "abc\n");
+        var file = dir.resolve("large.txt");
+        Files.writeString(file, sb);
+
+        var text = App.MappedText.map(file, StandardCharsets.UTF_8);
+        assertThat(text.length()).isEqualTo(0);
+        assertThat(text.index(1)).isFalse();
+        int head = text.length();
+        assertThat(head).isGreaterThan(0).isLessThan(sb.length());
+        assertThat(text.toString()).isEqualTo(sb.substring(0, head));
+        assertThat(text.countLf(0, head)).isEqualTo((int) sb.substring(0, head).chars().filter(c -> c == '\n').count());
+
+        assertThat(text.index(Integer.MAX_VALUE)).isTrue();
+        assertThat(text.indexedBytes()).isEqualTo(Files.size(file));
+        assertThat(text.toString()).isEqualTo(sb.toString());
+        assertThat(text.countLf(0, text.length())).isEqualTo(20000);
+    }
+
+    @Test void loadIndexedHead(@TempDir Path dir) throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append(i).append("abc\n");
+        var file = dir.resolve("large.txt");
+        Files.writeString(file, sb);
+
+        var text = App.MappedText.map(file, StandardCharsets.UTF_8);
+        text.index(1);
+        int head = text.length();
+        var session = new App.SessionBuffer(new StringBuffer(), 4);
+        session.load(file.toFile(), text, head);
+        assertThat(session.toString()).isEqualTo(sb.substring(0, head));
+
+        session.setPosition(0);
+        session.add("x\n");
+        text.index(Integer.MAX_VALUE);
+        session.appendLoaded(head, text.length());
+        assertThat(session.toString()).isEqualTo("x\n" + sb);
+        assertThat(session.lineCount()).isEqualTo(20002);
+    }
+
+    @Test void saveAs(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("a.txt");
+        Files.writeString(file, "old");
+        var sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) sb.append("\uD83D\uDE00").append(i).append("あ\n");
+        var session = new App.SessionBuffer(sb, 4);
+        var snapshot = session.snapshot();
+        session.add("edited after snapshot");
+
+        App.SessionBuffer.write(snapshot, file);
+        assertThat(Files.readString(file)).isEqualTo(sb.toString());
+        try (var files = Files.list(dir)) {
+            assertThat(files).containsExactly(file);
+        }
+    }
+
+    @Test void saveThroughLink(@TempDir Path dir) throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        var file = dir.resolve("a.txt");
+        Files.writeString(file, "old");
+        var link = Files.createSymbolicLink(dir.resolve("link.txt"), file);
+        App.SessionBuffer.write(new App.SessionBuffer("new", 4).snapshot(), link);
+        assertThat(Files.isSymbolicLink(link)).isTrue();
+        assertThat(Files.readString(file)).isEqualTo("new");
+
+        // a new file gets the permissions of the files created in the directory
+        var created = dir.resolve("b.txt");
+        App.SessionBuffer.write(new App.SessionBuffer("new", 4).snapshot(), created);
+        var reference = Files.createFile(dir.resolve("c.txt"));
+        assertThat(Files.getPosixFilePermissions(created)).isEqualTo(Files.getPosixFilePermissions(reference));
+    }
+
+    @Test void journal(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("a.txt").toFile();
+        Files.writeString(file.toPath(), "abc\ndef");
+        var session = open(file);
+        assertThat(session.getUndoPos()).isEqualTo(-1);
+        session.setPosition(3);
+        session.add("1");
+        session.add("2");
+        session.remove(0, 1);
+        session.undo();
+        save(session, file);
+        session.setPosition(0);
+        session.add("x");
+
+        // reopened without closing the session, the unsaved edit is restored
+        var recovered = new App.SessionBuffer("", 4);
+        recovered.open(file);
+        var snapshot = recovered.snapshot();
+        var journal = App.Journal.openFor(file, App.Journal.hash(snapshot), snapshot.length());
+        assertThat(recovered.attach(journal, recovered.mark())).isTrue();
+        assertThat(recovered.toString()).isEqualTo("xabc12\ndef");
+        recovered.undo();
+        assertThat(recovered.toString()).isEqualTo("abc12\ndef");
+        recovered.undo();
+        assertThat(recovered.toString()).isEqualTo("abc\ndef");
+        recovered.redo();
+        recovered.redo();
+        assertThat(recovered.toString()).isEqualTo("xabc12\ndef");
+        save(recovered, file);
+        recovered.clear();
+
+        // the history is restored when reopened after the save
+        var reopened = open(file);
+        assertThat(reopened.toString()).isEqualTo("xabc12\ndef");
+        reopened.undo();
+        reopened.undo();
+        assertThat(reopened.toString()).isEqualTo("abc\ndef");
+        reopened.clear();
+
+        // the history does not apply to the file changed out of the editor
+        Files.writeString(file.toPath(), "changed");
+        assertThat(open(file).getUndoPos()).isEqualTo(-1);
+    }
+
+    @Test void journalReleased(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("d.txt").toFile();
+        Files.writeString(file.toPath(), "abc");
+        var session = open(file);
+        session.setPosition(3);
+        session.add("1");
+        save(session, file);
+        session.add("2");
+        session.undo();
+        session.add("3");
+
+        // closed without saving, the edits after the save are discarded
+        session.release();
+        var reopened = open(file);
+        assertThat(reopened.toString()).isEqualTo("abc1");
+        assertThat(reopened.modified()).isFalse();
+        assertThat(reopened.getRedoPos()).isEqualTo(-1);
+        reopened.undo();
+        assertThat(reopened.toString()).isEqualTo("abc");
+        reopened.release();
+
+        // the journal of the file changed out of the editor has no edit to go back to
+        Files.writeString(file.toPath(), "changed");
+        var changed = open(file);
+        changed.add("y");
+        changed.release();
+        reopened = open(file);
+        assertThat(reopened.toString()).isEqualTo("changed");
+        assertThat(reopened.getUndoPos()).isEqualTo(-1);
+    }
+
+    @Test void journalDroppedByLargeInsert(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("e.txt").toFile();
+        Files.writeString(file.toPath(), "abc");
+        var session = open(file);
+        session.add("x".repeat(App.Journal.MAX_TEXT / 2));
+        assertThat(App.Journal.pathOf(file)).exists();
+        // the typing coalesced into the insert goes over the limit
+        session.add("y".repeat(App.Journal.MAX_TEXT / 2 + 1));
+        assertThat(App.Journal.pathOf(file)).doesNotExist();
+    }
+
+    @Test void journalRewrite(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("f.txt").toFile();
+        var session = new App.SessionBuffer("", 4);
+        session.add("a\n");
+        session.add("x".repeat(App.Journal.MAX_TEXT + 1));
+        session.add("\nb");
+
+        // edited while rewriting, the journal is not written
+        var snapshot = session.snapshot();
+        App.SessionBuffer.write(snapshot, file.toPath());
+        var rewrite = session.saved(file, snapshot.length(), App.Journal.hash(snapshot), session.mark());
+        session.add("c");
+        rewrite.call().run();
+        assertThat(App.Journal.pathOf(file)).doesNotExist();
+
+        // the history older than the large edit is not journaled
+        session.undo();
+        save(session, file);
+        var reopened = open(file);
+        reopened.undo();
+        assertThat(reopened.toString()).isEqualTo("a\n" + "x".repeat(App.Journal.MAX_TEXT + 1));
+        assertThat(reopened.getUndoPos()).isEqualTo(-1);
+        reopened.redo();
+        reopened.redo();
+        assertThat(reopened.toString()).isEqualTo("a\n" + "x".repeat(App.Journal.MAX_TEXT + 1) + "\nbc");
+    }
+
+    @Test void journalOfNewFile(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("b.txt").toFile();
+        var session = new App.SessionBuffer("", 4);
+        session.add("abc");
+        session.add("\n");
+        session.add("def");
+        session.undo();
+        save(session, file);
+
+        var reopened = open(file);
+        assertThat(reopened.toString()).isEqualTo("abc\n");
+        reopened.redo();
+        assertThat(reopened.toString()).isEqualTo("abc\ndef");
+        reopened.undo();
+        reopened.undo();
+        assertThat(reopened.toString()).isEqualTo("abc");
+    }
+
+    @Test void recovery(@TempDir Path dir) throws Exception {
+        var file = dir.resolve("c.txt");
+        Files.writeString(file, "abc\ndef\n".repeat(1000));
+        var session = new App.SessionBuffer("", 4);
+        session.load(file.toFile(), App.MappedText.open(file, StandardCharsets.UTF_8));
+        var recovery = new App.Recovery();
+        session.setPosition(4);
+        session.add("123");
+        recovery.write(session.snapshot(), session.getFile(), session.getPosition());
+        var id = App.Journal.id(file.toFile());
+        var add = App.Recovery.DIR.resolve(id + ".add");
+        assertThat(Files.size(add)).isEqualTo(6);
+        // the mapped file is referred while it is unchanged
+        assertThat(App.Recovery.DIR.resolve(id + ".orig")).doesNotExist();
+
+        session.remove(0, 2);
+        session.add("45");
+        Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(0));
+        recovery.write(session.snapshot(), session.getFile(), session.getPosition());
+        assertThat(Files.size(add)).isEqualTo(10);
+        assertThat(App.Recovery.DIR.resolve(id + ".orig")).exists();
+        assertThat(App.Recovery.leftovers()).contains(id);
+
+        var restored = new App.SessionBuffer("", 4);
+        new App.Recovery().read(id, restored).run();
+        assertThat(restored.toString()).isEqualTo(session.toString());
+        assertThat(restored.getPosition()).isEqualTo(session.getPosition());
+        assertThat(restored.getFile()).isEqualTo(file.toFile().getAbsoluteFile());
+        assertThat(restored.modified()).isTrue();
+        recovery.delete();
+        assertThat(App.Recovery.DIR.resolve(id + ".meta")).doesNotExist();
+
+        // the files left in the id are discarded before another snapshot is written to it
+        new App.Recovery().write(session.snapshot(), session.getFile(), session.getPosition());
+        var other = new App.SessionBuffer("", 4);
+        other.load(file.toFile(), App.MappedText.open(file, StandardCharsets.UTF_8));
+        other.add("z");
+        new App.Recovery().write(other.snapshot(), other.getFile(), other.getPosition());
+        assertThat(Files.size(add)).isEqualTo(2);
+        assertThat(App.Recovery.DIR.resolve(id + ".orig")).doesNotExist();
+        new App.Recovery().read(id, restored).run();
+        assertThat(restored.toString()).isEqualTo(other.toString());
+    }
+
+    private static App.SessionBuffer open(java.io.File file) throws Exception {
+        var session = new App.SessionBuffer("", 4);
+        session.open(file);
+        var snapshot = session.snapshot();
+        session.attach(App.Journal.openFor(file, App.Journal.hash(snapshot), snapshot.length()), session.mark());
+        return session;
+    }
+
+    private static void save(App.SessionBuffer session, java.io.File file) throws Exception {
+        var snapshot = session.snapshot();
+        long mark = session.mark();
+        App.SessionBuffer.write(snapshot, file.toPath());
+        var rewrite = session.saved(file, snapshot.length(), App.Journal.hash(snapshot), mark);
+        if (rewrite != null) rewrite.call().run();
+    }
+
+    @Test void find() {
+        var session = new App.SessionBuffer(new StringBuffer("foo bar\nbaz foo\n"), 4);
+        session.setPosition(8);
+        session.add("foo ");
+        var finder = App.Finder.literal("foo");
+        assertThat(session.find(finder, 1)).isTrue();
+        assertThat(finder.start()).isEqualTo(8);
+        assertThat(session.find(finder, 17)).isTrue();
+        assertThat(finder.start()).isEqualTo(0);
+
+        List<Integer> starts = new ArrayList<>();
+        session.findAll(finder, 0, session.maxPos(), (s, e) -> starts.add(s));
+        assertThat(starts).containsExactly(0, 8, 16);
+
+        var regex = App.Finder.regex("\\bba\\w");
+        session.setPosition(9);
+        assertThat(session.findNext(regex)).isTrue();
+        assertThat(session.text(regex.start(), regex.end())).isEqualTo("baz");
+        assertThat(App.Finder.literal("qux").find(session.toString(), 0, session.maxPos())).isFalse();
+    }
+
+    @Test void findAcrossPieces() {
+        var random = new Random(1);
+        var sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append((char) ('a' + random.nextInt(3)));
+        var session = new App.SessionBuffer(sb.toString(), 4);
+        for (int i = 0; i < 500; i++) {
+            int pos = random.nextInt(sb.length());
+            String str = "ab".repeat(random.nextInt(3));
+            session.setPosition(pos);
+            session.add(str);
+            sb.insert(pos, str);
+        }
+        for (String pattern : List.of("abc", "aab", "cba", "abab", "c")) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = sb.indexOf(pattern); i >= 0; i = sb.indexOf(pattern, i + pattern.length())) expected.add(i);
+            List<Integer> literal = new ArrayList<>();
+            session.findAll(App.Finder.literal(pattern), 0, session.maxPos(), (s, e) -> literal.add(s));
+            List<Integer> regex = new ArrayList<>();
+            session.findAll(App.Finder.regex(pattern), 0, session.maxPos(), (s, e) -> regex.add(s));
+            assertThat(literal).isEqualTo(expected);
+            assertThat(regex).isEqualTo(expected);
+        }
+    }
+
+    @Test void findAllParallel() {
+        var random = new Random(2);
+        var sb = new StringBuilder();
+        while (sb.length() < 3 * App.SessionBuffer.SEGMENT_SIZE + 100) {
+            sb.append("a".repeat(random.nextInt(8))).append(random.nextBoolean() ? "b\n" : "ab");
+        }
+        var session = new App.SessionBuffer(sb.toString(), 4);
+        for (var finder : List.of(App.Finder.literal("aa"), App.Finder.literal("aab\na"),
+                App.Finder.regex("a+b"), App.Finder.regex("b$"), App.Finder.regex("a*"))) {
+            List<Integer> expected = new ArrayList<>();
+            session.findAll(finder, 0, session.maxPos(), (s, e) -> { expected.add(s); expected.add(e); });
+            List<Integer> actual = new ArrayList<>();
+            int count = App.SessionBuffer.findAll(session.snapshot(), finder,
+                (s, e) -> { actual.add(s); actual.add(e); }, () -> false);
+            assertThat(actual).isEqualTo(expected);
+            assertThat(count).isEqualTo(expected.size() / 2);
+        }
+    }
+
+    @Test void replaceAll() {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append("foo").append(i).append(i % 3 == 0 ? "\n" : " ");
+        String original = sb.toString();
+        var session = new App.SessionBuffer(original, 4);
+        session.setPosition(10);
+        session.add("foo\nfoo");
+        String edited = session.toString();
+
+        assertThat(session.replaceAll(App.Finder.literal("foo"), "ba\nr")).isEqualTo(1002);
+        assertThat(session.toString()).isEqualTo(edited.replace("foo", "ba\nr"));
+        assertThat(session.lineCount()).isEqualTo((int) session.toString().chars().filter(c -> c == '\n').count() + 1);
+        assertThat(session.lineStartPos(700)).isEqualTo(nthLineStart(session.toString(), 700));
+
+        session.undo();
+        assertThat(session.toString()).isEqualTo(edited);
+        session.redo();
+        assertThat(session.toString()).isEqualTo(edited.replace("foo", "ba\nr"));
+        session.undo();
+        session.undo();
+        assertThat(session.toString()).isEqualTo(original);
+
+        assertThat(session.replaceAll(App.Finder.regex("foo(\\d+)\n"), "[$1]\\$")).isEqualTo(334);
+        assertThat(session.toString()).isEqualTo(original.replaceAll("foo(\\d+)\n", "[$1]\\$"));
+        assertThat(session.replaceAll(App.Finder.literal("none"), "x")).isEqualTo(0);
+    }
+
+    @Test void multiCaret() {
+        var session = new App.SessionBuffer("a\tbc\nabcdefg\nab\nabcdefg", 4);
+        // the column 5 is after the tab in the first line, and the line of "ab" is short
+        session.selectColumns(session.colPos(0, 5), session.colPos(3, 5));
+        assertThat(session.caretCount()).isEqualTo(4);
+        session.addAll(i -> "|");
+        assertThat(session.toString()).isEqualTo("a\t|bc\nabcde|fg\nab|\nabcde|fg");
+        assertThat(session.caretAt(0)).isEqualTo(3);
+        assertThat(session.getPosition()).isEqualTo(session.caretAt(3));
+
+        session.backSpaceAll();
+        session.backSpaceAll();
+        assertThat(session.toString()).isEqualTo("abc\nabcdfg\na\nabcdfg");
+        session.undo();
+        assertThat(session.toString()).isEqualTo("a\tbc\nabcdefg\nab\nabcdefg");
+        assertThat(session.multiCaret()).isFalse();
+
+        session.selectColumns(session.colPos(2, 1), session.colPos(1, 3));
+        assertThat(session.text(session.anchorAt(0), session.caretAt(0))).isEqualTo("bc");
+        assertThat(session.text(session.anchorAt(1), session.caretAt(1))).isEqualTo("b");
+        session.deleteAll();
+        assertThat(session.toString()).isEqualTo("a\tbc\nadefg\na\nabcdefg");
+        session.deleteAll();
+        assertThat(session.toString()).isEqualTo("a\tbc\naefg\naabcdefg");
+    }
+
+    @Test void addCaret() {
+        var session = new App.SessionBuffer("0123456789", 4);
+        session.setPosition(5);
+        session.addCaret(1, 1);
+        session.addCaret(8, 9);
+        session.addCaret(3, 1);
+        assertThat(session.caretCount()).isEqualTo(3);
+        assertThat(session.anchorAt(0)).isEqualTo(3);
+        assertThat(session.caretAt(0)).isEqualTo(1);
+        session.addCaret(4, 9);
+        assertThat(session.caretCount()).isEqualTo(2);
+        assertThat(session.anchorAt(1)).isEqualTo(4);
+        assertThat(session.caretAt(1)).isEqualTo(9);
+        session.addAll(i -> "x");
+        assertThat(session.toString()).isEqualTo("0x3x9");
+    }
+
+    @Test void multiCaretLinear() {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) sb.append("line").append(i).append('\n');
+        var session = new App.SessionBuffer(sb.toString(), 4);
+        session.selectColumns(0, session.lineStartPos(9999));
+        assertThat(session.caretCount()).isEqualTo(10000);
+        session.addAll(i -> "// ");
+        assertThat(session.lineCount()).isEqualTo(10001);
+        assertThat(session.getLines(session.lineStartPos(5000), 1)).isEqualTo("// line5000\n");
+        session.undo();
+        assertThat(session.toString()).isEqualTo(sb.toString());
+        session.redo();
+        assertThat(session.toString()).isEqualTo(sb.toString().replaceAll("(?m)^line", "// line"));
+    }
+
+    @Test void spill() throws Exception {
+        var sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append("line").append(i).append('\n');
+        sb.append("\ud800 lone surrogate");
+        var session = new App.SessionBuffer(sb.toString(), 4);
+        var edit = new StringBuilder();
+        for (int i = 0; i < 10000; i++) edit.append("added").append(i).append('\n');
+        session.setPosition(10);
+        session.add(edit.toString());
+        session.setPosition(0);
+        session.add("head");
+        String edited = session.toString();
+        long heap = session.heapSize();
+
+        App.PieceTable snapshot = session.snapshot();
+        App.PieceTable.Buffer[] swaps = snapshot.spill();
+        assertThat(swaps[0]).isNotNull();
+        assertThat(swaps[1].length() % 65536).isEqualTo(0);
+        assertThat(session.spilled(snapshot, swaps)).isTrue();
+        session.trim();
+        assertThat(session.heapSize()).isLessThan(heap / 3);
+        assertThat(session.toString()).isEqualTo(edited);
+        assertThat(session.lineCount()).isEqualTo(30001);
+        assertThat(session.getLines(session.lineStartPos(5000), 1)).isEqualTo("added4999\n");
+
+        session.setPosition(session.maxPos());
+        session.add("tail");
+        assertThat(session.toString()).isEqualTo(edited + "tail");
+        session.undo();
+        session.undo();
+        assertThat(session.toString()).isEqualTo(edited.substring(4));
+        session.undo();
+        assertThat(session.toString()).isEqualTo(sb.toString());
+        assertThat(session.snapshot().spill()[0]).isNull();
+
+        // a text loaded since the snapshot is left as it is
+        snapshot = session.snapshot();
+        swaps = snapshot.spill();
+        session.load(null, "other");
+        assertThat(session.spilled(snapshot, swaps)).isFalse();
+        assertThat(session.toString()).isEqualTo("other");
+    }
+
+    private static int nthLineStart(CharSequence cs, int line) {
+        for (int i = 0; i < cs.length(); i++) {
+            if (cs.charAt(i) == '\n' && --line == 0) return i + 1;
+        }
+        return cs.length();
+    }
+
 }
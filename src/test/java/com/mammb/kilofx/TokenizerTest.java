@@ -0,0 +1,78 @@
+package com.mammb.kilofx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenizerTest {
+
+    private final App.Tokenizer tokenizer = new App.Tokenizer("int", "public", "class", "return");
+
+    @Test void keywords() {
+        var spans = scan("public class int_ { int x; return 1int; }", App.Tokenizer.NORMAL);
+        assertThat(spans).containsExactly("1:public", "1:class", "1:int", "1:return");
+    }
+
+    @Test void comments() {
+        var spans = scan("int a; // int\n/* class\n */ return", App.Tokenizer.NORMAL);
+        assertThat(spans).containsExactly("1:int", "2:// int", "3:/* class\n */", "1:return");
+    }
+
+    @Test void state() {
+        List<String> spans = new ArrayList<>();
+        String str = "class */ int /* public";
+        int state = tokenizer.scan(str, 0, str.length(), App.Tokenizer.IN_BLOCK_COMMENT,
+            (type, s, e) -> spans.add(type + ":" + str.substring(s, e)));
+        assertThat(spans).containsExactly("3:class */", "1:int", "3:/* public");
+        assertThat(state).isEqualTo(App.Tokenizer.IN_BLOCK_COMMENT);
+    }
+
+    @Test void cache() {
+        var session = new App.SessionBuffer(new StringBuffer("int a;\n/*\nint b;\n*/\nint c;"), 4);
+        var cache = new App.TokenCache(tokenizer, session);
+        assertThat(cache.spans(2)).containsExactly(3, 0, 6);
+        assertThat(cache.spans(4)).containsExactly(1, 0, 3);
+
+        session.setPosition(session.lineStartPos(3));
+        session.remove(session.getPosition(), session.getPosition() + 3);
+        assertThat(session.lineText(3)).isEqualTo("int c;");
+        assertThat(cache.spans(3)).containsExactly(3, 0, 6);
+
+        session.undo();
+        assertThat(cache.spans(4)).containsExactly(1, 0, 3);
+        session.setPosition(session.lineStartPos(1));
+        session.add("\n\n");
+        assertThat(cache.spans(0)).containsExactly(1, 0, 3);
+        assertThat(cache.spans(1)).isEmpty();
+        assertThat(cache.spans(4)).containsExactly(3, 0, 6);
+        assertThat(cache.spans(6)).containsExactly(1, 0, 3);
+    }
+
+    @Test void cacheSweep() {
+        var session = new App.SessionBuffer(new StringBuffer("/*\n" + "x\n".repeat(10000) + "int a;"), 4);
+        var cache = new App.TokenCache(tokenizer, session);
+        // far below the lexed lines, the state is guessed and the lines up to it are left to the sweep
+        assertThat(cache.spans(10001)).containsExactly(1, 0, 3);
+        assertThat(cache.swept()).isFalse();
+
+        assertThat(cache.sweep(Long.MAX_VALUE)).isTrue();
+        assertThat(cache.stale()).isTrue();
+        assertThat(cache.spans(10001)).containsExactly(3, 0, 6);
+
+        session.setPosition(0);
+        session.add("//");
+        assertThat(cache.spans(10001)).containsExactly(3, 0, 6);
+        assertThat(cache.sweep(Long.MAX_VALUE)).isTrue();
+        assertThat(cache.spans(10001)).containsExactly(1, 0, 3);
+    }
+
+    private List<String> scan(String str, int state) {
+        List<String> spans = new ArrayList<>();
+        tokenizer.scan(str, 0, str.length(), state, (type, s, e) -> spans.add(type + ":" + str.substring(s, e)));
+        return spans;
+    }
+
+}
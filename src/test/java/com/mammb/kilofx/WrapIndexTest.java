@@ -0,0 +1,72 @@
+package com.mammb.kilofx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WrapIndexTest {
+
+    @Test void edits() {
+        var session = new App.SessionBuffer(new StringBuffer("0123456789\nabc\n"), 4);
+        var index = new App.WrapIndex(session, 5);
+        var random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            int pos = random.nextInt(session.maxPos() + 1);
+            session.setPosition(pos);
+            if (i % 100 == 0) {
+                session.add("x\n".repeat(1100));
+            } else if (random.nextBoolean()) {
+                session.add(i % 3 == 0 ? "\t" + i + "\n" : "abcdefg".substring(random.nextInt(7)));
+            } else {
+                session.remove(pos, Math.min(session.maxPos(), pos + random.nextInt(8)));
+            }
+            if (!index.swept()) index.sweep(Long.MAX_VALUE);
+            assertIndexed(session, index);
+        }
+    }
+
+    @Test void replaceInPlace() {
+        var session = new App.SessionBuffer(new StringBuffer("0123456789\nabc\n0123456789\nabc\n"), 4);
+        var index = new App.WrapIndex(session, 5);
+        index.sweep(Long.MAX_VALUE);
+        assertThat(index.rowOf(4)).isEqualTo(6);
+
+        // the lines are replaced by as many lines, wrapped into other rows
+        assertThat(session.replaceAll(App.Finder.literal("0123456789\nabc"), "xy\nabcdefghijk")).isEqualTo(2);
+        assertThat(index.swept()).isTrue();
+        assertIndexed(session, index);
+        assertThat(index.rowOf(4)).isEqualTo(8);
+    }
+
+    @Test void columns() {
+        var session = new App.SessionBuffer(new StringBuffer("0123456789\n\n01234\n0123456789012"), 4);
+        var index = new App.WrapIndex(session, 5);
+        index.sweep(Long.MAX_VALUE);
+        assertThat(index.total()).isEqualTo(2 + 1 + 1 + 3);
+        assertThat(index.lineAt(5)).isEqualTo(3);
+
+        // the counts are kept until wrapped again
+        assertThat(index.cols(3)).isTrue();
+        assertThat(index.swept()).isFalse();
+        assertThat(index.total()).isEqualTo(7);
+        assertThat(index.exact(0)).isEqualTo(4);
+        assertThat(index.total()).isEqualTo(9);
+        index.sweep(Long.MAX_VALUE);
+        assertIndexed(session, index);
+        assertThat(index.total()).isEqualTo(4 + 1 + 2 + 5);
+    }
+
+    private static void assertIndexed(App.SessionBuffer session, App.WrapIndex index) {
+        int row = 0;
+        for (int line = 0; line < session.lineCount(); line++) {
+            int count = session.wrapCount(line, index.cols());
+            assertThat(index.rows(line)).isEqualTo(count);
+            assertThat(index.rowOf(line)).isEqualTo(row);
+            for (int i = 0; i < count; i++) assertThat(index.lineAt(row + i)).isEqualTo(line);
+            row += count;
+        }
+        assertThat(index.total()).isEqualTo(row);
+    }
+}